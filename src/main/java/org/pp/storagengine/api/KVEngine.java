@@ -1,5 +1,9 @@
 package org.pp.storagengine.api;
 
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+
 public interface KVEngine {
 	/**
 	 * Ensure key size should not be too long to avoid any performance problem
@@ -35,6 +39,86 @@ public interface KVEngine {
 	 * entry is an instance of KVEntry.
 	 */
 	public KVEntry put(byte[] key, byte[] value) throws Exception;
+	/**
+	 * Create or update a mapping with a value read from the stream. Large
+	 * values are written straight to their blocks, a chunk at a time, and are
+	 * never held in memory. The value of the returned entry is null.
+	 * @param key
+	 * @param in - stream of exactly length bytes, not closed
+	 * @param length
+	 * @return
+	 * @throws Exception
+	 */
+	public KVEntry put(byte[] key, InputStream in, int length) throws Exception;
+	/**
+	 * Open the value of a key for ranged or streamed reads without loading it
+	 * in memory, return null if no value associated with this key. The
+	 * reader must be closed.
+	 * @param key
+	 * @return
+	 * @throws Exception
+	 */
+	public LobReader openLob(byte[] key) throws Exception;
+	/**
+	 * Queue a put and return at once. The future completes with the entry once
+	 * it is applied. Queued operations are applied in submission order by a
+	 * single writer thread, dependent stages run on that thread and should not
+	 * block.
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public CompletableFuture<KVEntry> putAsync(byte[] key, byte[] value);
+	/**
+	 * Same as putAsync(key, value). If durable is true, the future completes
+	 * only once the entry is durable, after the write ahead log commit or the
+	 * next sync when log is disabled.
+	 * @param key
+	 * @param value
+	 * @param durable
+	 * @return
+	 */
+	public CompletableFuture<KVEntry> putAsync(byte[] key, byte[] value, boolean durable);
+	/**
+	 * Queue a delete and return at once, see putAsync(key, value)
+	 * @param key
+	 * @return
+	 */
+	public CompletableFuture<KVEntry> deleteAsync(byte[] key);
+	/**
+	 * Queue a delete and return at once, see putAsync(key, value, durable)
+	 * @param key
+	 * @param durable
+	 * @return
+	 */
+	public CompletableFuture<KVEntry> deleteAsync(byte[] key, boolean durable);
+	/**
+	 * Create an empty write batch to be used with write()
+	 * @return
+	 */
+	public WriteBatch newWriteBatch();
+	/**
+	 * Apply all operations of the batch under a single write lock. The batch
+	 * is logged as one record and made durable before it is applied, even
+	 * if write ahead log is disabled, so that after a crash either all or
+	 * none of it is found. Readers running meanwhile might see part of it.
+	 * @param batch
+	 * @throws Exception
+	 */
+	public void write(WriteBatch batch) throws Exception;
+	/**
+	 * Load key sorted entries into an empty engine or into a key range that
+	 * holds no entry yet, bypassing the put path. Leaves are packed up to
+	 * fillFactor percent of a page and written once, in sequence. Deleted
+	 * entries are skipped. Loading stops with an exception at the first key
+	 * out of order or out of the empty range, the entries before it stay
+	 * loaded. The loaded entries are durable once it returns.
+	 * @param entries - sorted by the engine comparator
+	 * @param fillFactor - percentage of a page to fill, 1 to 100
+	 * @return number of entries loaded
+	 * @throws Exception
+	 */
+	public long bulkLoad(Iterator<? extends KVEntry> entries, int fillFactor) throws Exception;
 	/**
 	 *  Get the iterator to travers first to end key
 	 * @return
@@ -78,6 +162,18 @@ public interface KVEngine {
 	 * @throws Exception
 	 */
 	public KVIterator iterator(byte[] start,byte[] end, boolean rev) throws Exception; 
+	/**
+	 * Get the range iterator with given order, of keys only if keysOnly. Entries
+	 * of a keys only iterator carry key, size and time stamp, values and LOBs are
+	 * neither decoded nor read and getValue() returns null
+	 * @param start
+	 * @param end
+	 * @param rev
+	 * @param keysOnly
+	 * @return
+	 * @throws Exception
+	 */
+	public KVIterator iterator(byte[] start,byte[] end, boolean rev, boolean keysOnly) throws Exception; 
 	
 	// key related API
 	/**
@@ -0,0 +1,53 @@
+package org.pp.storagengine.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Ranged access to a value without loading it in memory. A reader is a
+ * snapshot of the value at open time, a later put of the same key does not
+ * affect it. Readers are not thread safe and must be closed.
+ * @author prasantsmac
+ *
+ */
+public interface LobReader extends Closeable {
+	/**
+	 * Value length in bytes
+	 * @return
+	 */
+	public int length();
+	/**
+	 * Read value bytes starting at position into dst
+	 * @param position
+	 * @param dst
+	 * @return number of bytes read, -1 if position is at the end
+	 * @throws IOException
+	 */
+	public int read(int position, ByteBuffer dst) throws IOException;
+	/**
+	 * Read up to len value bytes starting at position
+	 * @param position
+	 * @param len
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] read(int position, int len) throws IOException;
+	/**
+	 * Stream over the whole value, closing it does not close the reader
+	 * @return
+	 */
+	public InputStream newInputStream();
+	/**
+	 * Channel over the whole value, closing it does not close the reader
+	 * @return
+	 */
+	public ReadableByteChannel newChannel();
+	/**
+	 * Release the reader
+	 */
+	@Override
+	public void close();
+}
@@ -87,6 +87,41 @@ public interface StatisticsMXBean {
 	 */
 	public long getMaxSyncTime();
 
+	/**
+	 * Number of leaf page reads served by the page cache
+	 * 
+	 * @return
+	 */
+	public long getNumOfCacheHit();
+
+	/**
+	 * Number of leaf page reads which missed the page cache
+	 * 
+	 * @return
+	 */
+	public long getNumOfCacheMiss();
+
+	/**
+	 * Number of data files currently open for read
+	 * 
+	 * @return
+	 */
+	public int getNumOfReadHandles();
+
+	/**
+	 * Number of data files currently open for write
+	 * 
+	 * @return
+	 */
+	public int getNumOfWriteHandles();
+
+	/**
+	 * Number of data file regions currently mapped in memory
+	 * 
+	 * @return
+	 */
+	public int getNumOfMappedFiles();
+
 	// All parameters
 	/**
 	 * Data block size
@@ -122,4 +157,228 @@ public interface StatisticsMXBean {
 	 * @return
 	 */
 	public int getMaxLobSize();
+
+	/**
+	 * Page cache size in bytes
+	 * 
+	 * @return
+	 */
+	public long getPageCacheSize();
+
+	/**
+	 * True if data files are memory mapped
+	 * 
+	 * @return
+	 */
+	public boolean isMmapDataFiles();
+
+	/**
+	 * True if write ahead log is enabled
+	 * 
+	 * @return
+	 */
+	public boolean isWalEnabled();
+
+	/**
+	 * Number of records appended to write ahead log
+	 * 
+	 * @return
+	 */
+	public long getNumOfWalAppend();
+
+	/**
+	 * Number of write ahead log forces, one force may commit many records
+	 * 
+	 * @return
+	 */
+	public long getNumOfWalSync();
+
+	/**
+	 * Configured write buffer size in bytes, 0 if disabled
+	 * 
+	 * @return
+	 */
+	public long getMemTableSize();
+
+	/**
+	 * Bytes currently held in the write buffer
+	 * 
+	 * @return
+	 */
+	public long getMemTableBytes();
+
+	/**
+	 * Number of write buffer flushes to the leaves
+	 * 
+	 * @return
+	 */
+	public long getNumOfMemTableFlush();
+
+	/**
+	 * True if leaf pages are compressed
+	 * 
+	 * @return
+	 */
+	public boolean isCompressLeaf();
+
+	/**
+	 * Number of compressed leaf page writes
+	 * 
+	 * @return
+	 */
+	public long getNumOfCompressedLeaf();
+
+	/**
+	 * Leaf page format of the database, 1 sorted run and unsorted tail, 2 slotted
+	 * 
+	 * @return
+	 */
+	public int getPageFormat();
+
+	/**
+	 * Number of released data blocks ready to be reused
+	 * 
+	 * @return
+	 */
+	public long getNumOfFreeBlocks();
+
+	/**
+	 * Number of data blocks allocated from released space
+	 * 
+	 * @return
+	 */
+	public long getNumOfReusedBlocks();
+
+	/**
+	 * Values of that many bytes or more go to the value log, 0 if disabled
+	 * 
+	 * @return
+	 */
+	public int getVlogThreshold();
+
+	/**
+	 * Number of value log segments
+	 * 
+	 * @return
+	 */
+	public int getNumOfVlogSegments();
+
+	/**
+	 * Bytes appended to the value log since open
+	 * 
+	 * @return
+	 */
+	public long getVlogBytes();
+
+	/**
+	 * Number of value log segments collected since open
+	 * 
+	 * @return
+	 */
+	public long getNumOfVlogCollected();
+
+	/**
+	 * Live value bytes moved by the value log collector since open
+	 * 
+	 * @return
+	 */
+	public long getVlogRelocatedBytes();
+
+	/**
+	 * Leaves per second looked at by the background compactor, 0 if disabled
+	 * 
+	 * @return
+	 */
+	public int getCompactRate();
+
+	/**
+	 * Number of tombstones dropped from leaves since open
+	 * 
+	 * @return
+	 */
+	public long getNumOfPurgedTombstones();
+
+	/**
+	 * Number of leaves merged into their left neighbour since open
+	 * 
+	 * @return
+	 */
+	public long getNumOfMergedLeaves();
+
+	/**
+	 * Leaves per second looked at by the background defragmenter, 0 if disabled
+	 * 
+	 * @return
+	 */
+	public int getDefragRate();
+
+	/**
+	 * Number of leaves moved next to their key order predecessor since open
+	 * 
+	 * @return
+	 */
+	public long getNumOfRelocatedLeaves();
+
+	/**
+	 * Seconds between two branch snapshots, 0 if taken on close only
+	 * 
+	 * @return
+	 */
+	public int getSnapshotInterval();
+
+	/**
+	 * Number of branch snapshots written since open
+	 * 
+	 * @return
+	 */
+	public long getNumOfSnapshots();
+
+	/**
+	 * True if data files are preallocated in the background
+	 * 
+	 * @return
+	 */
+	public boolean isPreallocateFiles();
+
+	/**
+	 * Number of data files preallocated since open
+	 * 
+	 * @return
+	 */
+	public long getNumOfPreallocatedFiles();
+
+	/**
+	 * When writes sync the data files: blocks, always, interval, bytes or never
+	 * 
+	 * @return
+	 */
+	public String getSyncPolicy();
+
+	/**
+	 * Number of data file syncs which left metadata alone, the file had not grown
+	 * 
+	 * @return
+	 */
+	public long getNumOfDataOnlySync();
+
+	/**
+	 * Most leaves a sequential iterator reads ahead of itself, 0 if disabled
+	 * 
+	 * @return
+	 */
+	public int getReadAhead();
+
+	/**
+	 * Number of leaves read ahead for iterators since open
+	 * 
+	 * @return
+	 */
+	public long getNumOfReadAhead();
+
+	/**
+	 * Number of leaves read ahead and then found in page cache by an iterator
+	 * 
+	 * @return
+	 */
+	public long getNumOfReadAheadHit();
 }
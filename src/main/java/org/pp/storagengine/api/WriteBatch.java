@@ -0,0 +1,28 @@
+package org.pp.storagengine.api;
+
+public interface WriteBatch {
+	/**
+	 * Add a put operation to the batch. A later operation on the same key
+	 * in the same batch wins.
+	 * @param key
+	 * @param value
+	 * @return this batch
+	 */
+	public WriteBatch put(byte[] key, byte[] value);
+	/**
+	 * Add a delete operation to the batch
+	 * @param key
+	 * @return this batch
+	 */
+	public WriteBatch delete(byte[] key);
+	/**
+	 * Number of operations in the batch
+	 * @return
+	 */
+	public int size();
+	/**
+	 * Remove all operations, the batch can be reused
+	 */
+	public void clear();
+
+}
@@ -5,11 +5,20 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.pp.storagengine.api.imp.PageCache.Page;
 
 abstract class AbstractFileHandler {
 	/** Data file and related staff */
@@ -19,6 +28,18 @@ abstract class AbstractFileHandler {
 	/** Read only system context available to all component */
 	protected SysContext ctx;
 	protected Statistics stat;
+	/** Shared leaf page cache, null if disabled */
+	protected PageCache pCache;
+	/** Reopen attempts of a read channel closed under a reader */
+	private static final int MAX_REOPEN = 3;
+	/** Set once read channels are closed for good, no reader reopens them */
+	private volatile boolean channelsClosed = false;
+	/** Long lived read channels, one per data file shared by all readers */
+	private final ConcurrentMap<Integer, FileChannel> rChannels = new ConcurrentHashMap<>();
+	/** Data files are mapped in regions of that size, each once it is fully written */
+	private static final long MAP_STEP = 8L * 1024 * 1024;
+	/** Read only mappings of data file regions in mapped mode, by file and region */
+	private final ConcurrentMap<Long, MappedByteBuffer> mappings = new ConcurrentHashMap<>();
 
 	/**
 	 * Read LOB from disk
@@ -29,13 +50,227 @@ abstract class AbstractFileHandler {
 	 * @throws Exception
 	 */
 	protected byte[] readBlk(long bNo, int size) throws Exception {
-		byte[] data = new byte[size];
-		int fileNo = (int) (bNo >> 32);
-		String fName = getFileName(fileNo, dfPrefix, dfPostfix);
-		try (RandomAccessFile rf = new RandomAccessFile(fName, "r")) {
-			rf.seek(ctx.getBlockSize() * (int) bNo);
-			rf.read(data);
+		return readBlk(bNo, new byte[size]);
+	}
+
+	/**
+	 * Read a leaf page, served from page cache if possible. The returned
+	 * array is a private copy and can be modified by the caller
+	 * 
+	 * @param bNo
+	 * @return
+	 * @throws Exception
+	 */
+	protected byte[] readPage(long bNo) throws Exception {
+		if (pCache == null)
+			return readBlk(bNo, ctx.getBlockSize());
+		// cached page is immutable, copy it
+		byte[] data = new byte[ctx.getBlockSize()];
+		Page page = pinBlk(bNo);
+		try {
+			System.arraycopy(page.data(), 0, data, 0, data.length);
 			return data;
+		} finally {
+			unpinBlk(page);
+		}
+	}
+
+	/**
+	 * Read blocks from disk into the given buffer
+	 * 
+	 * @param bNo
+	 * @param data
+	 * @return
+	 * @throws Exception
+	 */
+	private byte[] readBlk(long bNo, byte[] data) throws Exception {
+		readAt(bNo, 0, ByteBuffer.wrap(data));
+		return data;
+	}
+
+	/**
+	 * Read the remaining bytes of dst, starting offset bytes after the given
+	 * block. Used for ranged LOB reads
+	 * 
+	 * @param bNo
+	 * @param offset
+	 * @param dst
+	 * @throws Exception
+	 */
+	protected void readAt(long bNo, long offset, ByteBuffer dst) throws Exception {
+		ByteBuffer slice = null;
+		// copy straight from the mapping, no read call
+		if (ctx.isMmapDataFiles() && (slice = mapBlk(bNo, (int) offset + dst.remaining())) != null) {
+			slice.position((int) offset);
+			dst.put(slice);
+			return;
+		}
+		int fileNo = (int) (bNo >> 32);
+		long pos = (long) ctx.getBlockSize() * (int) bNo + offset - dst.position();
+		int reopen = 0;
+		while (dst.hasRemaining()) {
+			try {
+				// positional read, no seek so the channel can be shared
+				if (readChannel(fileNo).read(dst, pos + dst.position()) < 0)
+					throw new IllegalStateException("Data file " + fileNo + " ends before "
+							+ (pos + dst.limit()) + ", block " + (int) bNo + " is cut short");
+			} catch (ClosedChannelException e) {
+				// closed by an interrupted reader, reopen unless it was us
+				if (Thread.currentThread().isInterrupted() || ++reopen > MAX_REOPEN)
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Get the shared read channel of a data file, open it if required
+	 * 
+	 * @param fileNo
+	 * @return
+	 * @throws Exception
+	 */
+	protected FileChannel readChannel(int fileNo) throws Exception {
+		FileChannel fc = rChannels.get(fileNo);
+		if (fc != null && fc.isOpen())
+			return fc;
+		synchronized (rChannels) {
+			if (channelsClosed)
+				throw new IllegalStateException("Engine is closed, data file " + fileNo + " can not be read");
+			fc = rChannels.get(fileNo);
+			if (fc == null || !fc.isOpen()) {
+				String fName = getFileName(fileNo, dfPrefix, dfPostfix);
+				fc = FileChannel.open(Paths.get(fName), StandardOpenOption.READ);
+				rChannels.put(fileNo, fc);
+				stat.numOfReadHandles = rChannels.size();
+			}
+			return fc;
+		}
+	}
+
+	/**
+	 * Close all read channels for good, readers still running fail instead
+	 * of opening them again
+	 * 
+	 * @throws Exception
+	 */
+	protected void closeReadChannels() throws Exception {
+		synchronized (rChannels) {
+			channelsClosed = true;
+			for (FileChannel fc : rChannels.values())
+				fc.close();
+			rChannels.clear();
+			stat.numOfReadHandles = 0;
+			mappings.clear();
+			stat.numOfMappedFiles = 0;
+		}
+	}
+
+	/**
+	 * Get a leaf page pinned in cache, loading it on a miss. The page content
+	 * must not be modified and unpinBlk() must be called once done with it.
+	 * 
+	 * @param bNo
+	 * @return
+	 * @throws Exception
+	 */
+	protected Page pinBlk(long bNo) throws Exception {
+		ByteBuffer slice = null;
+		if (ctx.isMmapDataFiles() && (slice = mapBlk(bNo, ctx.getBlockSize())) != null)
+			return new Page(bNo, slice);
+		if (pCache == null)
+			return new Page(bNo, readBlk(bNo, new byte[ctx.getBlockSize()]));
+		Page page = pCache.pin(bNo);
+		if (page != null)
+			return page;
+		return pCache.install(bNo, readBlk(bNo, pCache.alloc()));
+	}
+
+	/**
+	 * Get a leaf page pinned for read ahead. A cached page is not counted as
+	 * a hit, a page read from disk is installed without being hit yet. A
+	 * mapped page is read in by the OS once its links are read
+	 * 
+	 * @param bNo
+	 * @return
+	 * @throws Exception
+	 */
+	protected Page aheadBlk(long bNo) throws Exception {
+		ByteBuffer slice = null;
+		if (ctx.isMmapDataFiles() && (slice = mapBlk(bNo, ctx.getBlockSize())) != null) {
+			stat.numOfReadAhead.incrementAndGet();
+			return new Page(bNo, slice);
+		}
+		Page page = pCache != null ? pCache.peek(bNo) : null;
+		if (page != null)
+			return page;
+		stat.numOfReadAhead.incrementAndGet();
+		// without page cache the OS cache keeps it
+		if (pCache == null)
+			return new Page(bNo, readBlk(bNo, new byte[ctx.getBlockSize()]));
+		return pCache.install(bNo, readBlk(bNo, pCache.alloc()), true);
+	}
+
+	/**
+	 * Release a page obtained through pinBlk()
+	 * 
+	 * @param page
+	 */
+	protected void unpinBlk(Page page) {
+		if (pCache != null && !page.isLive())
+			pCache.unpin(page);
+	}
+
+	/**
+	 * Return a read only slice of the mapped data file covering the given
+	 * blocks, null if they are not in a single mapped region. A region is
+	 * mapped once the file covers all of it and never remapped, blocks of
+	 * the region being written are read through the channel
+	 * 
+	 * @param bNo
+	 * @param size
+	 * @return
+	 * @throws Exception
+	 */
+	protected ByteBuffer mapBlk(long bNo, int size) throws Exception {
+		int fileNo = (int) (bNo >> 32);
+		long pos = (long) ctx.getBlockSize() * (int) bNo;
+		long region = pos / MAP_STEP;
+		if ((pos + size - 1) / MAP_STEP != region)
+			return null;
+		MappedByteBuffer mbb = mappings.get((long) fileNo << 32 | region);
+		if (mbb == null && (mbb = map(fileNo, region)) == null)
+			return null;
+		int off = (int) (pos - region * MAP_STEP);
+		if (off + size > mbb.capacity())
+			return null;
+		ByteBuffer slice = mbb.duplicate();
+		slice.limit(off + size);
+		slice.position(off);
+		return slice.slice();
+	}
+
+	/**
+	 * Map a region of a data file if the file covers all of it
+	 * 
+	 * @param fileNo
+	 * @param region
+	 * @return null if it is still being written
+	 * @throws Exception
+	 */
+	private MappedByteBuffer map(int fileNo, long region) throws Exception {
+		long from = region * MAP_STEP, to = Math.min(from + MAP_STEP, ctx.getMFileSize());
+		FileChannel fc = readChannel(fileNo);
+		if (to <= from || fc.size() < to)
+			return null;
+		synchronized (mappings) {
+			long key = (long) fileNo << 32 | region;
+			MappedByteBuffer mbb = mappings.get(key);
+			if (mbb == null) {
+				mbb = fc.map(MapMode.READ_ONLY, from, to - from);
+				mappings.put(key, mbb);
+				stat.numOfMappedFiles = mappings.size();
+			}
+			return mbb;
 		}
 	}
 
@@ -47,7 +282,7 @@ abstract class AbstractFileHandler {
 	 * @throws Exception
 	 */
 	protected ByteBuffer readBlk(long blkId) throws Exception {
-		return ByteBuffer.wrap(readBlk(blkId, ctx.getBlockSize()));
+		return ByteBuffer.wrap(readPage(blkId));
 	}
 
 	/** create file name */
@@ -136,6 +371,18 @@ abstract class AbstractFileHandler {
 		sync(rF.getChannel());
 	}
 
+	/** sync and close a data file */
+	protected void close(RandFileCacheEntry rf) throws Exception {
+		sync(rf);
+		rf.getRf().close();
+	}
+
+	/** sync a data file, its metadata only if it has grown */
+	protected void sync(RandFileCacheEntry rf) throws Exception {
+		if (!rf.sync())
+			stat.numOfDataOnlySync++;
+	}
+
 	protected void sync(FileChannel fc) throws Exception {
 		fc.force(true);
 	}
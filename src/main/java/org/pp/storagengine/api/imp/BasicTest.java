@@ -3,7 +3,10 @@ import static org.pp.storagengine.api.imp.Util.GB;
 import static org.pp.storagengine.api.imp.Util.MB;
 import static org.pp.storagengine.api.imp.Util.KB;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -12,18 +15,23 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ThreadLocalRandom;
 
 import org.pp.storagengine.api.KVEngine;
 import org.pp.storagengine.api.KVEntry;
 import org.pp.storagengine.api.KVIterator;
+import org.pp.storagengine.api.LobReader;
 import org.pp.storagengine.api.StatisticsMXBean;
+import org.pp.storagengine.api.WriteBatch;
+import org.pp.storagengine.api.imp.KVEngineImp.KVEntryImp;
 
 public class BasicTest {
 	// Maximum database size to test
@@ -178,6 +186,37 @@ public class BasicTest {
 		readAll(getLowerMidKey(), getUpperMidKey(), false, "Iterate over start (?) - end(?) ascending order");
 		// Iterate over start (?) - end(?) descending order...
 		readAll(getUpperMidKey(), getLowerMidKey(), true, "Iterate over start (?) - end(?) descending order");
+		// Iterate over keys only...
+		readKeys(null, null, false, "Iterate over all keys in ascending order");
+		readKeys(getUpperMidKey(), getLowerMidKey(), true, "Iterate over start (?) - end(?) keys in descending order");
+	}
+
+	// Iterate over keys only, no value is returned
+	private static void readKeys(byte[] from, byte[] to, boolean rev, String msg) throws Exception {
+		SortedMap<byte[], byte[]> nMap = rev ? map.descendingMap() : map;
+		if (from != null && to != null)
+			nMap = nMap.subMap(from, to);
+		else if (from != null)
+			nMap = nMap.tailMap(from);
+		else if (to != null)
+			nMap = nMap.headMap(to);
+		Iterator<byte[]> mItr = nMap.keySet().iterator();
+		KVIterator itr = db.iterator(from, to, rev, true);
+		int count = 0;
+		long t = System.nanoTime();
+		try {
+			while (itr.hasNext() && mItr.hasNext()) {
+				KVEntry kvEntry = itr.next();
+				if (!Arrays.equals(mItr.next(), kvEntry.getKey()) || kvEntry.getValue() != null)
+					throw new RuntimeException("Key only entry doesn't match!");
+				count++;
+			}
+		} finally {
+			itr.close();
+		}
+		if (count != nMap.size())
+			throw new RuntimeException("Count doesn't match!");
+		System.out.print(msg + ": " + ((System.nanoTime() - t) / mSec) + "," + count + "\n");
 	}
 
 	// Iterate over records in random order
@@ -265,6 +304,110 @@ public class BasicTest {
 		System.out.println("\n" + ne + ", Tot time to put in (ms): " + (tot / mSec));
 	}
 
+	// Put random records in batches
+	private static void batchPut() throws Exception {
+		byte[] key, value;
+		WriteBatch batch = db.newWriteBatch();
+		Map<byte[], byte[]> pending = new TreeMap<>(myComp);
+		long t = 0, tot = 0, size = dbSize / 8 ;
+		int ne = 0, prog = 0, lastProg = 0;
+		for (long sz = 0; sz < size; sz += (key.length + value.length), ne++) {
+			value = new byte[vbytes[rand.nextInt(0, vbytes.length)]];
+			key = genKey();
+			rand.nextBytes(value);
+			batch.put(key, value);
+			pending.put(key, getDigest(key, value));
+			if (batch.size() < 256)
+				continue;
+			t = System.nanoTime();
+			db.write(batch);
+			tot += (System.nanoTime() - t);
+			map.putAll(pending);
+			pending.clear();
+			batch.clear();
+			prog = (int) ((100.0f * sz) / size);
+			if (prog > lastProg) {
+				System.out.print("\rBatch put in progress..." + prog + "%");
+				lastProg = prog;
+			}
+		}
+		db.write(batch);
+		map.putAll(pending);
+		System.out.println("\n" + ne + ", Tot time to batch put in (ms): " + (tot / mSec));
+	}
+
+	// Put random records asynchronously, every 64th one durable
+	private static void asyncPut() throws Exception {
+		byte[] key, value;
+		List<CompletableFuture<KVEntry>> futures = new ArrayList<>();
+		long t = System.nanoTime(), size = dbSize / 16 ;
+		int ne = 0;
+		for (long sz = 0; sz < size; sz += (key.length + value.length), ne++) {
+			value = new byte[vbytes[rand.nextInt(0, vbytes.length)]];
+			key = genKey();
+			rand.nextBytes(value);
+			futures.add(db.putAsync(key, value, ne % 64 == 0));
+		}
+		for (CompletableFuture<KVEntry> future : futures) {
+			KVEntry entry = future.get();
+			map.put(entry.getKey(), getDigest(entry.getKey(), entry.getValue()));
+		}
+		// invalid keys fail the future, nothing is thrown
+		if (!db.putAsync(null, new byte[1]).isCompletedExceptionally()
+				|| !db.deleteAsync(new byte[0]).isCompletedExceptionally())
+			throw new RuntimeException("Invalid key is not failing the future!");
+		System.out.println(ne + ", Tot time to async put in (ms): " + ((System.nanoTime() - t) / mSec));
+	}
+
+	// Bulk load sorted records above every key put so far
+	private static void bulkLoad() throws Exception {
+		// random keys are made of bytes below 20
+		byte prefix = (byte) (map.isEmpty() ? 20 : Math.max(20, (map.lastKey()[0] & 0xff) + 1));
+		List<KVEntry> entries = new ArrayList<>();
+		long size = dbSize / 16;
+		for (long sz = 0, i = 0; sz < size; i++) {
+			byte[] key = ByteBuffer.allocate(9).put(prefix).putLong(i).array();
+			byte[] value = new byte[vbytes[rand.nextInt(0, vbytes.length)]];
+			rand.nextBytes(value);
+			entries.add(new KVEntryImp(key, value, false));
+			map.put(key, getDigest(key, value));
+			sz += key.length + value.length;
+		}
+		long t = System.nanoTime();
+		long ne = db.bulkLoad(entries.iterator(), rand.nextInt(50, 101));
+		if (ne != entries.size())
+			throw new RuntimeException("Bulk loaded entries are not matching!");
+		System.out.println(ne + ", Tot time to bulk load in (ms): " + ((System.nanoTime() - t) / mSec));
+	}
+
+	// Put large records from streams, read them back in ranges
+	private static void streamPut() throws Exception {
+		long t = System.nanoTime();
+		int ne = 64;
+		for (int i = 0; i < ne; i++) {
+			byte[] key = genKey();
+			byte[] value = new byte[rand.nextInt(minLobSz, 256 * KB)];
+			rand.nextBytes(value);
+			db.put(key, new ByteArrayInputStream(value), value.length);
+			map.put(key, getDigest(key, value));
+			try (LobReader lob = db.openLob(key)) {
+				if (lob.length() != value.length)
+					throw new RuntimeException("LOB length is not matching!");
+				// random range
+				int pos = rand.nextInt(0, value.length), len = rand.nextInt(1, value.length - pos + 1);
+				if (!Arrays.equals(lob.read(pos, len), Arrays.copyOfRange(value, pos, pos + len)))
+					throw new RuntimeException("LOB range is not matching!");
+				// whole value through the stream
+				byte[] read = new byte[value.length];
+				InputStream in = lob.newInputStream();
+				for (int n = 0, r; n < read.length && (r = in.read(read, n, read.length - n)) > 0; n += r);
+				if (!Arrays.equals(read, value))
+					throw new RuntimeException("LOB stream is not matching!");
+			}
+		}
+		System.out.println(ne + ", Tot time to stream put in (ms): " + ((System.nanoTime() - t) / mSec));
+	}
+
 	// Delete random records
 	private static void delete() throws Exception {
 		long t = 0, tot = 0, size = dbSize / 4 ;
@@ -338,6 +481,22 @@ public class BasicTest {
 		sbldr.append("Number of load : " + mbean.getNumOfLoad() + "\n");
 		sbldr.append("Number of sync : " + mbean.getNumOfSync() + "\n");
 		sbldr.append("Sync after number of write : " + mbean.getMaxBlkSync() + "\n");
+		sbldr.append("Page cache size (MB): " + mbean.getPageCacheSize() / MB + "\n");
+		sbldr.append("Page cache hit/miss : " + mbean.getNumOfCacheHit() + "/" + mbean.getNumOfCacheMiss() + "\n");
+		sbldr.append("Open read/write handles : " + mbean.getNumOfReadHandles() + "/" + mbean.getNumOfWriteHandles() + "\n");
+		sbldr.append("Mapped data file regions : " + mbean.getNumOfMappedFiles() + "\n");
+		sbldr.append("WAL appends/syncs : " + mbean.getNumOfWalAppend() + "/" + mbean.getNumOfWalSync() + "\n");
+		sbldr.append("Write buffer bytes/flushes : " + mbean.getMemTableBytes() + "/" + mbean.getNumOfMemTableFlush() + "\n");
+		sbldr.append("Compressed leaf writes : " + mbean.getNumOfCompressedLeaf() + "\n");
+		sbldr.append("Leaf page format : " + mbean.getPageFormat() + "\n");
+		sbldr.append("Free / reused blocks : " + mbean.getNumOfFreeBlocks() + " / " + mbean.getNumOfReusedBlocks() + "\n");
+		sbldr.append("Value log segments / bytes / collected / relocated : " + mbean.getNumOfVlogSegments() + " / " + mbean.getVlogBytes() + " / " + mbean.getNumOfVlogCollected() + " / " + mbean.getVlogRelocatedBytes() + "\n");
+		sbldr.append("Purged tombstones / merged leaves : " + mbean.getNumOfPurgedTombstones() + " / " + mbean.getNumOfMergedLeaves() + "\n");
+		sbldr.append("Relocated leaves : " + mbean.getNumOfRelocatedLeaves() + "\n");
+		sbldr.append("Branch snapshots : " + mbean.getNumOfSnapshots() + "\n");
+		sbldr.append("Preallocated data files : " + mbean.getNumOfPreallocatedFiles() + "\n");
+		sbldr.append("Sync policy / data only syncs : " + mbean.getSyncPolicy() + " / " + mbean.getNumOfDataOnlySync() + "\n");
+		sbldr.append("Read ahead window / leaves / hits : " + mbean.getReadAhead() + " / " + mbean.getNumOfReadAhead() + " / " + mbean.getNumOfReadAheadHit() + "\n");
 		sbldr.append("Number of writes per sync : " + (mbean.getNumOfActRecs() + mbean.getNumOfDelRecs()) / mbean.getNumOfSync() + "\n");
 		sbldr.append("Number of writes per load : " + (mbean.getNumOfActRecs() + mbean.getNumOfDelRecs()) / mbean.getNumOfLoad() + "\n") ;
 		sbldr.append("################################# Statistics End #####################################" );	
@@ -442,6 +601,10 @@ public class BasicTest {
 			randomGet();
 			doItr();
 			put();
+			batchPut();
+			asyncPut();
+			streamPut();
+			bulkLoad();
 			delete();
 			get();
 			printState();
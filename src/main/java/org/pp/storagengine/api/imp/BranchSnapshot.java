@@ -0,0 +1,92 @@
+package org.pp.storagengine.api.imp;
+
+import static org.pp.storagengine.api.imp.Util.atoRename;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.pp.storagengine.api.imp.KVEngineImp.KVEntryImp;
+
+/**
+ * Snapshot of the lowest branch level, the first key and block of every
+ * leaf but the first one, in key order. It is taken once the tree log is
+ * synced and names the tree log segment started right after it, so that
+ * opening reads the snapshot and replays only that segment and later ones.
+ * A snapshot with a wrong checksum is ignored.
+ *
+ * File format: [tree log segment(4)][count(4)][key len(4)][key][block(8)]....[crc32(4)]
+ * @author prasantsmac
+ *
+ */
+class BranchSnapshot {
+	/** Snapshot file name */
+	private static final String snapFile = File.separator + ".bsn";
+	/** Snapshot file */
+	private final File file;
+
+	BranchSnapshot(SysContext ctx) {
+		this.file = new File(ctx.getRootDir() + snapFile);
+	}
+
+	/**
+	 * Read the snapshot
+	 * @param entries - leaf entries in key order
+	 * @return tree log segment of the snapshot, -1 if there is no valid one
+	 */
+	int load(List<KVEntryImp> entries) {
+		if (!file.exists())
+			return -1;
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(
+				new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc))) {
+			int seg = in.readInt();
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				entries.add(new KVEntryImp(key, in.readLong(), 0));
+			}
+			int sum = (int) crc.getValue();
+			if (in.readInt() == sum)
+				return seg;
+		} catch (Exception e) {
+			// torn or unreadable, replay the whole tree log
+		}
+		entries.clear();
+		return -1;
+	}
+
+	/**
+	 * Write a snapshot, the tree log segments before seg must be synced
+	 * @param entries - leaf entries in key order
+	 * @param seg - first tree log segment after the snapshot
+	 * @throws Exception
+	 */
+	void save(List<KVEntryImp> entries, int seg) throws Exception {
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		CRC32 crc = new CRC32();
+		try (FileOutputStream fOut = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fOut), crc));
+			out.writeInt(seg);
+			out.writeInt(entries.size());
+			for (KVEntryImp entry : entries) {
+				out.writeInt(entry.key.length);
+				out.write(entry.key);
+				out.writeLong((long) entry.value);
+			}
+			out.flush();
+			new DataOutputStream(fOut).writeInt((int) crc.getValue());
+			fOut.getFD().sync();
+		}
+		atoRename(tmp.getAbsolutePath(), file.getAbsolutePath());
+	}
+}
@@ -0,0 +1,200 @@
+package org.pp.storagengine.api.imp;
+
+import static org.pp.storagengine.api.imp.AbstractFileHandler.dfPostfix;
+import static org.pp.storagengine.api.imp.AbstractFileHandler.dfPrefix;
+import static org.pp.storagengine.api.imp.KVLog.println;
+import static org.pp.storagengine.api.imp.Util.MB;
+import static org.pp.storagengine.api.imp.Util.atoRename;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Preallocates data files ahead of the writer. The next data file is
+ * written full of zeros as a spare in the background and renamed into
+ * place, so the writer finds it at full size and never creates or extends
+ * a file. As the length of a data file no longer tells its last block in
+ * use, a reserved tail is kept in the allocation file. It is moved a step
+ * ahead of the writer, in the background as well, and always before a
+ * block past it is handed out. Close saves the exact tail, after a crash
+ * the reserved blocks never used are lost like other free blocks.
+ *
+ * File format: [reserved tail reference(8)]
+ * @author prasantsmac
+ *
+ */
+class DataFileAllocator implements Runnable {
+	/** Allocation file name and spare postfix */
+	private static final String allocFile = File.separator + ".alloc";
+	private static final String sparePostfix = ".tmp";
+	/** Pause between two checks */
+	private static final long IDLE = 1000;
+	/** Zeros written at a time */
+	private static final int CHUNK = MB;
+	/** System context */
+	private final SysContext ctx;
+	/** Statistics */
+	private final Statistics stat;
+	/** Allocation file */
+	private final FileChannel fc;
+	/** Blocks reserved at a time */
+	private final int step;
+	/** Allocator thread, null until started */
+	private Thread thread;
+	/** Stop indicator */
+	private volatile boolean closed = false;
+	/** Tail of the writer and reserved tail */
+	private volatile long tail, reserved = -1L;
+
+	DataFileAllocator(SysContext ctx, Statistics stat) throws Exception {
+		this.ctx = ctx;
+		this.stat = stat;
+		this.step = Math.max(1, Math.min(ctx.getMBlockFile(), MB / ctx.getBlockSize()));
+		this.fc = FileChannel.open(new File(ctx.getRootDir() + allocFile).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Reserved tail saved by the last run
+	 * @return -1 if there is none
+	 * @throws Exception
+	 */
+	long load() throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		while (buf.hasRemaining())
+			if (fc.read(buf, buf.position()) < 0)
+				return -1L;
+		return reserved = buf.getLong(0);
+	}
+
+	/**
+	 * Preallocate the first data file of a new database
+	 * @throws Exception
+	 */
+	void create() throws Exception {
+		prepare(0);
+	}
+
+	/**
+	 * Start preallocating after the writer's tail
+	 * @param tail
+	 * @throws Exception
+	 */
+	void start(long tail) throws Exception {
+		allocated(tail);
+		thread = new Thread(this, "KVEngine-alloc");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * The writer moved its tail, reserve further unless done already.
+	 * Caller must hold the write lock
+	 * @param end - new tail
+	 * @throws Exception
+	 */
+	synchronized void allocated(long end) throws Exception {
+		boolean moved = (int) (end >> 32) != (int) (tail >> 32);
+		tail = end;
+		if (end > reserved)
+			reserve(ahead(end, step));
+		// keep ahead, a spare is needed after a new file
+		if (moved || reserved < ahead(end, step / 2))
+			notifyAll();
+	}
+
+	/**
+	 * Stop preallocating and save the exact tail
+	 * @throws Exception
+	 */
+	void close() throws Exception {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		if (thread != null)
+			thread.join();
+		reserve(tail);
+		fc.close();
+	}
+
+	@Override
+	public void run() {
+		while (!closed) {
+			try {
+				synchronized (this) {
+					if (reserved < ahead(tail, step / 2))
+						reserve(ahead(tail, step));
+				}
+				int next = (int) (tail >> 32) + 1;
+				if (!file(next, "").exists())
+					prepare(next);
+			} catch (Throwable t) {
+				println("Data file allocator error: " + t);
+			}
+			synchronized (this) {
+				try {
+					if (!closed)
+						wait(IDLE);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a data file full of zeros as a spare, rename it into place
+	 * unless the writer got there first
+	 * @param fileNo
+	 * @throws Exception
+	 */
+	private void prepare(int fileNo) throws Exception {
+		File spare = file(fileNo, sparePostfix);
+		try (FileOutputStream out = new FileOutputStream(spare)) {
+			byte[] zeros = new byte[CHUNK];
+			for (long left = ctx.getMFileSize(); left > 0 && !closed; left -= CHUNK)
+				out.write(zeros, 0, (int) Math.min(left, CHUNK));
+			out.getFD().sync();
+		}
+		synchronized (this) {
+			if (closed || (int) (tail >> 32) >= fileNo && fileNo > 0 || file(fileNo, "").exists()) {
+				spare.delete();
+				return;
+			}
+			atoRename(spare.getAbsolutePath(), file(fileNo, "").getAbsolutePath());
+			stat.numOfPreallocatedFiles++;
+		}
+	}
+
+	/**
+	 * Save a reserved tail
+	 * @param ref
+	 * @throws Exception
+	 */
+	private void reserve(long ref) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(8).putLong(0, ref);
+		while (buf.hasRemaining())
+			fc.write(buf, buf.position());
+		fc.force(false);
+		reserved = ref;
+	}
+
+	/**
+	 * Reference n blocks after a tail, within its data file
+	 * @param ref
+	 * @param n
+	 * @return
+	 */
+	private long ahead(long ref, int n) {
+		int blk = (int) Math.min(ctx.getMBlockFile(), (long) (int) ref + n);
+		return ref & 0xFFFFFFFF00000000L | blk & 0xFFFFFFFFL;
+	}
+
+	private File file(int fileNo, String postfix) {
+		return new File(ctx.getRootDir() + dfPrefix + fileNo + dfPostfix + postfix);
+	}
+}
@@ -0,0 +1,175 @@
+package org.pp.storagengine.api.imp;
+
+import static org.pp.storagengine.api.imp.Util.atoRename;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Free blocks of the data files, one bitmap per data file (set bit = free).
+ * A released block is not reused right away, it waits two checkpoints so
+ * that the leaf no longer pointing at it is durable, and until the readers
+ * which might have loaded the old entry are done with it. The map is saved on close only, after a
+ * crash it starts empty and the unknown free blocks are simply not reused.
+ * Used by the writer only.
+ *
+ * File format: [file no(4)][words(4)][long....]....
+ * @author prasantsmac
+ *
+ */
+class FreeSpaceMap {
+	/** Map file name */
+	private static final String fsmFile = File.separator + ".fsm";
+	/** Free blocks by data file */
+	private final TreeMap<Integer, BitSet> free = new TreeMap<>();
+	/** Released since last checkpoint, [ref, number of blocks, epoch] */
+	private List<long[]> pending = new ArrayList<>();
+	/** Released before last checkpoint */
+	private List<long[]> quarantined = new ArrayList<>();
+	/** Map file */
+	private final File file;
+	/** Statistics */
+	private final Statistics stat;
+
+	/**
+	 * Open the map
+	 * @param ctx
+	 * @param stat
+	 * @param load - false to start empty
+	 * @throws Exception
+	 */
+	FreeSpaceMap(SysContext ctx, Statistics stat, boolean load) throws Exception {
+		this.file = new File(ctx.getRootDir() + fsmFile);
+		this.stat = stat;
+		if (load && file.exists())
+			load();
+		stat.numOfFreeBlocks = count();
+	}
+
+	/**
+	 * Release contiguous blocks
+	 * @param ref - first block
+	 * @param nb
+	 */
+	void release(long ref, int nb) {
+		pending.add(new long[] { ref, nb, 0 });
+	}
+
+	/**
+	 * Allocate contiguous free blocks, lowest file first
+	 * @param nb
+	 * @return first block, -1 if there is no such run
+	 */
+	long alloc(int nb) {
+		for (Map.Entry<Integer, BitSet> e : free.entrySet()) {
+			BitSet bits = e.getValue();
+			for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i)) {
+				int end = bits.nextClearBit(i);
+				if (end - i >= nb) {
+					bits.clear(i, i + nb);
+					stat.numOfFreeBlocks -= nb;
+					stat.numOfReusedBlocks += nb;
+					return (long) e.getKey() << 32 | i & 0xFFFFFFFFL;
+				}
+				i = end;
+			}
+		}
+		return -1L;
+	}
+
+	/**
+	 * Allocate a given block if it is free
+	 * @param ref
+	 * @return false if the block is in use
+	 */
+	boolean take(long ref) {
+		BitSet bits = free.get((int) (ref >> 32));
+		int bNo = (int) ref;
+		if (bits == null || !bits.get(bNo))
+			return false;
+		bits.clear(bNo);
+		stat.numOfFreeBlocks--;
+		stat.numOfReusedBlocks++;
+		return true;
+	}
+
+	/**
+	 * Data files were synced, blocks released two checkpoints ago become free
+	 * unless a reader of their epoch or an older one is still running
+	 * @param epoch - epoch ended by this checkpoint
+	 * @param oldest - epoch of the oldest running reader
+	 */
+	void checkpoint(long epoch, long oldest) {
+		List<long[]> held = new ArrayList<>();
+		for (long[] run : quarantined) {
+			if (run[2] >= oldest)
+				held.add(run);
+			else
+				add(run);
+		}
+		for (long[] run : pending) {
+			run[2] = epoch;
+			held.add(run);
+		}
+		quarantined = held;
+		pending = new ArrayList<>();
+	}
+
+	/**
+	 * Nobody can use released blocks anymore, free them all and save the map
+	 * @throws Exception
+	 */
+	void close() throws Exception {
+		checkpoint(0, Long.MAX_VALUE);
+		checkpoint(0, Long.MAX_VALUE);
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			for (Map.Entry<Integer, BitSet> e : free.entrySet()) {
+				long[] words = e.getValue().toLongArray();
+				out.writeInt(e.getKey());
+				out.writeInt(words.length);
+				for (long w : words)
+					out.writeLong(w);
+			}
+		}
+		atoRename(tmp.getAbsolutePath(), file.getAbsolutePath());
+	}
+
+	private void add(long[] run) {
+		int fileNo = (int) (run[0] >> 32), bNo = (int) run[0];
+		BitSet bits = free.get(fileNo);
+		if (bits == null)
+			free.put(fileNo, bits = new BitSet());
+		bits.set(bNo, bNo + (int) run[1]);
+		stat.numOfFreeBlocks += run[1];
+	}
+
+	private void load() throws Exception {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (in.available() > 0) {
+				int fileNo = in.readInt();
+				long[] words = new long[in.readInt()];
+				for (int i = 0; i < words.length; i++)
+					words[i] = in.readLong();
+				free.put(fileNo, BitSet.valueOf(words));
+			}
+		}
+	}
+
+	private long count() {
+		long n = 0;
+		for (BitSet bits : free.values())
+			n += bits.cardinality();
+		return n;
+	}
+}
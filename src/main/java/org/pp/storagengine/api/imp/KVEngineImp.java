@@ -2,27 +2,47 @@ package org.pp.storagengine.api.imp;
 
 import static java.lang.Math.abs;
 import static java.util.Arrays.binarySearch;
-import static org.pp.storagengine.api.imp.KVLog.print;
 import static org.pp.storagengine.api.imp.KVLog.println;
-import static org.pp.storagengine.api.imp.Util.atoRename;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
 
 import org.pp.storagengine.api.KVEngine;
 import org.pp.storagengine.api.KVEntry;
 import org.pp.storagengine.api.KVIterator;
+import org.pp.storagengine.api.LobReader;
 import org.pp.storagengine.api.StatisticsMXBean;
+import org.pp.storagengine.api.WriteBatch;
+import org.pp.storagengine.api.imp.LRUCache.LRUNode;
+import org.pp.storagengine.api.imp.PageCache.Page;
 
 public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	/** Root node... */
@@ -31,6 +51,8 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	private volatile long right;
 	/** Comparators... */
 	private final EComparator eComp ;		
+	/** In place leaf search for point lookups */
+	private final LeafSearch lSearch;
 	/** Write lock, to allow one writer at time.. */
 	private final Lock wLoc = new ReentrantLock(true); 
 	
@@ -39,8 +61,10 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	private int dBlkNo = 1;
 	/** Current write counter */
 	private int curBlkSync = 0;
-	/** Tree log file */
-	private RandomAccessFile tlFile;	
+	/** Tree log */
+	private TreeLog tlog;	
+	/** Data file preallocator, null if disabled */
+	private DataFileAllocator allocator;
 	/** File Cache */
 	private final LRUCache<IntCacheEntry, RandFileCacheEntry> fCache;
 	/** Block locker */
@@ -49,16 +73,60 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	private File lock = null;
 	/** Load Indicator */
 	private boolean load = true;
+	/** Write ahead log, null if disabled */
+	private WriteAheadLog wal;
+	/** Log of write batches only, null unless the write ahead log is disabled */
+	private WriteAheadLog batchLog;
+	/** Writer of asynchronous operations, started on first use */
+	private volatile AsyncWriter writer;
+	/** Asynchronous operations waiting for the next sync */
+	private final Queue<AsyncOp> syncWaiters = new ConcurrentLinkedQueue<>();
+	/** Write buffer, null if disabled */
+	private volatile MemTable mem;
+	/** Write buffer being flushed to the leaves */
+	private volatile MemTable imm;
+	/** Leaf compressor, used by the writer only */
+	private final LZCodec codec = new LZCodec();
+	/** Free blocks of the data files */
+	private FreeSpaceMap fsm;
+	/** Running readers, released space is reused once they are done */
+	private final ReaderEpochs readers = new ReaderEpochs();
+	/** Streamed LOBs are written in chunks of that size */
+	private static final int LOB_CHUNK = 64 * 1024;
+	/** Value log, null if disabled */
+	private ValueLog vlog;
+	/** Value log collector, null if disabled */
+	private VlogCollector collector;
+	/** Leaf compactor, null if disabled */
+	private LeafCompactor compactor;
+	/** Leaf defragmenter, null if disabled */
+	private LeafRelocator relocator;
+	/** Background sync, null if the policy syncs inline or never */
+	private Flusher flusher;
+	/** Last checkpoint started and last one completed */
+	private long ckNo, ckDone;
+	/** Threads reading leaves ahead of iterators, null if disabled */
+	private ExecutorService aheadPool;
+	/** Branch snapshot and time of the last one */
+	private BranchSnapshot snap;
+	private volatile long snapTime = System.currentTimeMillis();
 	
 	public KVEngineImp(String fileOrDir, Properties options, Comparator<byte[]> comp) throws Exception {
 		/** Comparator check */
 		if (comp == null) throw new Exception("Comparator can not be null");
 		eComp = new EComparator(comp);		
+		lSearch = new LeafSearch(comp);
 		/** Initialise SysContext & Statistics */
 		super.ctx = new SysContext(fileOrDir, options);
 		super.stat = Statistics.register(ctx);		
+		/** Initialise leaf page cache if enabled, mapped files rely on OS cache */
+		if (!ctx.isMmapDataFiles() && ctx.getPageCacheSize() >= ctx.getBlockSize())
+			super.pCache = new PageCache(ctx.getPageCacheSize(), ctx.getBlockSize(), stat);
 		/** Initialise file cache and auto sync */
 		fCache = new LRUCache<>(ctx.getMaxBlkSync(), -1L);
+		/** Initialise write buffer if enabled */
+		if (ctx.getMemTableSize() > 0)
+			mem = new MemTable(eComp);
 		/** load BTree now.... */
 		long time = System.currentTimeMillis();
 		lock = initBtree();
@@ -66,6 +134,31 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		load = false;
 		// find right most block
 		right = findLastBlock(rNode.root, rNode.ht);
+		// redo whatever was logged after last checkpoint, write batches only
+		// if the write ahead log is disabled
+		initWal();
+		// collect the value log in the background
+		if (vlog != null)
+			collector = new VlogCollector();
+		// purge tombstones and merge leaves in the background
+		if (ctx.getCompactRate() > 0)
+			compactor = new LeafCompactor();
+		// restore sequential leaf order in the background
+		if (ctx.getDefragRate() > 0)
+			relocator = new LeafRelocator();
+		// sync in the background, writers only ask for it
+		if (!"always".equals(ctx.getSyncPolicy()) && !"never".equals(ctx.getSyncPolicy()))
+			flusher = new Flusher();
+		// read leaves ahead of sequential iterators
+		if (ctx.getReadAhead() > 0)
+			aheadPool = Executors.newFixedThreadPool(ctx.getReadAheadThreads(), r -> {
+				Thread t = new Thread(r, "KVEngine-readahead");
+				t.setDaemon(true);
+				return t;
+			});
+		// keep the next data file ready in the background
+		if (allocator != null)
+			allocator.start((long) dataFileNum << 32 | dBlkNo & 0xFFFFFFFFL);
 		// print loading time
 		println("Time to Load: " + (System.currentTimeMillis() - time));				
 	}
@@ -78,95 +171,138 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		
 		/** Open lock file if exist */
 		File lock = new File(ctx.getRootDir() + File.separator + ".lock");
-		/** Check if tree log file exist or not */
-		File tlf = new File(ctx.getRootDir() + File.separator + ".tlog");
+		tlog = new TreeLog(ctx);
+		// a database created before tree log segments is upgraded on load
+		boolean upgrade = TreeLog.legacy(ctx);
 		// database don't exist, create a new one
-		if (!tlf.exists()) { 
+		if (TreeLog.first(ctx) < 0 && !upgrade) { 
+			// first data file at full size
+			if (ctx.isPreallocateFiles()) {
+				allocator = new DataFileAllocator(ctx, stat);
+				allocator.create();
+			}
 			// INIT data block
 			ByteBuffer buf = ByteBuffer.allocate(ctx.getBlockSize());
-			new NodeEntry().serialize(buf);
+			serialize(new NodeEntry(0L, new KVEntryImp[0]), buf);
 			writeBlk(0L, buf.array());
-			// create TLF file
-			tlFile = new RandomAccessFile(tlf, "rw");
+			fsm = new FreeSpaceMap(ctx, stat, false);
+			if (ctx.getVlogThreshold() > 0)
+				vlog = new ValueLog(ctx, stat, true);
+			snap = new BranchSnapshot(ctx);
+			// create first tree log segment
+			tlog.create();
 			// create lock file
 			lock.createNewFile();
 			stat.numOfDataFiles = dataFileNum + 1;
 			return lock;			
 		}
 		// load file and block number
-		long ref = loadFileAndBlkNum();
-		// check the length of TLF file
-		long tlfLen = tlf.length();
+		final long ref = loadFileAndBlkNum();
 		/**
 		 *  Check if lock file exist or not.
 		 *  If lock file exist means a crash was occurred.
-		 *  in that case a fresh TLF file will be created discarding blocks which doesn't exists
+		 *  in that case the tree log is truncated at the first entry of a block which doesn't exist
 		 */
-		File tmpTlf = null;
-		RandomAccessFile tmpRan = null;
-		if (lock.exists()) {
+		// free blocks are unknown after a crash
+		fsm = new FreeSpaceMap(ctx, stat, !lock.exists());
+		if (ctx.getVlogThreshold() > 0)
+			vlog = new ValueLog(ctx, stat, !lock.exists());
+		if (lock.exists())
 			println("A crash might have happened...");
-		    tmpTlf = new File(ctx.getRootDir() + File.separator + ".tmp");
-			tmpTlf.delete();
-			// create a new one
-			tmpTlf.createNewFile();
-			   // open TMP file
-			tmpRan = new RandomAccessFile(tmpTlf, "rw");			
-		}
-		// open TLF file now in read write mode
-		tlFile = new RandomAccessFile(tlf, "rw");
 	    // loading message to the user		
-		String msg = "Database loading in progress....";	
+		println("Database loading in progress....");
 		
 		// Start loading database now
-		byte[] bytes = null;
-		Object[] entries = null;
-		long sz = 0; int prog = 0, lastProg = 0;
-		// read TLF entry one by one
-		while ((entries = readEntry()) != null) {
-			tmp = (KVEntryImp) entries[0];	
+		List<KVEntryImp> recs = new ArrayList<>();
+		Map<ByteBuffer, Integer> index = new HashMap<>();
+		// start with the snapshot if any
+		snap = new BranchSnapshot(ctx);
+		int from = upgrade ? -1 : snap.load(recs);
+		for (int i = 0; i < recs.size(); i++)
+			index.put(ByteBuffer.wrap(recs.get(i).key), i);
+		// segments before the snapshot are gone, it can't be rebuilt without it
+		if (from < 0 && !upgrade && TreeLog.first(ctx) > 0)
+			throw new Exception("Branch snapshot is missing or corrupt, tree log starts at segment " + TreeLog.first(ctx));
+		// replay the tree log since the snapshot, a merged leaf cancels the
+		// entry of its block and a relocated leaf supersedes it
+		TreeLog.Visitor visitor = entry -> {
 			// check if entry reference valid
-			if ( (long) tmp.value >= ref)
-				break;
-			// build tree
-			buildTree(tmp);
-			// get entry bytes as well
-			bytes = (byte[]) entries[1];
-			// rewrite to TMP TLF 
-			if (tmpTlf != null)
-				tmpRan.write(bytes);
-			// calculate progress
-			sz += bytes.length;
-			prog = (int) ((100.0f * sz) / tlfLen);
-			if (prog > lastProg) {
-				print(msg + prog + "%\r");
-				lastProg = prog;
+			if ((long) entry.value >= ref)
+				return false;
+			if (entry.dMarker) {
+				Integer i = index.remove(ByteBuffer.wrap(entry.key));
+				if (i != null && entry.value.equals(recs.get(i).value))
+					recs.set(i, null);
+				return true;
 			}
-		}		
-		
-		// close TMP TLF and atomic rename
-		if (tmpTlf != null) {
-			// close TMP TLF
-			close(tmpRan);
-			// Close TLF as well
-			tlFile.close();
-			// atomic rename
-			atoRename(tmpTlf.getAbsolutePath(),tlf.getAbsolutePath());
-			// Re open tree log file and seek to end
-			tlf = new File(ctx.getRootDir() + File.separator + ".tlog");
-			tlFile = new RandomAccessFile(tlf, "rw");
-			tlFile.seek(tlFile.length());
-		}	
+			Integer i = index.put(ByteBuffer.wrap(entry.key), recs.size());
+			if (i != null)
+				recs.set(i, null);
+			recs.add(entry);
+			return true;
+		};
+		if (upgrade)
+			tlog.upgrade(visitor);
+		else
+			tlog.replay(Math.max(0, from), visitor);
+		// build the branch levels from the leaf entries in key order
+		KVEntryImp[] sorted = recs.stream().filter(Objects::nonNull).toArray(KVEntryImp[]::new);
+		Arrays.parallelSort(sorted, eComp);
+		buildLevels(sorted);
+		// the snapshot takes over from the old tree log, segment 0 follows it
+		if (upgrade) {
+			snap.save(leafEntries(), 0);
+			tlog.dropLegacy();
+			println("Tree log upgraded to segments");
+		}
 		// update statistics and return lock file
 		stat.numOfDataFiles = dataFileNum + 1;
 		lock.createNewFile();
 		return lock;
 	}		
+	/**
+	 * Open write ahead log and replay it. Replay is idempotent, an entry
+	 * already in its leaf is simply superseded by the replayed one.
+	 * @throws Exception
+	 */
+	private void initWal() throws Exception {
+		WriteAheadLog log = new WriteAheadLog(ctx, stat);
+		if (ctx.isWalEnabled())
+			wal = log;
+		else
+			batchLog = log;
+		List<KVEntryImp> entries = log.replay();
+		if (entries.isEmpty())
+			return;
+		println("Replaying write ahead log: " + entries.size());
+		for (KVEntryImp entry : entries)
+			buildTree(entry);
+		// checkpoint, log is not needed anymore
+		checkpoint();
+	}
+	/**
+	 * Log forced and released by checkpoints
+	 * @return write ahead log, or log of write batches if disabled
+	 */
+	private WriteAheadLog redoLog() {
+		return wal != null ? wal : batchLog;
+	}
 	/**
 	 * Load file and block number and return last reference
 	 * @throws Exception
 	 */
 	private long loadFileAndBlkNum() throws Exception {
+		// preallocated files are full size, the reserved tail tells
+		if (ctx.isPreallocateFiles()) {
+			allocator = new DataFileAllocator(ctx, stat);
+			long ref = allocator.load();
+			if (ref >= 0) {
+				dataFileNum = (int) (ref >> 32);
+				dBlkNo = (int) ref;
+				println("Data File / BlkNo: " + dataFileNum + "/" + dBlkNo);
+				return ref;
+			}
+		}
 		Object[] objs = latestFile(dfPrefix, dfPostfix);
 		dataFileNum = (int) objs[1];
 		try (RandomAccessFile rFile = new RandomAccessFile( (File) objs[0],"r")) {
@@ -176,32 +312,21 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		}		
 	}
 	/**
-	 * Supporting method to read entry from TLF file
+	 * Generate disk reference number
+	 * @param nb
 	 * @return
-	 * @throws Exception
 	 */
-	private Object[] readEntry() throws Exception {
-		try {
-			// get entry length
-			int len = tlFile.readInt();
-			// read entire entry
-			byte[] data = new byte[len];
-			tlFile.read(data, 4, len - 4);
-			// update bytes
-			ByteBuffer bBuffer = ByteBuffer.wrap(data);
-			bBuffer.putInt(len).position(0);
-			// DE-serialise entry
-			KVEntry tmp = KVEntryImp.dSerialize(bBuffer);			
-			return new Object[] { tmp, data };
-		} catch (EOFException e) {  }
-		return null;
+	private long genDiskRefNo(int nb) throws Exception {
+		// reuse released blocks first
+		long ref = fsm.alloc(nb);
+		return ref != -1L ? ref : tailRefNo(nb);
 	}
 	/**
-	 * Generate disk reference number
+	 * Allocate blocks at the end of the last data file
 	 * @param nb
 	 * @return
 	 */
-	private long genDiskRefNo(int nb) {
+	private long tailRefNo(int nb) throws Exception {
 		// Check if new file is required
 		if (dBlkNo + nb > ctx.getMBlockFile()) {
 			dataFileNum++;
@@ -212,6 +337,9 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		long ref = (long) dataFileNum << 32 | dBlkNo & 0xFFFFFFFFL;
 		// update block number
 		dBlkNo += nb;
+		// reserved before anything is written
+		if (allocator != null)
+			allocator.allocated((long) dataFileNum << 32 | dBlkNo & 0xFFFFFFFFL);
 		// return reference number
 		return ref;
 	}	
@@ -236,6 +364,63 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 			stat.htMap.put(stat.ht, 0);			
 		}
 	}
+	/**
+	 * Build the branch levels bottom up from the leaf entries in key order,
+	 * replacing the empty tree
+	 * @param sorted - leaf entries but the first one
+	 */
+	private void buildLevels(KVEntryImp[] sorted) {
+		// the first leaf has no key
+		KVEntryImp[] level = new KVEntryImp[sorted.length + 1];
+		level[0] = rNode.root.getNodeEntry().entries[0];
+		System.arraycopy(sorted, 0, level, 1, sorted.length);
+		int total = 0;
+		for (int ht = 0;; ht++) {
+			Node[] nodes = pack(level);
+			total += level.length;
+			stat.htMap.put(ht, nodes.length - 1);
+			if (nodes.length == 1) {
+				rNode = new RootNode(nodes[0], ht);
+				stat.ht = ht;
+				// entries of new roots are not counted at runtime
+				stat.numOfBranchEntry = total - 1 - 2 * ht;
+				return;
+			}
+			level = new KVEntryImp[nodes.length];
+			for (int i = 0; i < nodes.length; i++)
+				level[i] = new KVEntryImp(nodes[i].firstKey(), nodes[i], nodes[i].size());
+		}
+	}
+	/**
+	 * Pack the entries of a level in linked nodes filled up to three quarters
+	 * of a block, the nodes are made in parallel
+	 * @param level
+	 * @return
+	 */
+	private Node[] pack(KVEntryImp[] level) {
+		int fill = ctx.getBlockSize() * 3 / 4;
+		List<Integer> starts = new ArrayList<>();
+		for (int i = 0, size = fill; i < level.length; i++) {
+			int sz = level[i].sSize();
+			if (size + sz > fill) {
+				starts.add(i);
+				size = NodeEntry.INIT_SIZE;
+			}
+			size += sz;
+		}
+		int n = starts.size();
+		Node[] nodes = new Node[n];
+		IntStream.range(0, n).parallel().forEach(j -> {
+			int to = j + 1 < n ? starts.get(j + 1) : level.length;
+			nodes[j] = new Node(new NodeEntry(-1L, Arrays.copyOfRange(level, starts.get(j), to)));
+		});
+		for (int j = 0; j < n; j++) {
+			NodeEntry nEntry = nodes[j].getNodeEntry();
+			nEntry.next = j + 1 < n ? nodes[j + 1] : null;
+			nEntry.prev = j > 0 ? nodes[j - 1] : null;
+		}
+		return nodes;
+	}
 	/**
 	 * Insert entry into the tree
 	 * @param node
@@ -252,22 +437,25 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		/**
 		 * recursively reach at level 0
 		 */
+		KVEntryImp[] entries = null;
 		if (htl > 0) {
 			Node newNode = insertEntry(nEntry.getNode(index), entry, htl - 1);
 			if (newNode == null) return null;
-			entry = new KVEntryImp(newNode.firstKey(), newNode, newNode.size());
+			entries = new KVEntryImp[] { new KVEntryImp(newNode.firstKey(), newNode, newNode.size()) };
 		} 
 		/**
 		 * if not bulk loading
 		 */
 		else if (!load) { 
-			entry = updateBlock(nEntry.entries[index], entry);
-			if (entry == null) return null;
+			entries = updateBlock(nEntry.entries[index], entry);
+			if (entries == null) return null;
 		} 
+		else
+			entries = new KVEntryImp[] { entry };
 		/**
 		 * adjust brunch entry
 		 */
-		return adjustEntry(node, ++index, entry, htl);		
+		return adjustEntry(node, ++index, entries, htl);		
 	}
     /**
      * Update block. Just append if the block is not full or fetch write and split
@@ -276,25 +464,49 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
      * @return
      * @throws Exception
      */
-	private KVEntryImp updateBlock(KVEntryImp bEntry, KVEntryImp entry) throws Exception {
+	private KVEntryImp[] updateBlock(KVEntryImp bEntry, KVEntryImp entry) throws Exception {
 		/**
-		 * Check if entry is LOB or Not.
+		 *  Load raw data block
 		 */
-		entry = checkLob(entry);
+		Long blkNo = (long) bEntry.value;
+		byte[] data = readPage(blkNo);
+		// LOB replaced by the entry, released once the leaf is written
+		KVEntryImp old = replacedLob(ByteBuffer.wrap(data), entry);
+		KVEntryImp[] entries = updateBlock(blkNo, data, checkLob(entry));
+		if (old != null)
+			releaseLob(old);
+		return entries;
+	}
+	/**
+	 * Append entry to the block or rewrite it, split if full
+	 * @param blkNo
+	 * @param data - current block content
+	 * @param entry
+	 * @return
+	 * @throws Exception
+	 */
+	private KVEntryImp[] updateBlock(Long blkNo, byte[] data, KVEntryImp entry) throws Exception {
 		/**
-		 *  Load raw data block and get the block size
+		 *  Get the block size
 		 */
-		Long blkNo = (long) bEntry.value;
-		byte[] data = readBlk(blkNo, ctx.getBlockSize());
 		ByteBuffer buf = ByteBuffer.wrap(data); // get a byte buffer
 		int size = buf.getInt(); // overall size
 		int sz = entry.sSize(); // entry size
 
+		/**
+		 * Slotted page, put the entry and shift the slots after it
+		 */
+		if (NodeEntry.isSlotted(buf)) {
+			if (NodeEntry.putSlot(buf, lSearch.slot(buf, entry.key), entry)) {
+				lockAndWrite(blkNo, data);
+				return null;
+			}
+		}
 		/**
 		 * Check if the entry can be appended to block or not.
 		 * If size permit, append data and persist block
 		 */
-		if (size + sz < ctx.getBlockSize()) {
+		else if (size + sz < ctx.getBlockSize()) {
 			buf.position(size);
 			entry.serialize(buf);
 			buf.putInt(0, size + sz);
@@ -312,11 +524,15 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		/**
 		 * If block size is not sufficient enough to split.
 		 */
-		if (nEntry.size < ctx.getBlockSize()) {
-			nEntry.serialize(buf);
+		if (serialize(nEntry, buf)) {
 			lockAndWrite(blkNo, data);					
 			return null;
 		}
+		/**
+		 * Encoded and slotted leaves might split in more than two
+		 */
+		if (ctx.isCompressLeaf() || ctx.isPrefixKeys() || ctx.isSlotted())
+			return splitLeaf(nEntry, data);
 		/**
 		 * It's time to split the blocks. First lock next and splitting block.
 		 * Than persist the new block followed by splitting block.
@@ -355,7 +571,7 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 			 * else Update previous link of next block
 			 */
 			else {
-				byte[] dataNext = readBlk(nBlkId, ctx.getBlockSize());
+				byte[] dataNext = readPage(nBlkId);
 				NodeEntry.setPrevLink(newNode.getBlkNo(), ByteBuffer.wrap(dataNext));
 				writeBlk(nBlkId, dataNext);
 				curBlkSync++;
@@ -367,11 +583,138 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 			kLocker.unlock(blkNo);
 		}		
 		// write tlf entry
-		tlFile.write(entry.serialize(null).array());
+		tlog.append(entry);
 		curBlkSync += 2;
 		stat.numOfLoad++;
-		return entry.getACopy();
-	}	
+		return new KVEntryImp[] { entry.getACopy() };
+	}
+	/**
+	 * Serialise a leaf into a block sized buffer, slotted with page format 2.
+	 * Otherwise prefix encoded and/or compressed if enabled and worth it, a
+	 * compressed leaf keeps a quarter of the block free for appends. Nothing
+	 * is written if the leaf does not fit
+	 * @param nEntry
+	 * @param buf
+	 * @return false if the leaf does not fit in a block
+	 */
+	private boolean serialize(NodeEntry nEntry, ByteBuffer buf) {
+		int bs = ctx.getBlockSize();
+		if (ctx.isSlotted()) {
+			if (nEntry.slottedSize() > bs)
+				return false;
+			nEntry.serializeSlotted(buf);
+			return true;
+		}
+		boolean cmp = ctx.isCompressLeaf(), pfx = ctx.isPrefixKeys();
+		if ((cmp || pfx) && nEntry.Len() > 0) {
+			// raw image of the sorted region
+			ByteBuffer raw = pfx ? nEntry.prefixed() : nEntry.plain();
+			int rawLen = raw.limit(), flags = pfx ? NodeEntry.PREFIXED : 0;
+			int off = NodeEntry.INIT_SIZE + 4;
+			int limit = Math.min(bs * 3 / 4, NodeEntry.INIT_SIZE + rawLen);
+			int cLen = cmp ? codec.compress(raw.array(), 0, rawLen, buf.array(), off, limit) : -1;
+			if (cLen > 0) {
+				nEntry.serializeEncoded(buf, flags | NodeEntry.COMPRESSED, off + cLen, rawLen);
+				stat.numOfCompressedLeaf++;
+				return true;
+			}
+			if (pfx && NodeEntry.INIT_SIZE + rawLen < bs) {
+				System.arraycopy(raw.array(), 0, buf.array(), NodeEntry.INIT_SIZE, rawLen);
+				nEntry.serializeEncoded(buf, flags, NodeEntry.INIT_SIZE + rawLen, rawLen);
+				return true;
+			}
+		}
+		if (nEntry.size >= bs)
+			return false;
+		nEntry.serialize(buf);
+		return true;
+	}
+	/**
+	 * Split a leaf in as many blocks as needed for each part to fit, new
+	 * blocks are written first, than the splitting block and finally the
+	 * previous link of the next block
+	 * @param nEntry - merged leaf
+	 * @param data - block buffer of the splitting block
+	 * @return branch entries of the new blocks
+	 * @throws Exception
+	 */
+	private KVEntryImp[] splitLeaf(NodeEntry nEntry, byte[] data) throws Exception {
+		int bs = ctx.getBlockSize();
+		NodeEntry[] parts = null;
+		byte[][] blocks = null;
+		// try 2, 3... even parts until every part fits
+		for (int k = 2; blocks == null; k++) {
+			parts = partition(nEntry, k);
+			blocks = new byte[parts.length][];
+			for (int i = 0; i < parts.length && blocks != null; i++) {
+				blocks[i] = i == 0 ? data : new byte[bs];
+				Arrays.fill(blocks[i], (byte) 0);
+				if (!serialize(parts[i], ByteBuffer.wrap(blocks[i])))
+					blocks = null;
+			}
+		}
+		// allocate blocks and chain them
+		Long blkNo = nEntry.blkNo, nBlkId = (long) nEntry.next;
+		for (int i = 1; i < parts.length; i++)
+			parts[i].blkNo = genDiskRefNo(1);
+		for (int i = 0; i < parts.length; i++) {
+			parts[i].prev = i == 0 ? nEntry.prev : parts[i - 1].blkNo;
+			parts[i].next = i == parts.length - 1 ? nEntry.next : parts[i + 1].blkNo;
+			ByteBuffer buf = ByteBuffer.wrap(blocks[i]);
+			buf.putLong(8, (long) parts[i].next);
+			buf.putLong(16, (long) parts[i].prev);
+		}
+		KVEntryImp[] entries = new KVEntryImp[parts.length - 1];
+		// lock both blocks for split and link updates
+		kLocker.lock(nBlkId);
+		kLocker.lock(blkNo);
+		try {
+			for (int i = parts.length - 1; i > 0; i--)
+				writeBlk(parts[i].blkNo, blocks[i]);
+			writeBlk(blkNo, data);
+			long last = parts[parts.length - 1].blkNo;
+			if (nBlkId == -1L)
+				right = last;
+			else {
+				byte[] dataNext = readPage(nBlkId);
+				NodeEntry.setPrevLink(last, ByteBuffer.wrap(dataNext));
+				writeBlk(nBlkId, dataNext);
+				curBlkSync++;
+			}
+		} finally {
+			kLocker.unlock(nBlkId);
+			kLocker.unlock(blkNo);
+		}
+		// write tlf entries
+		for (int i = 1; i < parts.length; i++) {
+			KVEntryImp entry = new KVEntryImp(parts[i].fkey(), parts[i].blkNo, parts[i].size);
+			tlog.append(entry);
+			entries[i - 1] = entry.getACopy();
+		}
+		curBlkSync += parts.length;
+		stat.numOfLoad++;
+		return entries;
+	}
+	/**
+	 * Cut the entries of a leaf in k parts of about the same raw size
+	 * @param nEntry
+	 * @param k
+	 * @return
+	 */
+	private NodeEntry[] partition(NodeEntry nEntry, int k) {
+		k = Math.min(k, nEntry.Len());
+		NodeEntry[] parts = new NodeEntry[k];
+		int target = (nEntry.size - NodeEntry.INIT_SIZE) / k, from = 0;
+		for (int i = 0; i < k; i++) {
+			int to = from, sz = 0;
+			// leave at least one entry for every remaining part
+			while (to < nEntry.Len() - (k - 1 - i) && (sz < target || to == from || i == k - 1))
+				sz += nEntry.entries[to++].sSize();
+			parts[i] = new NodeEntry(nEntry.blkNo, Arrays.copyOfRange(nEntry.entries, from, to));
+			from = to;
+		}
+		return parts;
+	}
 	
 	/**
 	 * Lock block and write
@@ -393,20 +736,56 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	}
 	
 	/**
-	 * Read entire block with lock
+	 * Load sorted and unsorted entries of a block with lock
+	 * @param bNo
+	 * @return
+	 * @throws Exception
+	 */
+	private NodeEntry[] lockAndLoad(Long bNo) throws Exception {
+		return lockAndLoad(bNo, false);
+	}
+	
+	/**
+	 * Lock and load a block, without values if keysOnly
 	 * @param bNo
+	 * @param keysOnly
 	 * @return
 	 * @throws Exception
 	 */
-	private byte[] lockAndRead(Long bNo) throws Exception {
+	private NodeEntry[] lockAndLoad(Long bNo, boolean keysOnly) throws Exception {
+		Page page = null;
 		// lock block first
 		kLocker.lock(bNo);
 		try {
-			// read block
-			return readBlk(bNo, ctx.getBlockSize());
+			// pin block
+			page = pinBlk(bNo);
+			// a mapped page is live, decode it before anyone can write it
+			if (page.isLive())
+				return load(page, bNo, keysOnly);
 		} finally {
 			kLocker.unlock(bNo);
 		}
+		// cached page is immutable while pinned
+		return load(page, bNo, keysOnly);
+	}
+	
+	/**
+	 * Decode sorted and unsorted entries of a pinned page and release it
+	 * @param page
+	 * @param bNo
+	 * @param keysOnly - values are skipped
+	 * @return
+	 */
+	private NodeEntry[] load(Page page, long bNo, boolean keysOnly) {
+		try {
+			ByteBuffer buf = page.buf();
+			// Load sorted list
+			NodeEntry nEntry = NodeEntry.loadSorted(buf, bNo, keysOnly);
+			// load unsorted list now
+			return new NodeEntry[] { nEntry, NodeEntry.loadUnsorted(buf, null, keysOnly) };
+		} finally {
+			unpinBlk(page);
+		}
 	}
 		
 	/**
@@ -416,8 +795,16 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	 * @throws Exception
 	 */
 	private KVEntryImp checkLob(KVEntryImp entry) throws Exception {
-		// Check if LOB
-		if (entry.size >= ctx.getBlockSize() / 2) {
+		// Large value goes to the value log, the leaf keeps a reference
+		if (toVlog(entry)) {
+			if (entry.size > ctx.getMaxLobSize())
+				throw new RuntimeException("Too Big Lob");
+			entry.value = vlog.append(entry);
+			curBlkSync += entry.size / ctx.getBlockSize() + 1;
+			return entry;
+		}
+		// Check if LOB, not yet written
+		if (isLob(entry) && entry.value instanceof byte[]) {
 			// check if too big LOB
 			if (entry.size > ctx.getMaxLobSize())
 				throw new RuntimeException("Too Big Lob");
@@ -441,6 +828,54 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		// Return updated entry
 		return entry;
 	}
+	/**
+	 * Return the LOB entry of the key stored in a leaf, if the new entry does
+	 * not point to the same blocks
+	 * @param buf - leaf page
+	 * @param entry
+	 * @return
+	 */
+	private KVEntryImp replacedLob(ByteBuffer buf, KVEntryImp entry) {
+		KVEntryImp old = lSearch.search(buf, entry.key);
+		if (old == null || !(old.value instanceof Long) || old.value.equals(entry.value))
+			return null;
+		return isLob(old) || ValueLog.isRef(old.value) ? old : null;
+	}
+	/**
+	 * Release the blocks of a LOB no longer referenced
+	 * @param entry
+	 */
+	private void releaseLob(KVEntryImp entry) {
+		if (ValueLog.isRef(entry.value)) {
+			vlog.discard((long) entry.value, entry.size);
+			return;
+		}
+		int nb = entry.size / ctx.getBlockSize();
+		if (entry.size % ctx.getBlockSize() != 0)
+			nb++;
+		fsm.release((long) entry.value, nb);
+	}
+	private void releaseLobs(List<KVEntryImp> entries) {
+		for (KVEntryImp entry : entries)
+			releaseLob(entry);
+	}
+	/**
+	 * True if the entry is (or will be) stored as LOB
+	 * @param entry
+	 * @return
+	 */
+	private boolean isLob(KVEntryImp entry) {
+		return entry.size >= ctx.getBlockSize() / 2 && !ValueLog.isRef(entry.value);
+	}
+	/**
+	 * True if the entry value is (or will be) stored in the value log
+	 * @param entry
+	 * @return
+	 */
+	private boolean toVlog(KVEntryImp entry) {
+		return vlog != null && entry.value instanceof byte[]
+				&& ((byte[]) entry.value).length >= ctx.getVlogThreshold();
+	}
 	/**
 	 * Load LOB if applicable
 	 * @param entry
@@ -448,8 +883,11 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	 * @throws Exception
 	 */
 	private KVEntryImp loadLob(KVEntryImp entry) throws Exception {
-		// Check if LOB
-		if (entry.size >= ctx.getBlockSize() / 2) {
+		// value log record is a serialised entry too
+		if (ValueLog.isRef(entry.value))
+			return vlog.read((long) entry.value, entry.size);
+		// Check if LOB, a buffered one might not be written yet
+		if (isLob(entry) && entry.value instanceof Long) {
 			long ref = (long) entry.value;
 			// calculate number of blocks
 			int nb = entry.size / ctx.getBlockSize();
@@ -461,7 +899,11 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 			// get byte buffer
 			ByteBuffer buf = ByteBuffer.wrap(data);
 			// Get it d serialise
-			entry = KVEntryImp.dSerialize(buf);				
+			KVEntryImp lob = KVEntryImp.dSerialize(buf);
+			// blocks reused under a reader would hold another entry
+			if (!Arrays.equals(lob.key, entry.key))
+				throw new IllegalStateException("LOB blocks at " + ref + " hold another key, reused while read");
+			entry = lob;
 		}
 		// Return updated entry
 		return entry;
@@ -487,146 +929,532 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 			// Create or open file
 			rf = new RandFileCacheEntry(new RandomAccessFile(new File(fName), "rw"));
 			fCache.put(key, rf);			
+			stat.numOfWriteHandles++;
 		}
 		// seek
 		rf.getRf().seek(ctx.getBlockSize() * bNo);
 		// write
 		rf.getRf().write(data);			
+		rf.written((long) ctx.getBlockSize() * bNo + data.length);
+		// keep cached page coherent
+		if (pCache == null)
+			return;
+		if (data.length == ctx.getBlockSize())
+			pCache.update(blkNo, data);
+		else
+			pCache.invalidate(blkNo, data.length / ctx.getBlockSize());
 	}
 	/**
-	 * Sync all open files and TLF
-	 */
-	private void syncFiles() throws Exception {
-		// get current time stamp
-		long tt = System.currentTimeMillis();
-		// First sync and close all open files		
-		if (fCache.size() > 0) {
-			RandFileCacheEntry tmpF = null;
-			while ((tmpF = fCache.removeOldest()) != null)
-				close(tmpF.getRf());					
-		}
-		// Now sync TLF
-		sync(tlFile);
-		// Update statistics
-		long t = (System.currentTimeMillis() - tt);
-		if (t > stat.maxSyncTime)
-			stat.maxSyncTime = t;
-		// update number of sync statistics
-		stat.numOfSync++;
-		// update sync time
-		stat.lastSyncTime = tt;		
+	 * Buffer a private copy of the entry, flush the buffer once it is full
+	 * @param entry
+	 * @throws Exception
+	 */
+	private void buffer(KVEntryImp entry) throws Exception {
+		KVEntryImp old = mem.put(entry.getACopy());
+		// a streamed LOB replaced before it reached a leaf
+		if (old != null && old.value instanceof Long && !old.value.equals(entry.value))
+			releaseLob(old);
+		stat.memTableBytes = mem.size();
+		if (mem.size() >= ctx.getMemTableSize())
+			flushMem();
 	}
-	
 	/**
-	 * create new entry in branch node
-	 * @param node
-	 * @param pointer
-	 * @param entry
-	 * @param ht
+	 * Apply the write buffer to the leaves in key order. Readers keep
+	 * seeing the buffered entries until the flush is over
+	 * @throws Exception
+	 */
+	private void flushMem() throws Exception {
+		// a previous flush failed half way, flushing again is harmless
+		if (imm != null) {
+			applyBatch(imm.copies());
+			imm = null;
+		}
+		if (mem == null || mem.isEmpty())
+			return;
+		imm = mem;
+		mem = new MemTable(eComp);
+		stat.memTableBytes = 0;
+		applyBatch(imm.copies());
+		imm = null;
+		stat.numOfMemTableFlush++;
+	}
+	/**
+	 * Find a buffered entry, might be a tombstone
+	 * @param key
 	 * @return
+	 */
+	private KVEntryImp memGet(KVEntryImp key) {
+		// active buffer first, it becomes the flushing one
+		MemTable m = mem, i = imm;
+		KVEntryImp entry = m != null ? m.get(key) : null;
+		if (entry == null && i != null)
+			entry = i.get(key);
+		return entry;
+	}
+	/**
+	 * Sync data files and tree log, then release write ahead log. Caller
+	 * must hold the write lock, a background sync in progress is waited for
 	 * @throws Exception
 	 */
-	private Node adjustEntry(Node node, int pointer, KVEntryImp entry, int ht) throws Exception {
-		// retrieve corresponding node entry from node
-		NodeEntry nEntry = node.getNodeEntry();
-		// create copies of existing KVEntry
-		KVEntryImp[] tmp = new KVEntryImp[nEntry.Len() + 1];
-		// copy it
-		System.arraycopy(nEntry.entries, 0, tmp, 0, nEntry.Len());
-		// find possible insertion point
-		for (int j = tmp.length - 1; j > pointer; j--)
-			tmp[j] = tmp[j - 1];
-		// insert new entry
-		tmp[pointer] = entry;
-		// calculate new size
-		int size = nEntry.size + entry.sSize();
-		// create a new node entry
-		NodeEntry eLocal = new NodeEntry(nEntry.blkNo,tmp,size,nEntry.next, nEntry.prev);
-		// Atomically set new Node Entry
-		node.setNodeEntry(eLocal);
-		// update statistics
-		stat.numOfBranchEntry++;
-		// do split if size go beyond block size
-		if (size >= ctx.getBlockSize())
-			return split(node, -1, ht);
-		// return null if no split
-		return null;
+	private void checkpoint() throws Exception {
+		if (flusher != null)
+			flusher.await();
+		Checkpoint ck = beginCheckpoint();
+		try {
+			ck.sync();
+		} finally {
+			endCheckpoint(ck);
+		}
 	}
-    /**
-     * Split node and return the newly created node
-     * @param src
-     * @param blkNo
-     * @param ht
-     * @return
-     * @throws Exception
-     */
-	private Node split(Node src, long blkNo, int ht) throws Exception {
-		// New node to be return
-		Node newNode = new Node();
-		// get source entry of source node
-		NodeEntry srcNEntry = src.getNodeEntry();
-		// get entry length of source node entry
-		int i = srcNEntry.Len() - 1;
-		// calculate split size
-		int elmntLeft = 0, elmntRight = 0, piv = ctx.getBlockSize() / 2, size = NodeEntry.INIT_SIZE;
-		for (; size < piv && elmntLeft < i; elmntLeft++)
-			size += srcNEntry.entries[elmntLeft].sSize();	
-		// adjust entries for the splitted entries
-		elmntRight = srcNEntry.Len() - elmntLeft;		
-		// allocate new source node entry
-		NodeEntry newSrc = new NodeEntry(srcNEntry.blkNo, new KVEntryImp[elmntLeft],0);
-		// copy first half of the entries
-		System.arraycopy(srcNEntry.entries, 0, newSrc.entries, 0, elmntLeft);
-		// allocate new node entry for the new node
-		NodeEntry newNEntry = new NodeEntry(blkNo, new KVEntryImp[elmntRight], NodeEntry.INIT_SIZE);
-		// copy remaining entries to new node entries
-		System.arraycopy(srcNEntry.entries, elmntLeft, newNEntry.entries, 0, elmntRight);
-        // adjust size
-		newSrc.size = size;
-		newNEntry.size += (srcNEntry.size - size);
-        // Setup links for new node
-		newNEntry.next = srcNEntry.next;
-		newNEntry.prev = src;
-		// setup links for the new source
-		newSrc.next = newNode;
-		newSrc.prev = srcNEntry.prev;
-		
-		// Atomically set src and new node
-		newNode.setNodeEntry(newNEntry);
-		src.setNodeEntry(newSrc);
-		// update statistics
-		stat.htMap.put(ht,stat.htMap.get(ht) + 1);
-		return newNode;		
+	/**
+	 * First phase of a checkpoint, under the write lock. Apply the write
+	 * buffer, pick the data files written since the last sync and close the
+	 * others, seal the write ahead log and hold back tree log records until
+	 * the sync is over
+	 * @return
+	 * @throws Exception
+	 */
+	private Checkpoint beginCheckpoint() throws Exception {
+		flushMem();
+		Checkpoint ck = new Checkpoint(++ckNo);
+		// operations already applied, made durable by this sync
+		AsyncOp op = null;
+		while ((op = syncWaiters.poll()) != null)
+			ck.waiters.add(op);
+		// handles stay open, unless not written since the last sync
+		List<IntCacheEntry> idle = new ArrayList<>();
+		for (Iterator<LRUNode<IntCacheEntry, RandFileCacheEntry>> it = fCache.iterator(); it.hasNext();) {
+			LRUNode<IntCacheEntry, RandFileCacheEntry> node = it.next();
+			if (node.value().dirty())
+				ck.files.add(node.value());
+			else
+				idle.add(node.key());
+		}
+		for (IntCacheEntry key : idle)
+			fCache.remove(key).getRf().close();
+		stat.numOfWriteHandles -= idle.size();
+		if (redoLog() != null)
+			ck.walMark = redoLog().seal();
+		curBlkSync = 0;
+		// snapshot the branches once in a while, saved once the sync is over
+		int interval = ctx.getSnapshotInterval();
+		if (interval > 0 && System.currentTimeMillis() - snapTime >= interval * 1000L && tlog.size() > 0) {
+			ck.snapEntries = leafEntries();
+			ck.snapSeg = tlog.roll();
+		}
+		tlog.hold();
+		return ck;
+	}
+	/**
+	 * Last phase of a checkpoint, under the write lock. Write the held back
+	 * tree log records and, if synced, free what was waiting for it unless
+	 * a later checkpoint did already
+	 * @param ck
+	 * @throws Exception
+	 */
+	private void endCheckpoint(Checkpoint ck) throws Exception {
+		tlog.resume();
+		if (!ck.synced || ck.no < ckDone)
+			return;
+		ckDone = ck.no;
+		// readers of the epoch ended now might still hold what was released
+		long epoch = readers.advance();
+		long oldest = readers.oldest();
+		fsm.checkpoint(epoch, oldest);
+		if (vlog != null)
+			vlog.checkpoint(epoch, oldest);
+		if (redoLog() != null)
+			redoLog().release(ck.walMark);
+	}
+	/**
+	 * Ask for a checkpoint, the flusher syncs in the background
+	 * @throws Exception
+	 */
+	private void requestSync() throws Exception {
+		if (flusher != null)
+			flusher.wakeUp();
+		else
+			checkpoint();
 	}
 	
 	/**
-	 * To find node node in the tree
-	 * @param nEntry
-	 * @param entry
+	 * True if the sync policy wants a checkpoint after a write. The interval
+	 * policy is served by the flusher alone
 	 * @return
 	 */
-	private int findIndex(NodeEntry nEntry, KVEntryImp entry) {
-		int index = nEntry.fkey() != null ? 0 : 1;
-		index = binarySearch(nEntry.entries, index, nEntry.Len(), entry, eComp);
-		if (index >= 0) return index;
-		index = abs(index) - 2;
-		return index < 0 ? 0 : index;
-	}	
+	private boolean syncDue() {
+		switch (ctx.getSyncPolicy()) {
+		case "always":
+			return true;
+		case "bytes":
+			return (long) curBlkSync * ctx.getBlockSize() >= ctx.getSyncBytes();
+		case "interval":
+		case "never":
+			return false;
+		default:
+			return curBlkSync > ctx.getMaxBlkSync();
+		}
+	}
+	
 	/**
-	 * Common method to support both Get and Iterator.
-	 * @param node
-	 * @param htl
-	 * @param entry
-	 * @return
+	 * Snapshot the lowest branch level and start a new tree log segment,
+	 * the older ones are not needed anymore. Data files must be synced
 	 * @throws Exception
 	 */
-	private KVEntryImp findEntry(Node node, int htl, KVEntryImp entry) throws Exception {
-		NodeEntry nEntry = node.getNodeEntry();
-		int indx = findIndex(nEntry, entry);
-		/**
-		 * In case node split happened before parent was update
-		 */
-		if (indx == nEntry.Len() - 1 && nEntry.next != null) {
+	private void saveSnapshot() throws Exception {
+		List<KVEntryImp> entries = leafEntries();
+		int seg = tlog.roll();
+		tlog.sync();
+		saveSnapshot(entries, seg);
+	}
+	/**
+	 * Save a snapshot once the tree log segments before seg are synced
+	 * @param entries
+	 * @param seg
+	 * @throws Exception
+	 */
+	private void saveSnapshot(List<KVEntryImp> entries, int seg) throws Exception {
+		snap.save(entries, seg);
+		tlog.release(seg);
+		snapTime = System.currentTimeMillis();
+		stat.numOfSnapshots++;
+	}
+	/**
+	 * Entries of the lowest branch level in key order
+	 * @return
+	 */
+	private List<KVEntryImp> leafEntries() {
+		List<KVEntryImp> entries = new ArrayList<>();
+		Node node = leafParent(new KVEntryImp(null, null, -1));
+		while (node != null) {
+			NodeEntry nEntry = node.getNodeEntry();
+			for (KVEntryImp entry : nEntry.entries)
+				if (entry.key != null)
+					entries.add(new KVEntryImp(entry.key, entry.value, 0));
+			node = nEntry.next != null ? nEntry.nextNode() : null;
+		}
+		return entries;
+	}
+
+	/**
+	 * Compact the leaf at index of a lowest level branch node. Merge it with
+	 * its right neighbour if both fit in half a block, otherwise drop its
+	 * tombstones if any. Caller must hold the write lock
+	 * @param node
+	 * @param i
+	 * @return true if merged, the leaf is worth another look
+	 * @throws Exception
+	 */
+	private boolean compactLeaf(Node node, int i) throws Exception {
+		NodeEntry nEntry = node.getNodeEntry();
+		Long blkNo = nEntry.getBlk(i);
+		NodeEntry left = loadAndMerge(blkNo);
+		List<KVEntryImp> live = new ArrayList<>();
+		int dead = live(left, live);
+		stat.numOfLoad++;
+		/**
+		 * Right neighbour in the same branch node, only if the leaf links agree
+		 */
+		if (i + 1 < nEntry.Len() && nEntry.getBlk(i + 1).equals(left.next)) {
+			Long rBlkNo = nEntry.getBlk(i + 1);
+			NodeEntry right = loadAndMerge(rBlkNo);
+			int rDead = live(right, live);
+			stat.numOfLoad++;
+			NodeEntry merged = new NodeEntry(blkNo, live.toArray(new KVEntryImp[0]), right.next, left.prev);
+			if (merged.size <= ctx.getBlockSize() / 2) {
+				mergeLeaves(node, i + 1, merged);
+				stat.numOfPurgedTombstones += dead + rDead;
+				stat.numOfDelRecs = Math.max(0, stat.numOfDelRecs - dead - rDead);
+				return true;
+			}
+			live.subList(live.size() - (right.Len() - rDead), live.size()).clear();
+		}
+		if (dead == 0)
+			return false;
+		// same links, tombstones dropped, kept as is if the rest does not fit once more
+		byte[] data = new byte[ctx.getBlockSize()];
+		if (!serialize(new NodeEntry(blkNo, live.toArray(new KVEntryImp[0]), left.next, left.prev), ByteBuffer.wrap(data)))
+			return false;
+		lockAndWrite(blkNo, data);
+		stat.numOfPurgedTombstones += dead;
+		stat.numOfDelRecs = Math.max(0, stat.numOfDelRecs - dead);
+		return false;
+	}
+	/**
+	 * Collect live entries of a leaf
+	 * @param nEntry
+	 * @param live
+	 * @return number of tombstones
+	 */
+	private static int live(NodeEntry nEntry, List<KVEntryImp> live) {
+		int dead = 0;
+		for (KVEntryImp entry : nEntry.entries) {
+			if (entry.dMarker)
+				dead++;
+			else
+				live.add(entry);
+		}
+		return dead;
+	}
+	/**
+	 * Merge the leaf at index into its left neighbour. The tree log entry
+	 * goes first, if the merged leaf is lost in a crash the keys are still
+	 * found through the next link of the left leaf
+	 * @param node
+	 * @param i
+	 * @param merged - left leaf with the entries of both
+	 * @throws Exception
+	 */
+	private void mergeLeaves(Node node, int i, NodeEntry merged) throws Exception {
+		NodeEntry nEntry = node.getNodeEntry();
+		KVEntryImp rEntry = nEntry.entries[i];
+		Long blkNo = merged.blkNo, nBlkId = merged.next != null ? (Long) merged.next : -1L;
+		// half a block always fits, serialised before anything is logged
+		byte[] data = new byte[ctx.getBlockSize()];
+		if (!serialize(merged, ByteBuffer.wrap(data)))
+			throw new IllegalStateException("Merged leaf " + blkNo + " does not fit in a block");
+		tlog.append(new KVEntryImp(rEntry.key, rEntry.value, true, rEntry.size, System.nanoTime()));
+		tlog.sync();
+		// lock both blocks for merge and link updates
+		kLocker.lock(nBlkId);
+		kLocker.lock(blkNo);
+		try {
+			writeBlk(blkNo, data);
+			if (nBlkId == -1L)
+				right = blkNo;
+			else {
+				byte[] dataNext = readPage(nBlkId);
+				NodeEntry.setPrevLink(blkNo, ByteBuffer.wrap(dataNext));
+				writeBlk(nBlkId, dataNext);
+			}
+		} finally {
+			kLocker.unlock(nBlkId);
+			kLocker.unlock(blkNo);
+		}
+		// drop the branch entry, its keys go to the left leaf now
+		KVEntryImp[] tmp = new KVEntryImp[nEntry.Len() - 1];
+		System.arraycopy(nEntry.entries, 0, tmp, 0, i);
+		System.arraycopy(nEntry.entries, i + 1, tmp, i, tmp.length - i);
+		node.setNodeEntry(new NodeEntry(nEntry.blkNo, tmp, nEntry.size - rEntry.sSize(), nEntry.next, nEntry.prev));
+		stat.numOfBranchEntry--;
+		// an older iterator might still follow a link to it
+		fsm.release((Long) rEntry.value, 1);
+		curBlkSync += 2;
+		stat.numOfMergedLeaves++;
+	}
+	/**
+	 * Move the leaf at index of a lowest level branch node right after its
+	 * predecessor, to that block if free or else to the end of the last data
+	 * file. A leaf heading a sequential run is left alone. The copy is synced
+	 * before its tree log entry, which supersedes the old one at load. Caller
+	 * must hold the write lock
+	 * @param node
+	 * @param i
+	 * @return true if moved
+	 * @throws Exception
+	 */
+	private boolean relocateLeaf(Node node, int i) throws Exception {
+		NodeEntry nEntry = node.getNodeEntry();
+		KVEntryImp bEntry = nEntry.entries[i];
+		// the first leaf stays in the first block
+		if (bEntry.key == null)
+			return false;
+		Long blkNo = (Long) bEntry.value;
+		byte[] data = readPage(blkNo);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		long pBlkId = NodeEntry.getPrevLink(buf), nBlkId = NodeEntry.getNextLink(buf), want = pBlkId + 1;
+		// only if the leaf links agree
+		if (blkNo == want || i > 0 && !nEntry.getBlk(i - 1).equals(pBlkId))
+			return false;
+		long ref, tail = (long) dataFileNum << 32 | dBlkNo & 0xFFFFFFFFL;
+		if ((int) want < ctx.getMBlockFile() && (want == tail || fsm.take(want)))
+			ref = want == tail ? tailRefNo(1) : want;
+		else if (nBlkId == blkNo + 1)
+			return false;
+		else
+			ref = tailRefNo(1);
+		writeBlk(ref, data);
+		sync(fCache.get(new IntCacheEntry((int) (ref >> 32))));
+		KVEntryImp entry = new KVEntryImp(bEntry.key, ref, bEntry.size);
+		tlog.append(entry);
+		// lock the neighbours for link updates, right to left
+		kLocker.lock(nBlkId);
+		kLocker.lock(blkNo);
+		kLocker.lock(pBlkId);
+		try {
+			byte[] dataPrev = readPage(pBlkId);
+			ByteBuffer.wrap(dataPrev).putLong(8, ref);
+			writeBlk(pBlkId, dataPrev);
+			if (nBlkId == -1L)
+				right = ref;
+			else {
+				byte[] dataNext = readPage(nBlkId);
+				NodeEntry.setPrevLink(ref, ByteBuffer.wrap(dataNext));
+				writeBlk(nBlkId, dataNext);
+			}
+		} finally {
+			kLocker.unlock(pBlkId);
+			kLocker.unlock(blkNo);
+			kLocker.unlock(nBlkId);
+		}
+		// same key, new block
+		KVEntryImp[] tmp = nEntry.entries.clone();
+		tmp[i] = entry;
+		node.setNodeEntry(new NodeEntry(nEntry.blkNo, tmp, nEntry.size, nEntry.next, nEntry.prev));
+		fsm.release(blkNo, 1);
+		curBlkSync += 3;
+		stat.numOfRelocatedLeaves++;
+		return true;
+	}
+	/**
+	 * Percentage of neighbour leaves which are not neighbour blocks. Lock
+	 * free like a reader, a sample which might miss concurrent changes
+	 * @return
+	 */
+	private int leafBreaks() {
+		int leaves = 0, breaks = 0;
+		long last = -1L;
+		RootNode lNode = rNode;
+		Node node = lNode.root;
+		for (int htl = lNode.ht; htl > 0; htl--)
+			node = node.getNodeEntry().getNode(0);
+		while (node != null) {
+			NodeEntry nEntry = node.getNodeEntry();
+			for (int i = 0; i < nEntry.Len(); i++) {
+				long blkNo = nEntry.getBlk(i);
+				if (leaves++ > 0 && blkNo != last + 1)
+					breaks++;
+				last = blkNo;
+			}
+			node = nEntry.next != null ? nEntry.nextNode() : null;
+		}
+		return leaves > 1 ? breaks * 100 / (leaves - 1) : 0;
+	}
+	/**
+	 * Lowest level branch node covering a key, the first one for a null key
+	 * @param entry
+	 * @return
+	 */
+	private Node leafParent(KVEntryImp entry) {
+		Node node = rNode.root;
+		for (int htl = rNode.ht; htl > 0; htl--) {
+			NodeEntry nEntry = node.getNodeEntry();
+			node = nEntry.getNode(entry.key != null ? findIndex(nEntry, entry) : 0);
+		}
+		return node;
+	}
+	
+	/**
+	 * create new entry in branch node
+	 * @param node
+	 * @param pointer
+	 * @param entry
+	 * @param ht
+	 * @return
+	 * @throws Exception
+	 */
+	private Node adjustEntry(Node node, int pointer, KVEntryImp[] entries, int ht) throws Exception {
+		// retrieve corresponding node entry from node
+		NodeEntry nEntry = node.getNodeEntry();
+		int n = entries.length;
+		// create copies of existing KVEntry
+		KVEntryImp[] tmp = new KVEntryImp[nEntry.Len() + n];
+		// copy it, leaving room at insertion point
+		System.arraycopy(nEntry.entries, 0, tmp, 0, pointer);
+		System.arraycopy(nEntry.entries, pointer, tmp, pointer + n, nEntry.Len() - pointer);
+		// insert new entries, they are already sorted
+		System.arraycopy(entries, 0, tmp, pointer, n);
+		// calculate new size
+		int size = nEntry.size;
+		for (KVEntryImp entry : entries)
+			size += entry.sSize();
+		// create a new node entry
+		NodeEntry eLocal = new NodeEntry(nEntry.blkNo,tmp,size,nEntry.next, nEntry.prev);
+		// Atomically set new Node Entry
+		node.setNodeEntry(eLocal);
+		// update statistics
+		stat.numOfBranchEntry += n;
+		// do split if size go beyond block size
+		if (size >= ctx.getBlockSize())
+			return split(node, -1, ht);
+		// return null if no split
+		return null;
+	}
+    /**
+     * Split node and return the newly created node
+     * @param src
+     * @param blkNo
+     * @param ht
+     * @return
+     * @throws Exception
+     */
+	private Node split(Node src, long blkNo, int ht) throws Exception {
+		// New node to be return
+		Node newNode = new Node();
+		// get source entry of source node
+		NodeEntry srcNEntry = src.getNodeEntry();
+		// get entry length of source node entry
+		int i = srcNEntry.Len() - 1;
+		// calculate split size
+		int elmntLeft = 0, elmntRight = 0, piv = ctx.getBlockSize() / 2, size = NodeEntry.INIT_SIZE;
+		for (; size < piv && elmntLeft < i; elmntLeft++)
+			size += srcNEntry.entries[elmntLeft].sSize();	
+		// adjust entries for the splitted entries
+		elmntRight = srcNEntry.Len() - elmntLeft;		
+		// allocate new source node entry
+		NodeEntry newSrc = new NodeEntry(srcNEntry.blkNo, new KVEntryImp[elmntLeft],0);
+		// copy first half of the entries
+		System.arraycopy(srcNEntry.entries, 0, newSrc.entries, 0, elmntLeft);
+		// allocate new node entry for the new node
+		NodeEntry newNEntry = new NodeEntry(blkNo, new KVEntryImp[elmntRight], NodeEntry.INIT_SIZE);
+		// copy remaining entries to new node entries
+		System.arraycopy(srcNEntry.entries, elmntLeft, newNEntry.entries, 0, elmntRight);
+        // adjust size
+		newSrc.size = size;
+		newNEntry.size += (srcNEntry.size - size);
+        // Setup links for new node
+		newNEntry.next = srcNEntry.next;
+		newNEntry.prev = src;
+		// setup links for the new source
+		newSrc.next = newNode;
+		newSrc.prev = srcNEntry.prev;
+		
+		// Atomically set src and new node
+		newNode.setNodeEntry(newNEntry);
+		src.setNodeEntry(newSrc);
+		// update statistics
+		stat.htMap.put(ht,stat.htMap.get(ht) + 1);
+		return newNode;		
+	}
+	
+	/**
+	 * To find node node in the tree
+	 * @param nEntry
+	 * @param entry
+	 * @return
+	 */
+	private int findIndex(NodeEntry nEntry, KVEntryImp entry) {
+		int index = nEntry.fkey() != null ? 0 : 1;
+		index = binarySearch(nEntry.entries, index, nEntry.Len(), entry, eComp);
+		if (index >= 0) return index;
+		index = abs(index) - 2;
+		return index < 0 ? 0 : index;
+	}	
+	/**
+	 * Common method to support both Get and Iterator.
+	 * @param node
+	 * @param htl
+	 * @param entry
+	 * @return
+	 * @throws Exception
+	 */
+	private KVEntryImp findEntry(Node node, int htl, KVEntryImp entry) throws Exception {
+		NodeEntry nEntry = node.getNodeEntry();
+		int indx = findIndex(nEntry, entry);
+		/**
+		 * In case node split happened before parent was update
+		 */
+		if (indx == nEntry.Len() - 1 && nEntry.next != null) {
 			NodeEntry nLocal = nEntry.nextNode().getNodeEntry();
 			if (eComp.compare(entry, nLocal.entries[0]) >= 0)
 				return findEntry(nEntry.nextNode(), htl, entry);
@@ -635,6 +1463,9 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 			return findEntry(nEntry.getNode(indx), htl - 1, entry);
 		// Get the block number
 		Long blNo = nEntry.getBlk(indx);
+		// point lookup, search serialised pages in place
+		if (!entry.dMarker)
+			return lookup(blNo, entry);
 		/**
 		 * In case node was just split in time.Iterate through the next block as well
 		 */
@@ -658,6 +1489,40 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		return indx >= 0 && !nEntry.entries[indx].dMarker ? nEntry.entries[indx] : null;
 	}
 	
+	/**
+	 * Search a key without decoding the leaf, follow the next link if the key
+	 * is beyond the block in case it was just split
+	 * @param bNo
+	 * @param entry
+	 * @return live entry or null
+	 * @throws Exception
+	 */
+	private KVEntryImp lookup(Long bNo, KVEntryImp entry) throws Exception {
+		KVEntryImp found = null;
+		do {
+			Page page = null;
+			boolean done = false;
+			kLocker.lock(bNo);
+			try {
+				page = pinBlk(bNo);
+				// a mapped page is live, search it before anyone can write it
+				if (page.isLive()) {
+					try { found = lSearch.search(page.buf(), entry.key); }
+					finally { unpinBlk(page); }
+					done = true;
+				}
+			} finally {
+				kLocker.unlock(bNo);
+			}
+			// cached page is immutable while pinned
+			if (!done) {
+				try { found = lSearch.search(page.buf(), entry.key); }
+				finally { unpinBlk(page); }
+			}
+		} while (found == null && (bNo = lSearch.next()) != -1L);
+		return found != null && !found.dMarker ? found : null;
+	}
+	
 	/**
 	 * Merge sorted and unsorted entries together 
 	 * @param uNode
@@ -714,14 +1579,21 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	 * @throws Exception
 	 */
 	private NodeEntry loadAndMerge(Long blkId) throws Exception {
-		// read block
-		byte[] data = lockAndRead(blkId);
-		// Get byte buffer
-		ByteBuffer buf = ByteBuffer.wrap(data);
-		// Load sorted list
-		NodeEntry nEntry = NodeEntry.loadSorted(buf, blkId);
-		// load unsorted list now
-		return merge(NodeEntry.loadUnsorted(buf, null), nEntry);
+		return loadAndMerge(blkId, false);
+	}
+	
+	/**
+	 * Load block without values if keysOnly, sort and merge
+	 * @param blkId
+	 * @param keysOnly
+	 * @return
+	 * @throws Exception
+	 */
+	private NodeEntry loadAndMerge(Long blkId, boolean keysOnly) throws Exception {
+		// load block
+		NodeEntry[] nEntries = lockAndLoad(blkId, keysOnly);
+		// merge sorted and unsorted now
+		return merge(nEntries[1], nEntries[0]);
 	}
 	
 	/**
@@ -730,30 +1602,20 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	 * @return
 	 * @throws Exception
 	 */
-	private NodeEntry loadLastBlock() throws Exception {
+	private NodeEntry loadLastBlock(boolean keysOnly) throws Exception {
 		/**
 		 *  To ensure we are dealing with right mode block
 		 */
-		Long nextId = right, blkId;
-		ByteBuffer buf = null;		
+		Long nextId = right;
+		NodeEntry[] nEntries = null;		
 		do {
-			blkId = nextId;
-			// lock block id
-			kLocker.lock(blkId);
-			try {
-				// read block
-				buf = readBlk(blkId);
-				// read next link to ensure we are dealing with last block only
-				nextId = NodeEntry.getNextLink(buf);
-			} finally {
-				kLocker.unlock(blkId);
-			}
+			// load block
+			nEntries = lockAndLoad(nextId, keysOnly);
+			// read next link to ensure we are dealing with last block only
+			nextId = nEntries[0].nextBlk();
 		} while (nextId != -1L);
-		
-		// Load sorted list
-		NodeEntry nEntry = NodeEntry.loadSorted(buf, blkId);
-		// load unsorted list now
-		return merge(NodeEntry.loadUnsorted(buf, null), nEntry);		
+		// merge sorted and unsorted now
+		return merge(nEntries[1], nEntries[0]);		
 	}
 	
 	/**
@@ -781,8 +1643,8 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	 * @return
 	 * @throws Exception
 	 */
-	private NodeEntry loadPrevBlk(Long blkId) throws Exception {
-		ByteBuffer buf = null;
+	private NodeEntry loadPrevBlk(Long blkId, boolean keysOnly) throws Exception {
+		NodeEntry[] nEntries = null;
 		long prevId = -1L;
 		/**
 		 * Lock block and than read previous block if exist
@@ -790,27 +1652,31 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		kLocker.lock(blkId);
 		try {
 			// read block
-			buf = readBlk(blkId);
+			Page page = pinBlk(blkId);
 			// get the previous block number
-			prevId = NodeEntry.getPrevLink(buf);
+			try { prevId = NodeEntry.getPrevLink(page.buf()); } 
+			finally { unpinBlk(page); }
 			// we already hit the dead end
 			if (prevId == -1L)
 				return null;
 			// read previous block now
-			buf = readBlk(prevId);			
+			nEntries = lockAndLoad(prevId, keysOnly);			
 		} finally {
 			kLocker.unlock(blkId);			
 		}
-		// Load sorted list
-		NodeEntry nEntry = NodeEntry.loadSorted(buf, prevId);
-		// load unsorted list now
-		return merge(NodeEntry.loadUnsorted(buf, null), nEntry);		
+		// merge sorted and unsorted now
+		return merge(nEntries[1], nEntries[0]);		
 	}
 	
 	@Override
 	public void sync() throws Exception {
+		// only the log need to be forced
+		if (wal != null) {
+			wal.commit();
+			return;
+		}
 		wLoc.lock();
-		try { syncFiles(); } 
+		try { checkpoint(); } 
 		finally { wLoc.unlock(); }
 	}
 
@@ -823,9 +1689,20 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	@Override
 	public KVEntry get(byte[] key) throws Exception {
 		KVEntryImp entry = new KVEntryImp(key, null);
-		RootNode lNode = rNode;
-		entry =  findEntry(lNode.root, lNode.ht , entry);
-		return entry != null ? loadLob(entry) : null;
+		long epoch = readers.enter();
+		try {
+			// buffered entry is newer than any leaf entry
+			if (mem != null) {
+				KVEntryImp bEntry = memGet(entry);
+				if (bEntry != null)
+					return bEntry.dMarker ? null : loadLob(bEntry.getACopy());
+			}
+			RootNode lNode = rNode;
+			entry =  findEntry(lNode.root, lNode.ht , entry);
+			return entry != null ? loadLob(entry) : null;
+		} finally {
+			readers.exit(epoch);
+		}
 	}
 
 	@Override
@@ -847,18 +1724,35 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	 * @throws Exception
 	 */
 	private KVEntry put(byte[] key, byte[] val, boolean del) throws Exception {
+		return put(new KVEntryImp(key, val, del));
+	}
+	/**
+	 * Log and apply an entry
+	 * @param entry
+	 * @return
+	 * @throws Exception
+	 */
+	private KVEntry put(KVEntryImp entry) throws Exception {
+		Object val = entry.value;
+		boolean del = entry.dMarker;
+		long seq = 0;
 		// acquire write lock first 
 		wLoc.lock();
 		try {
-			// Create Entry
-			KVEntryImp entry = new KVEntryImp(key, val, del);
-			/** Update tree now... */
-			buildTree(entry);
-			/** check if time for issue a sync... */
-			if (curBlkSync > ctx.getMaxBlkSync()) {
-				syncFiles();
-				curBlkSync = 0;
+			/** Log it before the tree is touched, never log what can not be applied */
+			if (wal != null) {
+				if (entry.size > ctx.getMaxLobSize())
+					throw new RuntimeException("Too Big Lob");
+				seq = wal.append(entry);
 			}
+			/** Update buffer or tree now... */
+			if (mem != null)
+				buffer(entry);
+			else
+				buildTree(entry);
+			/** check if time for issue a sync... */
+			if (syncDue())
+				requestSync();
 			// set value back to value in case it was a LOB
 			entry.value = val;
 			// update size statistics
@@ -867,40 +1761,451 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 			if (!del) stat.numOfActRecs++;
 			// update number of deleted record statistics
 			else stat.numOfDelRecs++;
-			return entry;			
 		} finally {
 			wLoc.unlock();
-		}		
+		}
+		// group commit, wait outside the write lock
+		if (wal != null)
+			wal.commit(seq);
+		return entry;
 	}
 	
 	@Override
-	public KVIterator iterator() throws Exception {
-		return new IteratorImp(null, null, false);
+	public KVEntry put(byte[] key, InputStream in, int length) throws Exception {
+		KVEntryImp entry = new KVEntryImp(key, null, false);
+		if (length <= 0)
+			throw new RuntimeException("Value can not be empty");
+		// serialised size once the value is in
+		entry.size = entry.sSize() + 1 + length;
+		if (entry.size > ctx.getMaxLobSize())
+			throw new RuntimeException("Too Big Lob");
+		// small value, goes in the leaf as usual
+		if (!isLob(entry)) {
+			byte[] val = new byte[length];
+			readFully(in, val, 0, length);
+			return put(key, val);
+		}
+		entry.value = writeLob(entry, in, length);
+		put(entry);
+		entry.value = null;
+		return entry;
+	}
+	/**
+	 * Stream a LOB to newly allocated blocks and make it durable, without
+	 * holding the write lock
+	 * @param entry - entry with size set
+	 * @param in
+	 * @param length
+	 * @return first block
+	 * @throws Exception
+	 */
+	private long writeLob(KVEntryImp entry, InputStream in, int length) throws Exception {
+		int bs = ctx.getBlockSize(), nb = (entry.size + bs - 1) / bs;
+		long ref;
+		wLoc.lock();
+		try { ref = genDiskRefNo(nb); }
+		finally { wLoc.unlock(); }
+		boolean done = false;
+		// own handle, the writer's ones are not thread safe
+		try (RandomAccessFile rf = new RandomAccessFile(getFileName((int) (ref >> 32), dfPrefix, dfPostfix), "rw")) {
+			rf.seek((long) bs * (int) ref);
+			byte[] chunk = new byte[Math.min(entry.size, LOB_CHUNK)];
+			// same layout as a serialised entry
+			ByteBuffer buf = ByteBuffer.wrap(chunk);
+			buf.putInt(entry.size).putLong(entry.ts).putInt(entry.size).put((byte) 0)
+			   .putInt(entry.key.length).put(entry.key).put((byte) 0);
+			int n = buf.position();
+			for (int left = length; left > 0;) {
+				int r = Math.min(chunk.length - n, left);
+				readFully(in, chunk, n, r);
+				n += r;
+				left -= r;
+				if (n == chunk.length || left == 0) {
+					rf.write(chunk, 0, n);
+					n = 0;
+				}
+			}
+			// whole blocks, the file length tells the next free block at open
+			rf.write(new byte[nb * bs - entry.size]);
+			// durable before anything points to it
+			rf.getFD().sync();
+			done = true;
+		} finally {
+			if (!done) {
+				wLoc.lock();
+				try { fsm.release(ref, nb); }
+				finally { wLoc.unlock(); }
+			}
+		}
+		if (pCache != null)
+			pCache.invalidate(ref, nb);
+		return ref;
 	}
 	
-	@Override
-	public KVIterator iterator(boolean rev) throws Exception {
-		return new IteratorImp(null, null, rev);
+	private static void readFully(InputStream in, byte[] b, int off, int len) throws Exception {
+		while (len > 0) {
+			int r = in.read(b, off, len);
+			if (r < 0)
+				throw new EOFException("Stream ended " + len + " bytes early");
+			off += r;
+			len -= r;
+		}
 	}
-
+	
 	@Override
-	public KVIterator iterator(byte[] start) throws Exception {
-		return new IteratorImp(start, null, false);
+	public LobReader openLob(byte[] key) throws Exception {
+		KVEntryImp entry = new KVEntryImp(key, null);
+		// keep blocks or value log segment from being reused while open
+		long epoch = readers.enter();
+		KVEntryImp found;
+		try {
+			found = mem != null ? memGet(entry) : null;
+			if (found == null) {
+				RootNode lNode = rNode;
+				found = findEntry(lNode.root, lNode.ht, entry);
+			}
+		} catch (Exception e) {
+			readers.exit(epoch);
+			throw e;
+		}
+		if (found == null || found.dMarker || !(found.value instanceof Long)) {
+			readers.exit(epoch);
+			return found == null || found.dMarker ? null : new LobReaderImp((byte[]) found.value);
+		}
+		long ref = (long) found.value;
+		int off = KVEntryImp.KV_META_SZ + key.length + 1;
+		return new LobReaderImp(this, ref, epoch, off, found.size - off);
+	}
+	/**
+	 * Read a range of a serialised LOB or value log entry
+	 * @param ref
+	 * @param pos - position within the entry
+	 * @param dst
+	 * @throws Exception
+	 */
+	void readLob(long ref, long pos, ByteBuffer dst) throws Exception {
+		if (ValueLog.isRef(ref))
+			vlog.read(ref, pos, dst);
+		else
+			readAt(ref, pos, dst);
+	}
+	/**
+	 * A LOB reader was closed
+	 * @param epoch - reader epoch it entered with
+	 */
+	void closeLob(long epoch) {
+		readers.exit(epoch);
 	}
 	
 	@Override
-	public KVIterator iterator(byte[] start, boolean rev) throws Exception {
-		return new IteratorImp(start , null , rev);
+	public CompletableFuture<KVEntry> putAsync(byte[] key, byte[] value) {
+		return putAsync(key, value, false);
 	}
 
 	@Override
-	public KVIterator iterator(byte[] start, byte[] end) throws Exception {
-		return new IteratorImp(start, end, false);
-	}
+	public CompletableFuture<KVEntry> putAsync(byte[] key, byte[] value, boolean durable) {
+		KVEntryImp entry;
+		try {
+			entry = new KVEntryImp(key, value, false);
+		} catch (RuntimeException e) {
+			return failed(e);
+		}
+		return submit(entry, durable);
+	}
+
+	@Override
+	public CompletableFuture<KVEntry> deleteAsync(byte[] key) {
+		return deleteAsync(key, false);
+	}
+
+	@Override
+	public CompletableFuture<KVEntry> deleteAsync(byte[] key, boolean durable) {
+		KVEntryImp entry;
+		try {
+			entry = new KVEntryImp(key, null, true);
+		} catch (RuntimeException e) {
+			return failed(e);
+		}
+		return submit(entry, durable);
+	}
+	/**
+	 * A future completed with an error
+	 * @param t
+	 * @return
+	 */
+	private static CompletableFuture<KVEntry> failed(Throwable t) {
+		CompletableFuture<KVEntry> future = new CompletableFuture<>();
+		future.completeExceptionally(t);
+		return future;
+	}
+	/**
+	 * Hand over an operation to the writer thread
+	 * @param entry
+	 * @param durable
+	 * @return
+	 */
+	private CompletableFuture<KVEntry> submit(KVEntryImp entry, boolean durable) {
+		AsyncOp op = new AsyncOp(entry, durable);
+		if (entry.size > ctx.getMaxLobSize()) {
+			op.future.completeExceptionally(new RuntimeException("Too Big Lob"));
+			return op.future;
+		}
+		AsyncWriter w = writer;
+		if (w == null) {
+			synchronized (this) {
+				if ((w = writer) == null)
+					writer = w = new AsyncWriter();
+			}
+		}
+		w.submit(op);
+		return op.future;
+	}
+
+	@Override
+	public WriteBatch newWriteBatch() {
+		return new WriteBatchImp();
+	}
+
+	@Override
+	public void write(WriteBatch batch) throws Exception {
+		if (!(batch instanceof WriteBatchImp))
+			throw new RuntimeException("Unknown write batch implementation");
+		List<KVEntryImp> list = ((WriteBatchImp) batch).entries();
+		if (list.isEmpty())
+			return;
+		apply(list, true);
+	}
+
+	@Override
+	public long bulkLoad(Iterator<? extends KVEntry> entries, int fillFactor) throws Exception {
+		if (fillFactor < 1 || fillFactor > 100)
+			throw new IllegalArgumentException("Fill factor must be between 1 and 100");
+		wLoc.lock();
+		try {
+			// every key is in the leaves
+			flushMem();
+			return new BulkLoader(fillFactor).load(entries);
+		} finally {
+			wLoc.unlock();
+		}
+	}
+	/**
+	 * Apply entries under a single write lock and log them as one record.
+	 * The log is not committed, unless it is a write batch. A batch is
+	 * logged even if the write ahead log is disabled and made durable
+	 * before the tree is touched, after a crash it is replayed as a whole
+	 * @param list - entries in arrival order
+	 * @param batch - entries of a write batch
+	 * @return log sequence
+	 * @throws Exception
+	 */
+	private long apply(List<KVEntryImp> list, boolean batch) throws Exception {
+		// stable sort, so the last operation on a key stays last
+		KVEntryImp[] entries = list.toArray(new KVEntryImp[0]);
+		Arrays.sort(entries, eComp);
+		entries = lastOfEachKey(entries);
+		long seq = 0;
+		wLoc.lock();
+		try {
+			// one log record for the whole batch
+			WriteAheadLog log = wal != null ? wal : batch ? batchLog : null;
+			if (log != null) {
+				for (KVEntryImp entry : entries)
+					if (entry.size > ctx.getMaxLobSize())
+						throw new RuntimeException("Too Big Lob");
+				seq = log.append(entries);
+				// no part of a batch reaches the leaves before all of it is logged
+				if (batch)
+					log.commit(seq);
+			}
+			if (mem != null) {
+				for (KVEntryImp entry : entries)
+					buffer(entry);
+			} else {
+				// LOB values are replaced by references while applying
+				Object[] vals = new Object[entries.length];
+				for (int i = 0; i < entries.length; i++)
+					vals[i] = entries[i].value;
+				try {
+					applyBatch(entries);
+				} finally {
+					for (int i = 0; i < entries.length; i++)
+						entries[i].value = vals[i];
+				}
+			}
+			// no checkpoint in the middle of a batch
+			if (syncDue())
+				requestSync();
+			for (KVEntryImp entry : entries) {
+				stat.apprxSize += entry.size;
+				if (!entry.dMarker) stat.numOfActRecs++;
+				else stat.numOfDelRecs++;
+			}
+		} finally {
+			wLoc.unlock();
+		}
+		return seq;
+	}
+	/**
+	 * Drop all but the last operation of every key, entries must be sorted
+	 * @param entries
+	 * @return
+	 */
+	private KVEntryImp[] lastOfEachKey(KVEntryImp[] entries) {
+		int n = 0;
+		for (int i = 0; i < entries.length; i++) {
+			if (i + 1 < entries.length && eComp.compare(entries[i], entries[i + 1]) == 0)
+				continue;
+			entries[n++] = entries[i];
+		}
+		return n == entries.length ? entries : Arrays.copyOf(entries, n);
+	}
+	/**
+	 * Apply sorted entries leaf by leaf. Entries falling in the same leaf are
+	 * written with a single read and write of the block, unless the leaf has
+	 * to split, in which case they go one by one.
+	 * @param entries
+	 * @throws Exception
+	 */
+	private void applyBatch(KVEntryImp[] entries) throws Exception {
+		int from = 0;
+		while (from < entries.length) {
+			KVEntryImp bEntry = findLeaf(entries[from]);
+			long blkNo = (long) bEntry.value;
+			int to = from + 1;
+			while (to < entries.length && (long) findLeaf(entries[to]).value == blkNo)
+				to++;
+			if (!updateBlock(bEntry, entries, from, to))
+				for (int i = from; i < to; i++)
+					buildTree(entries[i]);
+			from = to;
+		}
+	}
+	/**
+	 * Find branch entry of the leaf where the entry belongs, write lock must be held
+	 * @param entry
+	 * @return
+	 */
+	private KVEntryImp findLeaf(KVEntryImp entry) {
+		NodeEntry nEntry = leafParent(entry).getNodeEntry();
+		return nEntry.entries[findIndex(nEntry, entry)];
+	}
+	/**
+	 * Put several entries into a leaf with one block write. Return false if
+	 * the leaf has to split
+	 * @param bEntry
+	 * @param entries
+	 * @param from
+	 * @param to
+	 * @return
+	 * @throws Exception
+	 */
+	private boolean updateBlock(KVEntryImp bEntry, KVEntryImp[] entries, int from, int to) throws Exception {
+		// serialised size once LOBs are moved out
+		int sz = 0;
+		for (int i = from; i < to; i++) {
+			KVEntryImp entry = entries[i];
+			sz += isLob(entry) || toVlog(entry) ? KVEntryImp.KV_META_SZ + entry.key.length + 9 : entry.sSize();
+		}
+		Long blkNo = (long) bEntry.value;
+		byte[] data = readPage(blkNo);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		int size = buf.getInt();
+		// LOBs replaced by the entries, released only if the batch is written
+		List<KVEntryImp> olds = new ArrayList<>();
+		for (int i = from; i < to; i++) {
+			KVEntryImp old = replacedLob(buf, entries[i]);
+			if (old != null)
+				olds.add(old);
+		}
+		for (int i = from; i < to; i++)
+			checkLob(entries[i]);
+		// put them one by one in a slotted page
+		if (NodeEntry.isSlotted(buf)) {
+			int i = from;
+			while (i < to && NodeEntry.putSlot(buf, lSearch.slot(buf, entries[i].key), entries[i]))
+				i++;
+			if (i == to) {
+				lockAndWrite(blkNo, data);
+				releaseLobs(olds);
+				return true;
+			}
+		}
+		// append all of them
+		else if (size + sz < ctx.getBlockSize()) {
+			buf.position(size);
+			for (int i = from; i < to; i++)
+				entries[i].serialize(buf);
+			buf.putInt(0, size + sz);
+			lockAndWrite(blkNo, data);
+			releaseLobs(olds);
+			return true;
+		}
+		// merge all of them, if it still fits
+		buf.clear();
+		NodeEntry sNode = NodeEntry.loadSorted(buf, blkNo);
+		NodeEntry uNode = NodeEntry.loadUnsorted(buf, null);
+		KVEntryImp[] all = Arrays.copyOf(uNode.entries, uNode.Len() + to - from);
+		System.arraycopy(entries, from, all, uNode.Len(), to - from);
+		NodeEntry nEntry = merge(new NodeEntry(-1L, all), sNode);
+		if (!serialize(nEntry, buf))
+			return false;
+		lockAndWrite(blkNo, data);
+		releaseLobs(olds);
+		return true;
+	}
+	
+	@Override
+	public KVIterator iterator() throws Exception {
+		return newIterator(null, null, false);
+	}
+	
+	@Override
+	public KVIterator iterator(boolean rev) throws Exception {
+		return newIterator(null, null, rev);
+	}
+
+	@Override
+	public KVIterator iterator(byte[] start) throws Exception {
+		return newIterator(start, null, false);
+	}
+	
+	@Override
+	public KVIterator iterator(byte[] start, boolean rev) throws Exception {
+		return newIterator(start, null, rev);
+	}
+
+	@Override
+	public KVIterator iterator(byte[] start, byte[] end) throws Exception {
+		return newIterator(start, end, false);
+	}
 	
 	@Override
 	public KVIterator iterator(byte[] start, byte[] end, boolean rev) throws Exception {
-		return new IteratorImp(start, end, rev);
+		return newIterator(start, end, rev);
+	}
+
+	@Override
+	public KVIterator iterator(byte[] start, byte[] end, boolean rev, boolean keysOnly) throws Exception {
+		return newIterator(start, end, rev, keysOnly);
+	}
+
+	private KVIterator newIterator(byte[] start, byte[] end, boolean rev) throws Exception {
+		return newIterator(start, end, rev, false);
+	}
+
+	/**
+	 * Leaf iterator, merged with the write buffer if enabled
+	 * @param start
+	 * @param end
+	 * @param rev
+	 * @param keysOnly - values are neither decoded nor loaded
+	 * @return
+	 * @throws Exception
+	 */
+	private KVIterator newIterator(byte[] start, byte[] end, boolean rev, boolean keysOnly) throws Exception {
+		return mem != null ? new MergeIterator(start, end, rev, keysOnly)
+				: new IteratorImp(start, end, rev, keysOnly);
 	}
 
 	@Override
@@ -965,17 +2270,57 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	
 	@Override
 	public void close() throws Exception {
+		// Apply queued operations and stop the writer
+		AsyncWriter w = writer;
+		if (w != null)
+			w.shutdown();
+		// Stop moving values
+		if (collector != null)
+			collector.shutdown();
+		// Stop compacting leaves
+		if (compactor != null)
+			compactor.shutdown();
+		// Stop moving leaves
+		if (relocator != null)
+			relocator.shutdown();
+		// Stop background syncs
+		if (flusher != null)
+			flusher.shutdown();
+		// Stop reading ahead, a task reads a few leaves at most
+		if (aheadPool != null) {
+			aheadPool.shutdown();
+			aheadPool.awaitTermination(1, TimeUnit.MINUTES);
+		}
 		// Hold the write lock
 		wLoc.lock();
 		try {
 			// sync all open files
-			syncFiles();
-			// Close tree log file
-			close(tlFile);
+			checkpoint();
+			// snapshot the branches for the next open
+			if (tlog.size() > 0)
+				saveSnapshot();
+			// save free blocks
+			fsm.close();
+			// save the exact tail
+			if (allocator != null)
+				allocator.close();
+			// save dead bytes of the value log
+			if (vlog != null)
+				vlog.close();
+			// Close write ahead log
+			if (redoLog() != null)
+				redoLog().close();
+			// Close tree log
+			tlog.close();
+			// Close read channels and drop mappings
+			closeReadChannels();
 			// delete lock file
 			lock.delete();
 			// Unregister statistics
 			stat.unregister();	
+			// drop cached pages
+			if (pCache != null)
+				pCache.clear();
 			ctx = null;
 			rNode = null;			
 		} finally {
@@ -1073,6 +2418,33 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		 * Minimum size of Node Entry
 		 */
 		static final int INIT_SIZE = 24;
+		/**
+		 * Sorted length flag, sorted region is [raw len(4)][compressed....]
+		 */
+		static final int COMPRESSED = 0x80000000;
+		/**
+		 * Sorted length flag, keys of the sorted region are prefix encoded
+		 * [count(4)][restarts(4)][restart offset(4)....][entry....]
+		 */
+		static final int PREFIXED = 0x40000000;
+		/**
+		 * Page format 2, sorted length is the slot count
+		 * [heap start(4)][count | SLOTTED(4)][next blk][prev blk][slot(4)....][free....][entry....]
+		 * slots hold entry offsets in key order, entries grow down from the block end
+		 */
+		static final int SLOTTED = 0x20000000;
+		/**
+		 * Mask of the sorted length without flags
+		 */
+		static final int LEN_MASK = ~(COMPRESSED | PREFIXED | SLOTTED);
+		/**
+		 * Size of a slot
+		 */
+		static final int SLOT_SZ = 4;
+		/**
+		 * Prefix encoded entries between restart points
+		 */
+		static final int RESTART = 16;
 		/**
 		 * Physical disk block number
 		 */
@@ -1192,6 +2564,121 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 			for (KVEntryImp entry : entries) 
 				entry.serialize(buf);							
 		}
+		// [size(4)][sorted len | flags(4)][next blk][prev blk][raw len(4)][compressed....]
+		// [size(4)][sorted len | PREFIXED(4)][next blk][prev blk][prefixed....]
+		// encoded region is already in place
+		void serializeEncoded(ByteBuffer buf, int flags, int end, int rawLen) {
+			buf.putInt(end)
+			   .putInt(end | flags)
+			   .putLong(getBlkNo(next))
+			   .putLong(getBlkNo(prev));
+			if ((flags & COMPRESSED) != 0)
+				buf.putInt(rawLen);
+		}
+		// [heap start(4)][count | SLOTTED(4)][next blk][prev blk][slot(4)....][free....][entry....]
+		// caller checked it fits
+		void serializeSlotted(ByteBuffer buf) {
+			int heap = buf.capacity(), n = entries.length;
+			for (int i = n - 1; i >= 0; i--) {
+				heap -= entries[i].sSize();
+				buf.position(heap);
+				entries[i].serialize(buf);
+				buf.putInt(INIT_SIZE + SLOT_SZ * i, heap);
+			}
+			buf.putInt(0, heap)
+			   .putInt(4, n | SLOTTED)
+			   .putLong(8, getBlkNo(next))
+			   .putLong(16, getBlkNo(prev));
+			buf.clear();
+		}
+		// size of the slotted image
+		int slottedSize() {
+			return calcSize() + SLOT_SZ * entries.length;
+		}
+		// check if a page is slotted
+		static boolean isSlotted(ByteBuffer buf) {
+			return (buf.getInt(4) & SLOTTED) != 0;
+		}
+		/**
+		 * Put an entry at a slot of a slotted page, only the slots after it are
+		 * shifted. A replaced entry is left as garbage until the page is rewritten.
+		 * @param buf
+		 * @param indx - slot of the key if found, -(insertion point) - 1 otherwise
+		 * @param entry
+		 * @return false if there is not enough free space
+		 */
+		static boolean putSlot(ByteBuffer buf, int indx, KVEntryImp entry) {
+			int heap = buf.getInt(0), count = buf.getInt(4) & LEN_MASK;
+			int sz = entry.sSize(), dir = INIT_SIZE + SLOT_SZ * count;
+			boolean insert = indx < 0;
+			if (heap - dir < sz + (insert ? SLOT_SZ : 0))
+				return false;
+			heap -= sz;
+			buf.position(heap);
+			entry.serialize(buf);
+			buf.clear();
+			if (insert) {
+				indx = -indx - 1;
+				int pos = INIT_SIZE + SLOT_SZ * indx;
+				System.arraycopy(buf.array(), pos, buf.array(), pos + SLOT_SZ, dir - pos);
+				count++;
+			}
+			buf.putInt(INIT_SIZE + SLOT_SZ * indx, heap)
+			   .putInt(0, heap)
+			   .putInt(4, count | SLOTTED);
+			return true;
+		}
+		// sorted region in entry format
+		ByteBuffer plain() {
+			ByteBuffer raw = ByteBuffer.allocate(size - INIT_SIZE);
+			for (KVEntryImp entry : entries)
+				entry.serialize(raw);
+			raw.flip();
+			return raw;
+		}
+		// sorted region with shared key prefix encoding, each entry
+		// [tot len(4)][shared(2)][TS(8)][size(4)][dMarker(1)][suffix len(2)][suffix....][Value...]
+		ByteBuffer prefixed() {
+			int restarts = (entries.length + RESTART - 1) / RESTART;
+			int[] shared = new int[entries.length];
+			int sz = 8 + 4 * restarts;
+			for (int i = 0; i < entries.length; i++) {
+				if (i % RESTART != 0)
+					shared[i] = sharedLen(entries[i - 1].key, entries[i].key);
+				sz += entries[i].sSize() - shared[i];
+			}
+			ByteBuffer raw = ByteBuffer.allocate(sz);
+			raw.putInt(entries.length).putInt(restarts);
+			int pos = 8 + 4 * restarts;
+			for (int i = 0; i < entries.length; i++) {
+				KVEntryImp entry = entries[i];
+				if (i % RESTART == 0)
+					raw.putInt(8 + 4 * (i / RESTART), pos);
+				raw.position(pos);
+				int sfx = entry.key.length - shared[i];
+				raw.putInt(entry.sSize() - shared[i])
+				   .putShort((short) shared[i])
+				   .putLong(entry.ts)
+				   .putInt(entry.size)
+				   .put(entry.dMarker ? (byte) 1 : 0)
+				   .putShort((short) sfx)
+				   .put(entry.key, shared[i], sfx);
+				if (entry.value instanceof Long)
+					raw.put((byte) 1).putLong((long) entry.value);
+				else if (entry.value != null)
+					raw.put((byte) 0).put((byte[]) entry.value);
+				pos = raw.position();
+			}
+			raw.flip();
+			return raw;
+		}
+		// length of the common prefix
+		private static int sharedLen(byte[] k1, byte[] k2) {
+			int n = Math.min(k1.length, k2.length), i = 0;
+			while (i < n && k1[i] == k2[i])
+				i++;
+			return i;
+		}
 		// 
 		private long getBlkNo(Object obj) {
 			if (obj == null) return -1L;
@@ -1211,30 +2698,123 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 	   		
 		// [size(4)][sorted len(4)][next blk][prev blk][......]
 		static NodeEntry loadSorted(ByteBuffer buf, long blkNo) {
+			return loadSorted(buf, blkNo, false);
+		}
+		// values are skipped if keysOnly
+		static NodeEntry loadSorted(ByteBuffer buf, long blkNo, boolean keysOnly) {
 			buf.getInt(); // entire block size
 			NodeEntry nEntry = new NodeEntry(blkNo);
 			nEntry.size = buf.getInt(); // Sorted size
 			nEntry.next = buf.getLong(); // next block
 			nEntry.prev = buf.getLong(); // previous block
+			if ((nEntry.size & SLOTTED) != 0) {
+				loadSlotted(buf, nEntry, keysOnly);
+				buf.clear();
+				return nEntry;
+			}
+			if ((nEntry.size & ~LEN_MASK) != 0) {
+				loadEncoded(buf, nEntry, keysOnly);
+				buf.clear();
+				return nEntry;
+			}
 			buf.limit(nEntry.size); // Set limit to sorted size
-			loadEntries(buf, nEntry, null);
+			loadEntries(buf, nEntry, null, keysOnly);
 			buf.clear();
 			return nEntry;
 		}
+		// decode sorted region, size becomes the plain size
+		private static void loadEncoded(ByteBuffer buf, NodeEntry nEntry, boolean keysOnly) {
+			int flags = nEntry.size, end = flags & LEN_MASK;
+			ByteBuffer region = null;
+			if ((flags & COMPRESSED) != 0) {
+				byte[] raw = new byte[buf.getInt()];
+				int cLen = end - buf.position();
+				if (buf.hasArray())
+					LZCodec.decompress(buf.array(), buf.arrayOffset() + buf.position(), cLen, raw);
+				else {
+					byte[] cmp = new byte[cLen];
+					buf.get(cmp);
+					LZCodec.decompress(cmp, 0, cLen, raw);
+				}
+				region = ByteBuffer.wrap(raw);
+			} else {
+				region = buf.duplicate();
+				region.limit(end);
+				region = region.slice();
+			}
+			if ((flags & PREFIXED) != 0)
+				loadPrefixed(region, nEntry, keysOnly);
+			else
+				loadEntries(region, nEntry, null, keysOnly);
+			nEntry.size = nEntry.calcSize();
+		}
+		// decode entries of a slotted page in slot order
+		private static void loadSlotted(ByteBuffer buf, NodeEntry nEntry, boolean keysOnly) {
+			KVEntryImp[] entries = new KVEntryImp[nEntry.size & LEN_MASK];
+			for (int i = 0; i < entries.length; i++) {
+				buf.position(buf.getInt(INIT_SIZE + SLOT_SZ * i));
+				entries[i] = KVEntryImp.dSerialize(buf, keysOnly);
+			}
+			nEntry.entries = entries;
+			nEntry.size = nEntry.calcSize();
+		}
+		// decode prefix encoded entries
+		private static void loadPrefixed(ByteBuffer buf, NodeEntry nEntry, boolean keysOnly) {
+			int count = buf.getInt(), restarts = buf.getInt();
+			buf.position(buf.position() + 4 * restarts);
+			KVEntryImp[] entries = new KVEntryImp[count];
+			byte[] prev = null;
+			for (int i = 0; i < count; i++) {
+				int len = buf.getInt(), shared = buf.getShort() & 0xFFFF;
+				KVEntryImp entry = new KVEntryImp();
+				entry.ts = buf.getLong();
+				entry.size = buf.getInt();
+				entry.dMarker = buf.get() != 0;
+				int sfx = buf.getShort() & 0xFFFF;
+				entry.key = new byte[shared + sfx];
+				if (shared > 0)
+					System.arraycopy(prev, 0, entry.key, 0, shared);
+				buf.get(entry.key, shared, sfx);
+				int valSz = len - (KVEntryImp.KV_META_SZ + sfx);
+				if (valSz > 0 && keysOnly)
+					buf.position(buf.position() + valSz);
+				else if (valSz > 0) {
+					if (buf.get() > 0)
+						entry.value = buf.getLong();
+					else {
+						entry.value = new byte[valSz - 1];
+						buf.get((byte[]) entry.value);
+					}
+				}
+				entries[i] = entry;
+				prev = entry.key;
+			}
+			nEntry.entries = entries;
+		}
 		// [size(4)][sorted len(4)][next blk][prev blk][......]
 		static NodeEntry loadUnsorted(ByteBuffer buf, KVEntryImp entry) {
+			return loadUnsorted(buf, entry, false);
+		}
+		// values are skipped if keysOnly
+		static NodeEntry loadUnsorted(ByteBuffer buf, KVEntryImp entry, boolean keysOnly) {
+			// slotted page has no unsorted entries
+			if (isSlotted(buf)) {
+				NodeEntry nEntry = new NodeEntry();
+				nEntry.entries = entry != null ? new KVEntryImp[] { entry } : new KVEntryImp[0];
+				return nEntry;
+			}
 			buf.limit(buf.getInt()); // Set size to limit
-			buf.position(buf.getInt()); // Set position to unsorted start
+			buf.position(buf.getInt() & LEN_MASK); // Set position to unsorted start
 			NodeEntry nEntry = new NodeEntry();
-			loadEntries(buf, nEntry, entry);
+			loadEntries(buf, nEntry, entry, keysOnly);
 			buf.clear();
 			return nEntry;
 		}
 		// common method to load entries
-	    static void loadEntries(ByteBuffer bBuffer, NodeEntry nEntry, KVEntryImp entry) {
+	    static void loadEntries(ByteBuffer bBuffer, NodeEntry nEntry, KVEntryImp entry, boolean keysOnly) {
 			List<KVEntry> list = new LinkedList<>();
 			KVEntryImp tmp = null;
-			while ((tmp = KVEntryImp.dSerialize(bBuffer)) != null)
+			while ((tmp = KVEntryImp.dSerialize(bBuffer, keysOnly)) != null)
 				list.add(tmp);
 			if (entry != null)
 				list.add(entry);
@@ -1378,6 +2958,10 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		}		
 		/** [tot len(4)][TS(8)][size (4)][dMarker(1)][key len(4)][Key....][Value...] */
 		static KVEntryImp dSerialize(ByteBuffer bBuffer) {
+			return dSerialize(bBuffer, false);
+		}
+		/** Value bytes are skipped if keysOnly, the value stays null */
+		static KVEntryImp dSerialize(ByteBuffer bBuffer, boolean keysOnly) {
 			if (!bBuffer.hasRemaining()) 
 				return null;
 			KVEntryImp entry = new KVEntryImp();
@@ -1398,7 +2982,9 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 			}
 			// Get value bytes
 			int valSz = totSize - ( kSz  + KV_META_SZ );
-			if ( valSz > 0 ) {
+			if ( valSz > 0 && keysOnly )
+				bBuffer.position(bBuffer.position() + valSz);
+			else if ( valSz > 0 ) {
 				if ( bBuffer.get() > 0 )
 					entry.value = bBuffer.getLong();
 				else {
@@ -1421,6 +3007,18 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 			newEntry.dMarker = dMarker;
 			return newEntry;
 		}
+		/**
+		 * Get a copy of entry without value
+		 * @return
+		 */
+		KVEntryImp getAKeyCopy() {
+			KVEntryImp newEntry = new KVEntryImp();
+			newEntry.key = copyKey();
+			newEntry.size = size;
+			newEntry.ts = ts;
+			newEntry.dMarker = dMarker;
+			return newEntry;
+		}
 		/**
 		 * Copy key
 		 * @return
@@ -1469,6 +3067,909 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		public long timeStamp() { return ts; }
 	}
 
+	/**
+	 * An asynchronous put or delete
+	 * @author prasantsmac
+	 *
+	 */
+	static final class AsyncOp {
+		/** Entry to apply, null to stop the writer */
+		final KVEntryImp entry;
+		/** Complete durable or not */
+		final boolean durable;
+		/** Completed with the entry */
+		final CompletableFuture<KVEntry> future = new CompletableFuture<>();
+
+		AsyncOp(KVEntryImp entry, boolean durable) {
+			this.entry = entry;
+			this.durable = durable;
+		}
+	}
+	
+	/**
+	 * Single writer thread for asynchronous operations. Everything queued
+	 * while the previous group was applied goes as one group under a single
+	 * write lock and a single log record.
+	 * @author prasantsmac
+	 *
+	 */
+	private final class AsyncWriter implements Runnable {
+		/** Maximum operations applied as one group */
+		private static final int MAX_GROUP = 1024;
+		/** Pending operations */
+		private final BlockingQueue<AsyncOp> queue = new LinkedBlockingQueue<>();
+		/** Writer thread */
+		private final Thread thread;
+		/** No more operation accepted */
+		private boolean closed = false;
+
+		private AsyncWriter() {
+			thread = new Thread(this, "KVEngine-async-writer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/** Queue an operation, fail it if the writer is stopped */
+		private synchronized void submit(AsyncOp op) {
+			if (closed)
+				op.future.completeExceptionally(new RuntimeException("Engine is closed"));
+			else
+				queue.add(op);
+		}
+
+		/** Apply what is queued and stop */
+		private void shutdown() throws Exception {
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				queue.add(new AsyncOp(null, false));
+			}
+			if (Thread.currentThread() != thread)
+				thread.join();
+		}
+
+		@Override
+		public void run() {
+			List<AsyncOp> ops = new ArrayList<>();
+			boolean stop = false;
+			while (!stop) {
+				try {
+					AsyncOp op = queue.poll();
+					// idle, don't let durable operations wait for ever
+					if (op == null) {
+						if (wal == null && !syncWaiters.isEmpty())
+							sync();
+						op = queue.take();
+					}
+					ops.add(op);
+					queue.drainTo(ops, MAX_GROUP - 1);
+					// stop marker is always the last one
+					if (ops.get(ops.size() - 1).entry == null) {
+						ops.remove(ops.size() - 1);
+						stop = true;
+					}
+					if (!ops.isEmpty())
+						apply(ops);
+				} catch (Throwable t) {
+					println("Async writer error: " + t);
+				} finally {
+					ops.clear();
+				}
+			}
+		}
+
+		/** Apply a group and complete what can be completed */
+		private void apply(List<AsyncOp> ops) {
+			List<KVEntryImp> list = new ArrayList<>(ops.size());
+			boolean durable = false;
+			for (AsyncOp op : ops) {
+				list.add(op.entry);
+				durable |= op.durable;
+			}
+			try {
+				long seq = KVEngineImp.this.apply(list, false);
+				if (durable && wal != null)
+					wal.commit(seq);
+			} catch (Throwable t) {
+				for (AsyncOp op : ops)
+					op.future.completeExceptionally(t);
+				return;
+			}
+			for (AsyncOp op : ops) {
+				if (op.durable && wal == null)
+					syncWaiters.add(op);
+				else
+					op.future.complete(op.entry);
+			}
+		}
+	}
+	
+	/**
+	 * Value log collector. Measures the live bytes of a sealed segment, moves
+	 * its live values to the active segment if too few are live and retires
+	 * it. A value is live if the leaf entry of its key still refers to it.
+	 * @author prasantsmac
+	 *
+	 */
+	private final class VlogCollector implements Runnable {
+		/** Idle time between two looks for a candidate */
+		private static final long IDLE_MS = 1000;
+		/** Collector thread */
+		private final Thread thread;
+		/** Stop indicator */
+		private volatile boolean closed = false;
+
+		private VlogCollector() {
+			thread = new Thread(this, "KVEngine-vlog-gc");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/** Stop collecting, a segment half moved is collected again later */
+		private void shutdown() throws Exception {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			thread.join();
+		}
+
+		@Override
+		public void run() {
+			while (!closed) {
+				boolean busy = false;
+				try {
+					int seg = vlog.candidate(ctx.getVlogGcRatio());
+					busy = seg >= 0 && collect(seg);
+				} catch (Throwable t) {
+					println("Value log collector error: " + t);
+				}
+				if (busy)
+					continue;
+				synchronized (this) {
+					try {
+						if (!closed)
+							wait(IDLE_MS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Collect a segment if it is still sparse
+		 * @param seg
+		 * @return true if collected
+		 * @throws Exception
+		 */
+		private boolean collect(int seg) throws Exception {
+			long[] live = { 0 };
+			long total = vlog.scan(seg, (ref, e) -> {
+				if (current(ref, e) != null)
+					live[0] += ValueLog.REC_HDR_SZ + e.size;
+				return !closed;
+			});
+			if (closed)
+				return false;
+			vlog.setDead(seg, total - live[0]);
+			if (total > 0 && live[0] * 100 >= total * ctx.getVlogGcRatio())
+				return false;
+			// move live values, leaves refer to the new ones
+			vlog.scan(seg, (ref, e) -> {
+				wLoc.lock();
+				try {
+					KVEntryImp cur = current(ref, e);
+					if (cur != null) {
+						long nRef = vlog.append(e);
+						buildTree(new KVEntryImp(e.key, nRef, false, e.size, cur.ts));
+						curBlkSync += e.size / ctx.getBlockSize() + 1;
+						stat.vlogRelocatedBytes += ValueLog.REC_HDR_SZ + e.size;
+					}
+				} finally {
+					wLoc.unlock();
+				}
+				return !closed;
+			});
+			if (closed)
+				return false;
+			// moved values and leaves durable before the segment goes
+			wLoc.lock();
+			try {
+				checkpoint();
+				vlog.retire(seg);
+				stat.numOfVlogCollected++;
+			} finally {
+				wLoc.unlock();
+			}
+			return true;
+		}
+
+		/**
+		 * Leaf entry of the key if it still refers to the record
+		 * @param ref
+		 * @param e
+		 * @return
+		 * @throws Exception
+		 */
+		private KVEntryImp current(long ref, KVEntryImp e) throws Exception {
+			RootNode lNode = rNode;
+			KVEntryImp cur = findEntry(lNode.root, lNode.ht, new KVEntryImp(e.key, null));
+			return cur != null && Long.valueOf(ref).equals(cur.value) ? cur : null;
+		}
+	}
+	
+	/**
+	 * Leaf compactor. Walks the leaves in key order, compactRate leaves per
+	 * second, drops tombstones and merges under filled neighbours. Each leaf
+	 * is compacted under the write lock.
+	 * @author prasantsmac
+	 *
+	 */
+	private final class LeafCompactor implements Runnable {
+		/** Compactor thread */
+		private final Thread thread;
+		/** Stop indicator */
+		private volatile boolean closed = false;
+		/** Next leaf to look at, null for the first one */
+		private byte[] cursor = null;
+
+		private LeafCompactor() {
+			thread = new Thread(this, "KVEngine-compactor");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/** Stop compacting */
+		private void shutdown() throws Exception {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			thread.join();
+		}
+
+		@Override
+		public void run() {
+			long pause = Math.max(1, 1000 / ctx.getCompactRate());
+			while (!closed) {
+				try {
+					step();
+				} catch (Throwable t) {
+					println("Leaf compactor error: " + t);
+				}
+				synchronized (this) {
+					try {
+						if (!closed)
+							wait(pause);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+
+		/** Compact one leaf and move the cursor */
+		private void step() throws Exception {
+			wLoc.lock();
+			try {
+				KVEntryImp key = new KVEntryImp(cursor, null, -1);
+				Node node = leafParent(key);
+				int i = cursor == null ? 0 : findIndex(node.getNodeEntry(), key);
+				// stay on a merged leaf, it might take the next one as well
+				if (compactLeaf(node, i))
+					return;
+				NodeEntry nEntry = node.getNodeEntry();
+				if (i + 1 < nEntry.Len())
+					cursor = nEntry.key(i + 1);
+				else
+					cursor = nEntry.next != null ? nEntry.nextNode().firstKey() : null;
+			} finally {
+				wLoc.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Read ahead request of an iterator, reads leaves along the next or
+	 * previous links into the page cache. It reads in the epoch of the
+	 * iterator, merged leaves are kept until it is over even if the
+	 * iterator is closed first.
+	 * @author prasantsmac
+	 *
+	 */
+	private final class ReadAhead implements Runnable {
+		/** First leaf and number of leaves to read */
+		private final long from;
+		private final int n;
+		/** Follow previous links */
+		private final boolean rev;
+		/** Leaf after the last one read, -1 at the end */
+		private volatile long tail = -1L;
+		/** Indicate the request is over, or no longer wanted */
+		private volatile boolean done = false, cancel = false;
+		/** Reader epoch of the iterator */
+		private final long epoch;
+
+		private ReadAhead(long from, int n, boolean rev, long epoch) {
+			this.from = from;
+			this.n = n;
+			this.rev = rev;
+			this.epoch = epoch;
+		}
+
+		@Override
+		public void run() {
+			long blkNo = from;
+			try {
+				for (int i = 0; i < n && blkNo != -1L && !cancel && !aheadPool.isShutdown(); i++) {
+					long bNo = blkNo;
+					kLocker.lock(bNo);
+					try {
+						Page page = aheadBlk(bNo);
+						try {
+							blkNo = rev ? NodeEntry.getPrevLink(page.buf()) : NodeEntry.getNextLink(page.buf());
+						} finally {
+							unpinBlk(page);
+						}
+					} finally {
+						kLocker.unlock(bNo);
+					}
+				}
+			} catch (Throwable t) {
+				// a hint only, the iterator reads the leaf itself
+				blkNo = -1L;
+			} finally {
+				tail = blkNo;
+				done = true;
+				readers.exit(epoch);
+			}
+		}
+	}
+	
+	/**
+	 * Checkpoint in progress, what its sync covers
+	 * @author prasantsmac
+	 *
+	 */
+	private final class Checkpoint {
+		/** Checkpoint number */
+		private final long no;
+		/** Data files written since the last sync */
+		private final List<RandFileCacheEntry> files = new ArrayList<>();
+		/** Operations waiting for the sync */
+		private final List<AsyncOp> waiters = new ArrayList<>();
+		/** Write ahead log sequence covered */
+		private long walMark;
+		/** Branch snapshot to save and its tree log segment, if due */
+		private List<KVEntryImp> snapEntries;
+		private int snapSeg;
+		/** Indicate the sync succeeded */
+		private boolean synced = false;
+
+		private Checkpoint(long no) {
+			this.no = no;
+		}
+
+		/**
+		 * Second phase, force value log, data files and tree log in that
+		 * order. Needs no lock, the writer goes on meanwhile
+		 * @throws Exception
+		 */
+		private void sync() throws Exception {
+			long tt = System.currentTimeMillis();
+			try {
+				// values before the leaves pointing to them
+				if (vlog != null)
+					vlog.sync();
+				for (RandFileCacheEntry rf : files)
+					KVEngineImp.this.sync(rf);
+				tlog.sync();
+			} catch (Exception e) {
+				for (AsyncOp w : waiters)
+					w.future.completeExceptionally(e);
+				throw e;
+			}
+			for (AsyncOp w : waiters)
+				w.future.complete(w.entry);
+			// tree log is synced, the snapshot can name the new segment
+			if (snapEntries != null)
+				saveSnapshot(snapEntries, snapSeg);
+			synced = true;
+			// Update statistics
+			long t = System.currentTimeMillis() - tt;
+			if (t > stat.maxSyncTime)
+				stat.maxSyncTime = t;
+			stat.numOfSync++;
+			stat.lastSyncTime = tt;
+		}
+	}
+	
+	/**
+	 * Background flusher. Writers crossing the sync threshold of their
+	 * policy only wake it up, the interval policy wakes it every
+	 * syncInterval ms. It starts a checkpoint under the write lock, forces
+	 * the files without it and finishes under it again, so that no writer
+	 * waits for the disk.
+	 * @author prasantsmac
+	 *
+	 */
+	private final class Flusher implements Runnable {
+		/** Flusher thread */
+		private final Thread thread;
+		/** Stop indicator */
+		private volatile boolean closed = false;
+		/** A sync is asked for, a sync is in progress */
+		private boolean due = false, syncing = false;
+
+		private Flusher() {
+			thread = new Thread(this, "KVEngine-flush");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/** Ask for a sync */
+		private synchronized void wakeUp() {
+			if (!due) {
+				due = true;
+				notifyAll();
+			}
+		}
+
+		/** Wait until the sync in progress is over, never takes the write lock */
+		private synchronized void await() throws InterruptedException {
+			while (syncing)
+				wait();
+		}
+
+		/** Stop syncing */
+		private void shutdown() throws Exception {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			thread.join();
+		}
+
+		@Override
+		public void run() {
+			long timeout = "interval".equals(ctx.getSyncPolicy()) ? ctx.getSyncInterval() : 0;
+			while (!closed) {
+				synchronized (this) {
+					try {
+						if (!due && !closed)
+							wait(timeout);
+					} catch (InterruptedException e) {
+						return;
+					}
+					due = false;
+				}
+				if (closed)
+					return;
+				Checkpoint ck = null;
+				wLoc.lock();
+				try {
+					if (curBlkSync > 0 || mem != null && !mem.isEmpty() || !syncWaiters.isEmpty()) {
+						ck = beginCheckpoint();
+						synchronized (this) {
+							syncing = true;
+						}
+					}
+				} catch (Throwable t) {
+					println("Flusher error: " + t);
+				} finally {
+					wLoc.unlock();
+				}
+				if (ck == null)
+					continue;
+				try {
+					ck.sync();
+				} catch (Throwable t) {
+					println("Flusher error: " + t);
+				} finally {
+					synchronized (this) {
+						syncing = false;
+						notifyAll();
+					}
+				}
+				wLoc.lock();
+				try {
+					endCheckpoint(ck);
+				} catch (Throwable t) {
+					println("Flusher error: " + t);
+				} finally {
+					wLoc.unlock();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Leaf defragmenter. Once enough neighbour leaves are no longer neighbour
+	 * blocks, walks the leaves in key order, defragRate leaves per second, and
+	 * moves each one right after its predecessor so that range scans read in
+	 * sequence again. Each leaf is moved under the write lock.
+	 * @author prasantsmac
+	 *
+	 */
+	private final class LeafRelocator implements Runnable {
+		/** Percentage of out of order leaves starting a pass */
+		private static final int MIN_BREAKS = 10;
+		/** Pause between two checks when there is no pass */
+		private static final long IDLE = 1000;
+		/** Defragmenter thread */
+		private final Thread thread;
+		/** Stop indicator */
+		private volatile boolean closed = false;
+		/** Next leaf to look at, null for the first one */
+		private byte[] cursor = null;
+		/** True while a pass is running */
+		private boolean pass = false;
+
+		private LeafRelocator() {
+			thread = new Thread(this, "KVEngine-defrag");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/** Stop moving leaves */
+		private void shutdown() throws Exception {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			thread.join();
+		}
+
+		@Override
+		public void run() {
+			long pause = Math.max(1, 1000 / ctx.getDefragRate());
+			while (!closed) {
+				long wait = pause;
+				try {
+					if (!step())
+						wait = IDLE;
+				} catch (Throwable t) {
+					println("Leaf defragmenter error: " + t);
+				}
+				synchronized (this) {
+					try {
+						if (!closed)
+							wait(wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Look at one leaf and move the cursor
+		 * @return false if there is no pass
+		 * @throws Exception
+		 */
+		private boolean step() throws Exception {
+			// sampled without the lock, writers are not held by the walk
+			if (!pass && leafBreaks() < MIN_BREAKS)
+				return false;
+			pass = true;
+			wLoc.lock();
+			try {
+				KVEntryImp key = new KVEntryImp(cursor, null, -1);
+				Node node = leafParent(key);
+				int i = cursor == null ? 0 : findIndex(node.getNodeEntry(), key);
+				relocateLeaf(node, i);
+				NodeEntry nEntry = node.getNodeEntry();
+				if (i + 1 < nEntry.Len())
+					cursor = nEntry.key(i + 1);
+				else if (nEntry.next != null)
+					cursor = nEntry.nextNode().firstKey();
+				else {
+					cursor = null;
+					pass = false;
+				}
+				return true;
+			} finally {
+				wLoc.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Bulk loader. Packs sorted entries in leaves, starting with the leaf
+	 * covering the first key, whose entries before that key stay and whose
+	 * entries after it go after the loaded ones. Other leaves are written once
+	 * in sequence at the end of the last data file, runs of blocks at a time,
+	 * and their branch entries built in memory. The first leaf keeps its
+	 * block and is written last with the previous link of the leaf after the
+	 * range. The tree log is written in chunks and synced by a checkpoint.
+	 * Used under the write lock.
+	 * @author prasantsmac
+	 *
+	 */
+	private final class BulkLoader {
+		/** Tree log records and blocks are written in chunks of that size */
+		private static final int CHUNK = 1024 * 1024;
+		/** Bytes a leaf is filled up to */
+		private final int target;
+		/** Entries of the leaf being filled, with their size */
+		private final List<KVEntryImp> leaf = new ArrayList<>();
+		private int size = NodeEntry.INIT_SIZE;
+		/** Block of the leaf being filled and of the previous one */
+		private long blkNo, prevBlk;
+		/** First leaf, written last */
+		private NodeEntry first;
+		/** Pending tree log records */
+		private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+		/** Pending run of blocks and its first block */
+		private final ByteArrayOutputStream run = new ByteArrayOutputStream();
+		private long runBlk;
+
+		private BulkLoader(int fillFactor) {
+			target = ctx.getBlockSize() * fillFactor / 100 - 1;
+		}
+
+		/**
+		 * Load entries in an empty key range
+		 * @param entries
+		 * @return number of entries loaded
+		 * @throws Exception
+		 */
+		private long load(Iterator<? extends KVEntry> entries) throws Exception {
+			KVEntryImp entry = next(entries);
+			if (entry == null)
+				return 0;
+			Node node = leafParent(entry);
+			NodeEntry nEntry = node.getNodeEntry();
+			int i = findIndex(nEntry, entry);
+			blkNo = nEntry.getBlk(i);
+			NodeEntry old = loadAndMerge(blkNo);
+			prevBlk = (long) old.prev;
+			// tombstones are dropped, keys after the first one loaded go last
+			List<KVEntryImp> lower = new ArrayList<>();
+			int dead = live(old, lower), k = 0;
+			while (k < lower.size() && eComp.compare(lower.get(k), entry) < 0)
+				k++;
+			if (k < lower.size() && eComp.compare(lower.get(k), entry) == 0)
+				throw new Exception("Bulk load key already exists");
+			List<KVEntryImp> upper = new ArrayList<>(lower.subList(k, lower.size()));
+			for (KVEntryImp e : lower.subList(0, k))
+				add(e);
+			stat.numOfDelRecs = Math.max(0, stat.numOfDelRecs - dead);
+			// loaded keys must be below the next existing one
+			byte[] limit = !upper.isEmpty() ? upper.get(0).key : i + 1 < nEntry.Len() ? nEntry.key(i + 1)
+					: nEntry.next != null ? nEntry.nextNode().firstKey() : null;
+			KVEntryImp lEntry = new KVEntryImp(limit, null, -1), last = null;
+			long n = 0;
+			try {
+				for (; entry != null; last = entry, entry = next(entries)) {
+					if (last != null && eComp.compare(entry, last) <= 0 || limit != null && eComp.compare(entry, lEntry) >= 0)
+						throw new Exception("Bulk load key out of order or not in an empty range");
+					if (entry.value == null)
+						throw new Exception("Bulk load value can not be null");
+					add(checkLob(entry));
+					n++;
+				}
+			} finally {
+				for (KVEntryImp e : upper)
+					add(e);
+				finish(old.next != null ? (long) old.next : -1L);
+				stat.numOfActRecs += n;
+			}
+			return n;
+		}
+
+		/** Next entry which is not deleted, null at the end */
+		private KVEntryImp next(Iterator<? extends KVEntry> entries) {
+			while (entries.hasNext()) {
+				KVEntry e = entries.next();
+				if (!e.isDeleted())
+					return new KVEntryImp(e.getKey(), e.getValue(), false);
+			}
+			return null;
+		}
+
+		/** Add an entry to the leaf, start a new one if it is full */
+		private void add(KVEntryImp entry) throws Exception {
+			int sz = entry.sSize() + (ctx.isSlotted() ? NodeEntry.SLOT_SZ : 0);
+			if (!leaf.isEmpty() && size + sz > target)
+				flush(tailRefNo(1));
+			leaf.add(entry);
+			size += sz;
+		}
+
+		/** Close the leaf being filled, linked to the next block */
+		private void flush(long next) throws Exception {
+			NodeEntry nEntry = new NodeEntry(blkNo, leaf.toArray(new KVEntryImp[0]), next, prevBlk);
+			if (first == null)
+				first = nEntry;
+			else
+				write(nEntry);
+			prevBlk = blkNo;
+			blkNo = next;
+			leaf.clear();
+			size = NodeEntry.INIT_SIZE;
+		}
+
+		/** Queue a new leaf and build its branch entry */
+		private void write(NodeEntry nEntry) throws Exception {
+			int bs = ctx.getBlockSize();
+			if (run.size() > 0 && (nEntry.blkNo != runBlk + run.size() / bs || run.size() >= CHUNK))
+				writeRun();
+			if (run.size() == 0)
+				runBlk = nEntry.blkNo;
+			byte[] data = new byte[bs];
+			serialize(nEntry, ByteBuffer.wrap(data));
+			run.write(data);
+			KVEntryImp bEntry = new KVEntryImp(nEntry.fkey(), nEntry.blkNo, nEntry.size).getACopy();
+			records.write(TreeLog.record(bEntry));
+			if (records.size() >= CHUNK) {
+				tlog.write(records.toByteArray());
+				records.reset();
+			}
+			// branch entry only, the leaf is already built
+			load = true;
+			try {
+				buildTree(bEntry);
+			} finally {
+				load = false;
+			}
+		}
+
+		/** Write the pending run of blocks */
+		private void writeRun() throws Exception {
+			writeBlk(runBlk, run.toByteArray());
+			curBlkSync += run.size() / ctx.getBlockSize();
+			run.reset();
+		}
+
+		/**
+		 * Close the last leaf, then write the first one and link the leaf
+		 * after the range
+		 * @param nBlkId - block after the range, -1 if none
+		 * @throws Exception
+		 */
+		private void finish(long nBlkId) throws Exception {
+			flush(nBlkId);
+			if (run.size() > 0)
+				writeRun();
+			byte[] data = new byte[ctx.getBlockSize()];
+			serialize(first, ByteBuffer.wrap(data));
+			kLocker.lock(nBlkId);
+			kLocker.lock(first.blkNo);
+			try {
+				writeBlk(first.blkNo, data);
+				if (nBlkId == -1L)
+					right = prevBlk;
+				else {
+					byte[] dataNext = readPage(nBlkId);
+					NodeEntry.setPrevLink(prevBlk, ByteBuffer.wrap(dataNext));
+					writeBlk(nBlkId, dataNext);
+				}
+			} finally {
+				kLocker.unlock(nBlkId);
+				kLocker.unlock(first.blkNo);
+			}
+			tlog.write(records.toByteArray());
+			checkpoint();
+		}
+	}
+	
+	/**
+	 * Merge the write buffers with the leaves. For the same key the active
+	 * buffer wins over the flushing one, which wins over the leaves.
+	 * Tombstones hide the key
+	 * @author prasantsmac
+	 *
+	 */
+	private final class MergeIterator implements KVIterator {
+		/** Leaf iterator */
+		private final IteratorImp disk;
+		/** Buffer iterators */
+		private final Iterator<KVEntryImp> mItr, iItr;
+		/** Head of each source, null when exhausted */
+		private KVEntryImp dHead, mHead, iHead;
+		/** Current entry */
+		private KVEntryImp entry;
+		private final boolean rev, keysOnly;
+		private boolean close = false;
+		/** Reader epoch, buffered LOBs are loaded after the leaves are done */
+		private final long epoch;
+
+		private MergeIterator(byte[] from, byte[] to, boolean rev, boolean keysOnly) throws Exception {
+			this.rev = rev;
+			this.keysOnly = keysOnly;
+			epoch = readers.enter();
+			// active buffer first, it becomes the flushing one
+			MemTable m = mem, i = imm;
+			// leaf iterator validates the range
+			try {
+				disk = new IteratorImp(from, to, rev, keysOnly);
+			} catch (Exception e) {
+				readers.exit(epoch);
+				throw e;
+			}
+			KVEntryImp start = from != null ? new KVEntryImp(from, null, true) : null;
+			KVEntryImp end = to != null ? new KVEntryImp(to, null, true) : null;
+			mItr = m.iterator(start, end, rev);
+			iItr = i != null ? i.iterator(start, end, rev) : Collections.<KVEntryImp>emptyIterator();
+			mHead = next(mItr);
+			iHead = next(iItr);
+			dHead = nextDisk();
+		}
+
+		@Override
+		public boolean hasNext() throws Exception {
+			while (!close) {
+				KVEntryImp min = min(min(mHead, iHead), dHead);
+				if (min == null) {
+					close();
+					return false;
+				}
+				KVEntryImp win = null;
+				if (mHead != null && compare(mHead, min) == 0) {
+					win = mHead;
+					mHead = next(mItr);
+				}
+				if (iHead != null && compare(iHead, min) == 0) {
+					win = win == null ? iHead : win;
+					iHead = next(iItr);
+				}
+				if (dHead != null && compare(dHead, min) == 0) {
+					// leaf entry is a fresh copy already
+					if (win == null) {
+						entry = dHead;
+						dHead = nextDisk();
+						return true;
+					}
+					dHead = nextDisk();
+				}
+				// deleted in buffer
+				if (win.dMarker)
+					continue;
+				entry = keysOnly ? win.getAKeyCopy() : loadLob(win.getACopy());
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public KVEntry next() throws Exception {
+			if (!close && entry != null)
+				return entry;
+			throw new NoSuchElementException();
+		}
+
+		@Override
+		public void close() {
+			disk.close();
+			if (!close)
+				readers.exit(epoch);
+			close = true;
+			entry = dHead = mHead = iHead = null;
+		}
+
+		/** Compare in iteration order */
+		private int compare(KVEntryImp e1, KVEntryImp e2) {
+			return rev ? eComp.compare(e2, e1) : eComp.compare(e1, e2);
+		}
+
+		private KVEntryImp min(KVEntryImp e1, KVEntryImp e2) {
+			if (e1 == null) return e2;
+			if (e2 == null) return e1;
+			return compare(e1, e2) <= 0 ? e1 : e2;
+		}
+
+		private KVEntryImp next(Iterator<KVEntryImp> itr) {
+			return itr.hasNext() ? itr.next() : null;
+		}
+
+		private KVEntryImp nextDisk() throws Exception {
+			return disk.hasNext() ? (KVEntryImp) disk.next() : null;
+		}
+	}
+	
 	/**
 	 * Iterator implementation
 	 * 
@@ -1484,12 +3985,22 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		boolean close = false;
 		// order of iteration
 		boolean rev = false;
+		// values are skipped
+		boolean keysOnly = false;
 		// current entry position
 		int pos = 0;		
+		// last entry seen, a merged leaf might be seen twice
+		KVEntryImp last = null;
+		// read ahead window, leaves requested ahead and the last request
+		int window = 0, queued = 0;
+		ReadAhead ahead = null;
+		// reader epoch, merged leaves and LOBs of loaded leaves are not reused until closed
+		long epoch;
 
-		private IteratorImp(byte[] from, byte[] to, boolean rev) throws Exception {
+		private IteratorImp(byte[] from, byte[] to, boolean rev, boolean keysOnly) throws Exception {
 			// reverse indicator
 			this.rev = rev;
+			this.keysOnly = keysOnly;
 			// create end key if not null
 			if (to != null)
 				end = new KVEntryImp(to, null , true);
@@ -1505,12 +4016,13 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 					throw new RuntimeException("start > end");	
 				}
 			}						
+			epoch = readers.enter();
 			/**
 			 * If reverse iterator and no start key provided than start from the end
 			 */
 			if (rev && start == null) {
 				// load last block
-				crnt = loadLastBlock();
+				crnt = loadLastBlock(keysOnly);
 				pos = crnt.Len() - 1;
 													
 			}
@@ -1518,7 +4030,7 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 			 * If forward iterator and no start key was provided than start from the beginning
 			 */
 			else if (!rev && start == null) {
-				crnt = loadAndMerge(0L); // load first block
+				crnt = loadAndMerge(0L, keysOnly); // load first block
 				pos = 0;
 				
 			}	
@@ -1531,12 +4043,7 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 				crnt = (NodeEntry) start.value;
 				pos = start.size;
 			}
-			// no data
-			if (crnt.Len() == 0) {
-				close();
-				return;
-			}
-			// calculate position
+			// calculate position, an empty leaf is skipped by the first hasNext()
 			pos = rev ? pos < 0 ? abs(pos) - 2 : pos : pos < 0 ? abs(pos) - 1 : pos;				
 		}
 		/**
@@ -1548,7 +4055,7 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 			// if reveres iterator
 			if (rev) {
 				// if end of iteration
-				if ((crnt = loadPrevBlk(crnt.blkNo)) == null) {
+				if ((crnt = loadPrevBlk(crnt.blkNo, keysOnly)) == null) {
 					close();
 					return false;
 				}
@@ -1561,12 +4068,48 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 					return false;
 				}
 				// load next block
-				crnt = loadAndMerge(bNo);
+				crnt = loadAndMerge(bNo, keysOnly);
 				pos = 0;
 			}
+			readAhead();
 			// if everything is all right
 			return true;
 		}
+		/**
+		 * The iterator moved to the next leaf, keep the following leaves
+		 * read ahead. The window doubles with every leaf up to readAhead, a
+		 * new request is made once half of it is used up. A request the
+		 * iterator overtook is given up
+		 */
+		private void readAhead() {
+			if (aheadPool == null)
+				return;
+			window = Math.min(ctx.getReadAhead(), Math.max(4, window * 2));
+			if (queued > 0)
+				queued--;
+			else if (ahead != null) {
+				// caught up, read ahead from here again
+				ahead.cancel = true;
+				ahead = null;
+			}
+			if (ahead != null && !ahead.done || queued > window / 2)
+				return;
+			// continue where the last request stopped
+			long from = ahead != null ? ahead.tail : rev ? crnt.prevBlk() : crnt.nextBlk();
+			if (from == -1L)
+				return;
+			ahead = new ReadAhead(from, window - queued, rev, epoch);
+			queued = window;
+			readers.join(epoch);
+			try {
+				aheadPool.execute(ahead);
+			} catch (RejectedExecutionException e) {
+				// closing
+				ahead.done = true;
+				ahead.tail = -1L;
+				readers.exit(epoch);
+			}
+		}
 		
 		@Override
 		public boolean hasNext() throws Exception {			
@@ -1583,9 +4126,26 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		
 		@Override
 		public void close() {
+			if (!close)
+				readers.exit(epoch);
+			if (ahead != null)
+				ahead.cancel = true;
 			crnt = null;
 			close = true;	
-			start = end = entry = null;			
+			start = end = entry = last = null;			
+		}
+		
+		/**
+		 * Entry to return, its value loaded unless keys only. A leaf found
+		 * by the start key is loaded with values, they are dropped
+		 * @param entry
+		 * @return
+		 * @throws Exception
+		 */
+		private KVEntryImp value(KVEntryImp entry) throws Exception {
+			if (!keysOnly)
+				return loadLob(entry);
+			return entry.value == null ? entry : entry.getAKeyCopy();
 		}
 		
 		/**
@@ -1596,11 +4156,18 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		private boolean fwdNext() throws Exception {
 			// loop until we get a valid entry
 			for (;;) {
-				if (pos == crnt.Len() && !loadBlk()) // load next block
-					return false;
+				if (pos == crnt.Len()) { // load next block, a compacted one might be empty
+					if (!loadBlk())
+						return false;
+					continue;
+				}
 				entry = crnt.entries[pos++];
+				// ignore entries already seen
+				if (last != null && eComp.compare(entry, last) <= 0)
+					continue;
+				last = entry;
 				// ignore deleted entries
-				if (!entry.dMarker && (entry = loadLob(entry)) != null)
+				if (!entry.dMarker && (entry = value(entry)) != null)
 					break;
 			}
 			// if we reached a dead end
@@ -1618,11 +4185,18 @@ public class KVEngineImp extends AbstractFileHandler implements KVEngine {
 		private boolean revNext() throws Exception {
 			// loop until we get a valid entry
 			for (;;) {
-				if (pos == -1 && !loadBlk()) // load next block
-					return false;
+				if (pos == -1) { // load next block, a compacted one might be empty
+					if (!loadBlk())
+						return false;
+					continue;
+				}
 				entry = crnt.entries[pos--];
+				// ignore entries already seen
+				if (last != null && eComp.compare(entry, last) >= 0)
+					continue;
+				last = entry;
 				// ignore deleted entries
-				if (!entry.dMarker && (entry = loadLob(entry)) != null)
+				if (!entry.dMarker && (entry = value(entry)) != null)
 					break;
 			}
 			// check if we reached a dead end already
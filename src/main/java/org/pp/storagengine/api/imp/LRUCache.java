@@ -326,6 +326,8 @@ public class LRUCache <K extends CacheEntry, V extends CacheEntry> {
 		// Only Node
 		else
 			head = tail = null; 
+		// detach, the node might be linked again
+		lruNode.prev = lruNode.next = null;
 	}
     /**
      * Append at tail
@@ -0,0 +1,147 @@
+package org.pp.storagengine.api.imp;
+
+import java.util.Arrays;
+
+/**
+ * Small LZ77 codec (LZ4 block like format) used to compress leaf pages.
+ * A compressed block is a list of sequences
+ * [token][literal len...][literals][offset(2)][match len...]
+ * where token holds 4 bits of literal length and 4 bits of match length.
+ * The last sequence has literals only.
+ * Compression reuses its hash table and must not be shared between threads,
+ * decompression is stateless.
+ * @author prasantsmac
+ *
+ */
+class LZCodec {
+	/** Minimum match length */
+	private static final int MIN_MATCH = 4;
+	/** Maximum back reference */
+	private static final int MAX_OFFSET = 65535;
+	/** Hash table size */
+	private static final int HASH_LOG = 12;
+	/** Last positions of 4 bytes sequences */
+	private final int[] table = new int[1 << HASH_LOG];
+
+	/**
+	 * Compress src into dst
+	 * @param src
+	 * @param off
+	 * @param len
+	 * @param dst
+	 * @param dOff
+	 * @param dLimit - exclusive end of dst that can be used
+	 * @return compressed length, -1 if it does not fit
+	 */
+	int compress(byte[] src, int off, int len, byte[] dst, int dOff, int dLimit) {
+		Arrays.fill(table, -1);
+		int end = off + len, mLimit = end - MIN_MATCH;
+		int ip = off, anchor = off, op = dOff;
+		while (ip <= mLimit) {
+			int seq = readInt(src, ip);
+			int h = (seq * -1640531535) >>> (32 - HASH_LOG);
+			int ref = table[h];
+			table[h] = ip;
+			if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+				ip++;
+				continue;
+			}
+			// extend the match as far as possible
+			int mLen = MIN_MATCH;
+			while (ip + mLen < end && src[ref + mLen] == src[ip + mLen])
+				mLen++;
+			if ((op = sequence(src, anchor, ip - anchor, ip - ref, mLen, dst, op, dLimit)) < 0)
+				return -1;
+			ip += mLen;
+			anchor = ip;
+		}
+		// remaining literals
+		if ((op = sequence(src, anchor, end - anchor, 0, 0, dst, op, dLimit)) < 0)
+			return -1;
+		return op - dOff;
+	}
+
+	/**
+	 * Decompress src into dst, dst length must be the raw length
+	 * @param src
+	 * @param off
+	 * @param len
+	 * @param dst
+	 */
+	static void decompress(byte[] src, int off, int len, byte[] dst) {
+		decompress(src, off, len, dst, dst.length);
+	}
+
+	/**
+	 * Decompress src into the head of a reusable dst
+	 * @param src
+	 * @param off
+	 * @param len
+	 * @param dst
+	 * @param dLen - raw length
+	 */
+	static void decompress(byte[] src, int off, int len, byte[] dst, int dLen) {
+		int ip = off, end = off + len, op = 0;
+		while (ip < end) {
+			int token = src[ip++] & 0xFF;
+			// literals
+			int lit = token >>> 4;
+			if (lit == 15) {
+				int b;
+				do { lit += (b = src[ip++] & 0xFF); } while (b == 255);
+			}
+			System.arraycopy(src, ip, dst, op, lit);
+			ip += lit;
+			op += lit;
+			if (ip >= end)
+				break;
+			// match, might overlap its own output
+			int offset = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+			int mLen = token & 15;
+			if (mLen == 15) {
+				int b;
+				do { mLen += (b = src[ip++] & 0xFF); } while (b == 255);
+			}
+			mLen += MIN_MATCH;
+			for (int ref = op - offset; mLen > 0; mLen--)
+				dst[op++] = dst[ref++];
+		}
+		if (op != dLen)
+			throw new RuntimeException("Corrupted compressed page");
+	}
+
+	/**
+	 * Write one sequence, match length 0 for the last one
+	 * @return new output position, -1 if it does not fit
+	 */
+	private static int sequence(byte[] src, int lOff, int lit, int offset, int mLen, byte[] dst, int op, int dLimit) {
+		int mExt = mLen - MIN_MATCH;
+		// worst case size of this sequence
+		if (op + 1 + lit / 255 + 1 + lit + 2 + (mLen > 0 ? mExt / 255 + 1 : 0) > dLimit)
+			return -1;
+		int token = Math.min(lit, 15) << 4 | (mLen > 0 ? Math.min(mExt, 15) : 0);
+		dst[op++] = (byte) token;
+		if (lit >= 15)
+			op = length(lit - 15, dst, op);
+		System.arraycopy(src, lOff, dst, op, lit);
+		op += lit;
+		if (mLen == 0)
+			return op;
+		dst[op++] = (byte) offset;
+		dst[op++] = (byte) (offset >>> 8);
+		if (mExt >= 15)
+			op = length(mExt - 15, dst, op);
+		return op;
+	}
+
+	private static int length(int n, byte[] dst, int op) {
+		for (; n >= 255; n -= 255)
+			dst[op++] = (byte) 255;
+		dst[op++] = (byte) n;
+		return op;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+	}
+}
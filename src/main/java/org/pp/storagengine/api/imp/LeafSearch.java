@@ -0,0 +1,283 @@
+package org.pp.storagengine.api.imp;
+
+import static org.pp.storagengine.api.KVEngine.MAX_KEY_SIZE;
+import static org.pp.storagengine.api.imp.KVEngineImp.KVEntryImp.KV_META_SZ;
+import static org.pp.storagengine.api.imp.KVEngineImp.NodeEntry.COMPRESSED;
+import static org.pp.storagengine.api.imp.KVEngineImp.NodeEntry.INIT_SIZE;
+import static org.pp.storagengine.api.imp.KVEngineImp.NodeEntry.LEN_MASK;
+import static org.pp.storagengine.api.imp.KVEngineImp.NodeEntry.PREFIXED;
+import static org.pp.storagengine.api.imp.KVEngineImp.NodeEntry.SLOTTED;
+import static org.pp.storagengine.api.imp.KVEngineImp.NodeEntry.SLOT_SZ;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.pp.storagengine.api.imp.KVEngineImp.KVEntryImp;
+
+/**
+ * Point lookup over a serialised leaf page without decoding it. Keys are
+ * copied into per thread scratch arrays (one per key length) to be handed
+ * to the user comparator, only the matching entry is materialised.
+ * The comparator must not keep a reference to the keys it compares.
+ * @author prasantsmac
+ *
+ */
+class LeafSearch {
+	/** User comparator */
+	private final Comparator<byte[]> comp;
+	/** Per thread scratch buffers */
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	LeafSearch(Comparator<byte[]> comp) {
+		this.comp = comp;
+	}
+
+	/**
+	 * Search a key in a leaf page. The unsorted tail is newer than the sorted
+	 * region, the last match of the tail wins.
+	 * @param b - page, positions are absolute
+	 * @param key
+	 * @return matching entry, might be deleted, null if not in page
+	 */
+	KVEntryImp search(ByteBuffer b, byte[] key) {
+		Scratch s = scratch.get();
+		s.next = -1L;
+		int size = b.getInt(0), flags = b.getInt(4), sEnd = flags & LEN_MASK;
+		// slot directory is in key order
+		if ((flags & SLOTTED) != 0) {
+			int indx = slot(b, key);
+			if (indx >= 0)
+				return plain(b, b.getInt(INIT_SIZE + SLOT_SZ * indx), key);
+			if (-indx - 1 == sEnd)
+				s.next = b.getLong(8);
+			return null;
+		}
+		// scan the tail, remember the last match
+		boolean beyond = true;
+		int found = -1;
+		for (int p = sEnd; p < size; p += b.getInt(p)) {
+			int kLen = b.getInt(p + 17);
+			int cmp = comp.compare(s.key(b, p + 21, kLen), key);
+			if (cmp == 0)
+				found = p;
+			if (cmp >= 0)
+				beyond = false;
+		}
+		if (found >= 0)
+			return plain(b, found, key);
+		// then the sorted region
+		ByteBuffer r = b;
+		int base = INIT_SIZE, end = sEnd;
+		if ((flags & COMPRESSED) != 0) {
+			int rawLen = b.getInt(INIT_SIZE);
+			r = s.decompress(b, INIT_SIZE + 4, sEnd - INIT_SIZE - 4, rawLen);
+			base = 0;
+			end = rawLen;
+		}
+		KVEntryImp entry = (flags & PREFIXED) != 0 ? prefixed(r, base, key, s) : plain(r, base, end, key, s);
+		// key is greater than any key of the page, might be in next one
+		if (entry == null && s.beyond && beyond)
+			s.next = b.getLong(8);
+		return entry;
+	}
+
+	/**
+	 * Next block to search if the last searched key was beyond the page, -1
+	 * otherwise
+	 * @return
+	 */
+	long next() {
+		return scratch.get().next;
+	}
+
+	/**
+	 * Binary search the slot directory of a slotted page
+	 * @param b
+	 * @param key
+	 * @return slot of the key, -(insertion point) - 1 if not found
+	 */
+	int slot(ByteBuffer b, byte[] key) {
+		Scratch s = scratch.get();
+		int lo = 0, hi = (b.getInt(4) & LEN_MASK) - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1, p = b.getInt(INIT_SIZE + SLOT_SZ * mid);
+			int cmp = comp.compare(s.key(b, p + 21, b.getInt(p + 17)), key);
+			if (cmp < 0)
+				lo = mid + 1;
+			else if (cmp > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -(lo + 1);
+	}
+
+	/**
+	 * Binary search plain sorted entries, offsets are indexed in one pass
+	 */
+	private KVEntryImp plain(ByteBuffer r, int base, int end, byte[] key, Scratch s) {
+		int n = 0;
+		for (int p = base; p < end; p += r.getInt(p))
+			s.offset(n++, p);
+		int lo = 0, hi = n - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1, p = s.offsets[mid];
+			int cmp = comp.compare(s.key(r, p + 21, r.getInt(p + 17)), key);
+			if (cmp < 0)
+				lo = mid + 1;
+			else if (cmp > 0)
+				hi = mid - 1;
+			else
+				return plain(r, p, key);
+		}
+		s.beyond = lo == n;
+		return null;
+	}
+
+	/**
+	 * Binary search restart points then scan the interval
+	 */
+	private KVEntryImp prefixed(ByteBuffer r, int base, byte[] key, Scratch s) {
+		int count = r.getInt(base), restarts = r.getInt(base + 4);
+		// last restart whose key is not greater than the key
+		int lo = 0, hi = restarts - 1, rs = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1, p = base + r.getInt(base + 8 + 4 * mid);
+			int cmp = comp.compare(s.key(r, p + 21, r.getShort(p + 19) & 0xFFFF), key);
+			if (cmp <= 0) {
+				rs = mid;
+				lo = mid + 1;
+			} else
+				hi = mid - 1;
+		}
+		// an empty region can not hold the key
+		s.beyond = count == 0;
+		if (rs < 0)
+			return null;
+		int p = base + r.getInt(base + 8 + 4 * rs);
+		int last = Math.min(count, (rs + 1) * KVEngineImp.NodeEntry.RESTART);
+		for (int i = rs * KVEngineImp.NodeEntry.RESTART; i < last; i++, p += r.getInt(p)) {
+			int shared = r.getShort(p + 4) & 0xFFFF, sfx = r.getShort(p + 19) & 0xFFFF;
+			s.copy(r, p + 21, s.prefix, shared, sfx);
+			int cmp = comp.compare(s.key(s.prefix, shared + sfx), key);
+			if (cmp == 0)
+				return prefixed(r, p, key);
+			if (cmp > 0)
+				return null;
+		}
+		s.beyond = last == count;
+		return null;
+	}
+
+	/**
+	 * Materialise a plain entry, the key is the search key
+	 */
+	private static KVEntryImp plain(ByteBuffer r, int p, byte[] key) {
+		int kLen = r.getInt(p + 17);
+		return entry(r, key, r.getLong(p + 4), r.getInt(p + 12), r.get(p + 16) != 0,
+				p + 21 + kLen, r.getInt(p) - (KV_META_SZ + kLen));
+	}
+
+	/**
+	 * Materialise a prefix encoded entry, the key is the search key
+	 */
+	private static KVEntryImp prefixed(ByteBuffer r, int p, byte[] key) {
+		int sfx = r.getShort(p + 19) & 0xFFFF;
+		return entry(r, key, r.getLong(p + 6), r.getInt(p + 14), r.get(p + 18) != 0,
+				p + 21 + sfx, r.getInt(p) - (KV_META_SZ + sfx));
+	}
+
+	private static KVEntryImp entry(ByteBuffer r, byte[] key, long ts, int size, boolean del, int vPos, int vSz) {
+		Object val = null;
+		if (vSz > 0) {
+			if (r.get(vPos) > 0)
+				val = r.getLong(vPos + 1);
+			else {
+				byte[] v = new byte[vSz - 1];
+				ByteBuffer d = r.duplicate();
+				d.position(vPos + 1);
+				d.get(v);
+				val = v;
+			}
+		}
+		return new KVEntryImp(key, val, del, size, ts);
+	}
+
+	/**
+	 * Thread private buffers
+	 */
+	private static final class Scratch {
+		/** One key array per key length */
+		private final byte[][] keys = new byte[MAX_KEY_SIZE + 1][];
+		/** Key being rebuilt from shared prefix */
+		private final byte[] prefix = new byte[MAX_KEY_SIZE];
+		/** Entry offsets of plain sorted region */
+		private int[] offsets = new int[256];
+		/** Decompressed sorted region */
+		private byte[] raw = new byte[0];
+		private ByteBuffer rawBuf = ByteBuffer.wrap(raw);
+		/** Compressed bytes of a mapped page */
+		private byte[] cmp = new byte[0];
+		/** Set by search */
+		private long next;
+		private boolean beyond;
+
+		private byte[] key(ByteBuffer b, int pos, int len) {
+			byte[] k = array(len);
+			copy(b, pos, k, 0, len);
+			return k;
+		}
+
+		private byte[] key(byte[] src, int len) {
+			byte[] k = array(len);
+			System.arraycopy(src, 0, k, 0, len);
+			return k;
+		}
+
+		private byte[] array(int len) {
+			byte[] k = keys[len];
+			if (k == null)
+				k = keys[len] = new byte[len];
+			return k;
+		}
+
+		private void copy(ByteBuffer b, int pos, byte[] dst, int off, int len) {
+			if (b.hasArray())
+				System.arraycopy(b.array(), b.arrayOffset() + pos, dst, off, len);
+			else {
+				ByteBuffer d = b.duplicate();
+				d.position(pos);
+				d.get(dst, off, len);
+			}
+		}
+
+		private void offset(int i, int p) {
+			if (i == offsets.length)
+				offsets = Arrays.copyOf(offsets, i * 2);
+			offsets[i] = p;
+		}
+
+		private ByteBuffer decompress(ByteBuffer b, int pos, int len, int rawLen) {
+			if (raw.length < rawLen)
+				rawBuf = ByteBuffer.wrap(raw = new byte[rawLen]);
+			byte[] src = null;
+			int off = 0;
+			if (b.hasArray()) {
+				src = b.array();
+				off = b.arrayOffset() + pos;
+			} else {
+				if (cmp.length < len)
+					cmp = new byte[len];
+				copy(b, pos, src = cmp, 0, len);
+			}
+			LZCodec.decompress(src, off, len, raw, rawLen);
+			return rawBuf;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package org.pp.storagengine.api.imp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+import org.pp.storagengine.api.LobReader;
+
+/**
+ * Reader of a value stored in LOB blocks or in the value log, or of a small
+ * value already in memory. Stored values are read on demand, a range at a time.
+ * @author prasantsmac
+ *
+ */
+class LobReaderImp implements LobReader {
+	/** Engine reading the blocks, null for in memory values */
+	private final KVEngineImp engine;
+	/** First LOB block */
+	private final long ref;
+	/** Reader epoch, the blocks are not reused until closed */
+	private final long epoch;
+	/** Value offset from the first block */
+	private final int offset;
+	/** Value length */
+	private final int length;
+	/** In memory value */
+	private final byte[] value;
+	private boolean closed = false;
+
+	/**
+	 * Reader over LOB blocks
+	 * @param engine
+	 * @param ref
+	 * @param epoch
+	 * @param offset
+	 * @param length
+	 */
+	LobReaderImp(KVEngineImp engine, long ref, long epoch, int offset, int length) {
+		this.engine = engine;
+		this.ref = ref;
+		this.epoch = epoch;
+		this.offset = offset;
+		this.length = length;
+		this.value = null;
+	}
+
+	/**
+	 * Reader over a small value
+	 * @param value
+	 */
+	LobReaderImp(byte[] value) {
+		this.engine = null;
+		this.ref = -1L;
+		this.epoch = 0;
+		this.offset = 0;
+		this.length = value.length;
+		this.value = value;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public int read(int position, ByteBuffer dst) throws IOException {
+		if (closed)
+			throw new IOException("LOB reader is closed");
+		if (position < 0)
+			throw new IllegalArgumentException("Negative position");
+		if (position >= length)
+			return -1;
+		int n = Math.min(dst.remaining(), length - position);
+		if (value != null) {
+			dst.put(value, position, n);
+			return n;
+		}
+		ByteBuffer range = dst.duplicate();
+		range.limit(range.position() + n);
+		try {
+			engine.readLob(ref, (long) offset + position, range);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+		dst.position(dst.position() + n);
+		return n;
+	}
+
+	@Override
+	public byte[] read(int position, int len) throws IOException {
+		int n = Math.max(0, Math.min(len, length - position));
+		byte[] data = new byte[n];
+		if (n > 0)
+			read(position, ByteBuffer.wrap(data));
+		return data;
+	}
+
+	@Override
+	public InputStream newInputStream() {
+		return new InputStream() {
+			private int pos = 0, mark = 0;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				int n = LobReaderImp.this.read(pos, ByteBuffer.wrap(b, off, len));
+				if (n > 0)
+					pos += n;
+				return n;
+			}
+
+			@Override
+			public long skip(long n) {
+				int s = (int) Math.max(0, Math.min(n, length - pos));
+				pos += s;
+				return s;
+			}
+
+			@Override
+			public int available() {
+				return length - pos;
+			}
+
+			@Override
+			public boolean markSupported() {
+				return true;
+			}
+
+			@Override
+			public synchronized void mark(int readlimit) {
+				mark = pos;
+			}
+
+			@Override
+			public synchronized void reset() {
+				pos = mark;
+			}
+		};
+	}
+
+	@Override
+	public ReadableByteChannel newChannel() {
+		return new ReadableByteChannel() {
+			private int pos = 0;
+			private boolean open = true;
+
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				if (!open)
+					throw new ClosedChannelException();
+				int n = LobReaderImp.this.read(pos, dst);
+				if (n > 0)
+					pos += n;
+				return n;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return open;
+			}
+
+			@Override
+			public void close() {
+				open = false;
+			}
+		};
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (engine != null)
+			engine.closeLob(epoch);
+	}
+}
@@ -0,0 +1,48 @@
+package org.pp.storagengine.api.imp;
+
+import org.pp.storagengine.api.CacheEntry;
+
+class LongCacheEntry implements CacheEntry {
+	/**
+	 *  LONG value
+	 */
+    private long val;
+
+    /**
+     *
+     * @param val
+     */
+    LongCacheEntry (long val) {
+    	this.val = val;
+    }
+
+	@Override
+	public int entrySize() {
+		return 8;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (val ^ (val >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof LongCacheEntry) {
+			LongCacheEntry oth = (LongCacheEntry) o;
+			if (oth.val == val)
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "" + val;
+	}
+	//
+	long getVal() {
+		return val;
+	}
+
+}
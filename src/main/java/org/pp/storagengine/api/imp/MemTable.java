@@ -0,0 +1,92 @@
+package org.pp.storagengine.api.imp;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.pp.storagengine.api.imp.KVEngineImp.KVEntryImp;
+
+/**
+ * Sorted in memory write buffer. Single writer, many readers. Entries are
+ * private copies and never modified once inserted, deleted keys are kept as
+ * tombstones until the buffer is flushed to the leaves.
+ * @author prasantsmac
+ *
+ */
+class MemTable {
+	/** Entries by key */
+	private final ConcurrentSkipListMap<KVEntryImp, KVEntryImp> map;
+	/** Serialised size of all entries */
+	private volatile long size = 0;
+
+	MemTable(Comparator<KVEntryImp> comp) {
+		this.map = new ConcurrentSkipListMap<>(comp);
+	}
+
+	/**
+	 * Add or replace an entry, caller must hold the write lock
+	 * @param entry
+	 * @return replaced entry, null if none
+	 */
+	KVEntryImp put(KVEntryImp entry) {
+		KVEntryImp old = map.put(entry, entry);
+		size += entry.sSize() - (old != null ? old.sSize() : 0);
+		return old;
+	}
+
+	/**
+	 * Return the entry of the key, might be a tombstone, null if not buffered
+	 * @param key
+	 * @return
+	 */
+	KVEntryImp get(KVEntryImp key) {
+		return map.get(key);
+	}
+
+	/**
+	 * Serialised size in bytes
+	 * @return
+	 */
+	long size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	/**
+	 * Shallow copies of all entries in key order, to be applied to the leaves
+	 * without touching buffered entries
+	 * @return
+	 */
+	KVEntryImp[] copies() {
+		KVEntryImp[] entries = new KVEntryImp[map.size()];
+		int i = 0;
+		for (KVEntryImp e : map.values()) {
+			if (i == entries.length)
+				break;
+			entries[i++] = new KVEntryImp(e.key, e.value, e.dMarker, e.size, e.ts);
+		}
+		return entries;
+	}
+
+	/**
+	 * Entries in range, start inclusive and end exclusive in iteration order
+	 * @param start - null for first
+	 * @param end - null for last
+	 * @param rev
+	 * @return
+	 */
+	Iterator<KVEntryImp> iterator(KVEntryImp start, KVEntryImp end, boolean rev) {
+		NavigableMap<KVEntryImp, KVEntryImp> m = rev ? map.descendingMap() : map;
+		if (start != null && end != null)
+			m = m.subMap(start, true, end, false);
+		else if (start != null)
+			m = m.tailMap(start, true);
+		else if (end != null)
+			m = m.headMap(end, false);
+		return m.values().iterator();
+	}
+}
@@ -65,6 +65,9 @@ public class MyValidator {
 			if (field.isAnnotationPresent(Validator.class)) {
 				field.setAccessible(true);
 				sVal = props.getProperty(field.getName());
+				// not known when the file was saved, keep the default
+				if (sVal == null)
+					continue;
 				if (field.getType() == Integer.TYPE) 
 					val = Integer.parseInt(sVal);
 				else if (field.getType() == Long.TYPE)
@@ -0,0 +1,369 @@
+package org.pp.storagengine.api.imp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.pp.storagengine.api.CacheEntry;
+import org.pp.storagengine.api.imp.LRUCache.LRUNode;
+
+/**
+ * Shared cache of leaf pages keyed by the packed file/block reference.
+ * Pages are kept in two LRU segments. A page read for the first time lands
+ * in the probation segment and is promoted to the protected segment only
+ * when it is hit again, so a long scan can not flush the hot pages. A page
+ * read ahead for an iterator is hit once by it without being promoted.
+ * Pinned pages are never evicted nor recycled.
+ * @author prasantsmac
+ *
+ */
+class PageCache {
+	/** Percentage of the budget the protected segment may hold */
+	private static final int PROTECTED_PCT = 80;
+	/** Maximum number of page buffers kept for recycling */
+	private static final int MAX_FREE = 64;
+	/** Pages seen only once */
+	private final LRUCache<LongCacheEntry, Page> probation;
+	/** Pages hit at least twice */
+	private final LRUCache<LongCacheEntry, Page> protectd;
+	/** Evicted buffers ready to be reused */
+	private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+	/** Guard both segments */
+	private final Lock lock = new ReentrantLock();
+	/** Budget in bytes */
+	private final long maxSize;
+	private final long maxProtected;
+	/** Page size */
+	private final int pageSize;
+	/** Hit / miss counters */
+	private final Statistics stat;
+
+	/**
+	 * Create a page cache
+	 * @param maxSize - byte budget
+	 * @param pageSize - size of a leaf page
+	 * @param stat
+	 */
+	PageCache(long maxSize, int pageSize, Statistics stat) {
+		int capa = (int) Math.min(maxSize / pageSize, 1 << 20);
+		this.probation = new LRUCache<>(capa, -1L);
+		this.protectd = new LRUCache<>(capa, -1L);
+		this.maxSize = maxSize;
+		this.maxProtected = maxSize * PROTECTED_PCT / 100;
+		this.pageSize = pageSize;
+		this.stat = stat;
+	}
+
+	/**
+	 * Pin a cached page, null if the page is not in cache
+	 * @param ref
+	 * @return
+	 */
+	Page pin(long ref) {
+		LongCacheEntry key = new LongCacheEntry(ref);
+		lock.lock();
+		try {
+			Page page = protectd.get(key, true);
+			if (page == null && (page = probation.get(key, true)) != null) {
+				// first hit of a page read ahead
+				if (page.ahead) {
+					page.ahead = false;
+					stat.numOfReadAheadHit++;
+				} else {
+					// second hit, promote it
+					probation.remove(key);
+					protectd.put(key, page);
+					demote();
+				}
+			}
+			if (page == null) {
+				stat.numOfCacheMiss++;
+				return null;
+			}
+			stat.numOfCacheHit++;
+			page.pins++;
+			return page;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Install a page just read from disk and return it pinned. If another
+	 * reader was faster, the cached page is returned and the buffer recycled
+	 * @param ref
+	 * @param data - buffer obtained from alloc()
+	 * @return
+	 */
+	Page install(long ref, byte[] data) {
+		return install(ref, data, false);
+	}
+
+	/**
+	 * Pin a cached page without counting a hit, null if the page is not in
+	 * cache. Used to read ahead
+	 * @param ref
+	 * @return
+	 */
+	Page peek(long ref) {
+		LongCacheEntry key = new LongCacheEntry(ref);
+		lock.lock();
+		try {
+			Page page = protectd.get(key);
+			if (page == null)
+				page = probation.get(key);
+			if (page != null)
+				page.pins++;
+			return page;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Install a page just read from disk and return it pinned
+	 * @param ref
+	 * @param data
+	 * @param ahead - read ahead, not yet hit
+	 * @return
+	 */
+	Page install(long ref, byte[] data, boolean ahead) {
+		LongCacheEntry key = new LongCacheEntry(ref);
+		lock.lock();
+		try {
+			Page page = protectd.get(key);
+			if (page == null)
+				page = probation.get(key);
+			if (page != null)
+				recycle(data);
+			else {
+				page = new Page(ref, data);
+				page.ahead = ahead;
+				probation.put(key, page);
+				evict();
+			}
+			page.pins++;
+			return page;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Release a page returned by pin(), peek() or install()
+	 * @param page
+	 */
+	void unpin(Page page) {
+		lock.lock();
+		try {
+			if (--page.pins == 0 && page.retired)
+				recycle(page.data);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write through, keep a cached copy coherent with the disk block. A
+	 * block not in cache is left to the readers, so that writes do not
+	 * evict the pages they read
+	 * @param ref
+	 * @param data
+	 */
+	void update(long ref, byte[] data) {
+		LongCacheEntry key = new LongCacheEntry(ref);
+		lock.lock();
+		try {
+			// replace in place, the page keeps its segment
+			LRUCache<LongCacheEntry, Page> seg = protectd.get(key) != null ? protectd
+					: probation.get(key) != null ? probation : null;
+			if (seg == null)
+				return;
+			byte[] copy = alloc();
+			System.arraycopy(data, 0, copy, 0, pageSize);
+			Page page = new Page(ref, copy);
+			Page old = seg.put(key, page);
+			page.ahead = old.ahead;
+			retire(old);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop any cached page in the given block range
+	 * @param ref
+	 * @param nb
+	 */
+	void invalidate(long ref, int nb) {
+		lock.lock();
+		try {
+			for (int i = 0; i < nb; i++) {
+				LongCacheEntry key = new LongCacheEntry(ref + i);
+				Page old = protectd.remove(key);
+				if (old == null)
+					old = probation.remove(key);
+				if (old != null)
+					retire(old);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get a page sized buffer, recycled if possible
+	 * @return
+	 */
+	byte[] alloc() {
+		lock.lock();
+		try {
+			byte[] data = free.poll();
+			if (data != null)
+				return data;
+		} finally {
+			lock.unlock();
+		}
+		return new byte[pageSize];
+	}
+
+	/**
+	 * Drop everything
+	 */
+	void clear() {
+		lock.lock();
+		try {
+			Page page = null;
+			while ((page = probation.removeOldest()) != null)
+				page.retired = true;
+			while ((page = protectd.removeOldest()) != null)
+				page.retired = true;
+			free.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Current size in bytes
+	 * @return
+	 */
+	long size() {
+		return probation.size() + protectd.size();
+	}
+
+	/**
+	 * Evict unpinned pages, probation first, until we are back in budget
+	 */
+	private void evict() {
+		while (size() > maxSize) {
+			Page victim = oldestUnpinned(probation);
+			if (victim == null)
+				victim = oldestUnpinned(protectd);
+			// everything is pinned
+			if (victim == null)
+				return;
+			retire(victim);
+		}
+	}
+
+	/**
+	 * Move the least recently used protected pages back to probation
+	 */
+	private void demote() {
+		while (protectd.size() > maxProtected) {
+			Page victim = oldestUnpinned(protectd);
+			if (victim == null)
+				return;
+			probation.put(new LongCacheEntry(victim.ref), victim);
+		}
+	}
+
+	/**
+	 * Remove and return the least recently used unpinned page of a segment
+	 * @param seg
+	 * @return
+	 */
+	private Page oldestUnpinned(LRUCache<LongCacheEntry, Page> seg) {
+		Iterator<LRUNode<LongCacheEntry, Page>> itr = seg.iterator();
+		while (itr.hasNext()) {
+			LRUNode<LongCacheEntry, Page> node = itr.next();
+			if (node.value().pins == 0) {
+				seg.remove(node.key());
+				return node.value();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Page is out of cache, recycle its buffer once no reader hold it
+	 * @param page
+	 */
+	private void retire(Page page) {
+		page.retired = true;
+		if (page.pins == 0)
+			recycle(page.data);
+	}
+
+	private void recycle(byte[] data) {
+		if (free.size() < MAX_FREE)
+			free.offer(data);
+	}
+
+	/**
+	 * A pinned page. Content of a cached page is never modified while the
+	 * page is in cache. A live page is a slice of a mapped data file and
+	 * follows every write of the block.
+	 * @author prasantsmac
+	 *
+	 */
+	static final class Page implements CacheEntry {
+		/** Block reference */
+		private final long ref;
+		/** Page bytes */
+		private final byte[] data;
+		/** Slice of a mapped file, null for heap pages */
+		private final ByteBuffer slice;
+		/** Number of readers using the page */
+		private int pins;
+		/** Indicate the page was evicted or replaced */
+		private boolean retired;
+		/** Indicate the page was read ahead and not hit since */
+		private boolean ahead;
+
+		Page(long ref, byte[] data) {
+			this.ref = ref;
+			this.data = data;
+			this.slice = null;
+		}
+
+		Page(long ref, ByteBuffer slice) {
+			this.ref = ref;
+			this.data = null;
+			this.slice = slice;
+		}
+
+		@Override
+		public int entrySize() {
+			return data.length;
+		}
+
+		byte[] data() {
+			return data;
+		}
+
+		/** Return a fresh buffer over the page content */
+		ByteBuffer buf() {
+			return slice != null ? slice.duplicate() : ByteBuffer.wrap(data);
+		}
+
+		/** True if the page is a slice of a mapped file */
+		boolean isLive() {
+			return slice != null;
+		}
+	}
+
+}
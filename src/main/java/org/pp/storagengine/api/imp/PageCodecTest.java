@@ -0,0 +1,296 @@
+package org.pp.storagengine.api.imp;
+
+import static org.pp.storagengine.api.imp.KVEngineImp.NodeEntry.COMPRESSED;
+import static org.pp.storagengine.api.imp.KVEngineImp.NodeEntry.INIT_SIZE;
+import static org.pp.storagengine.api.imp.KVEngineImp.NodeEntry.PREFIXED;
+import static org.pp.storagengine.api.imp.KVEngineImp.NodeEntry.SLOTTED;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.pp.storagengine.api.imp.KVEngineImp.KVEntryImp;
+import org.pp.storagengine.api.imp.KVEngineImp.NodeEntry;
+
+/**
+ * Round trips of the leaf page formats and the page codec. A leaf is
+ * encoded in every format, decoded again and searched in place, appends
+ * go to the unsorted tail or to the slot directory
+ * @author prasantsmac
+ *
+ */
+public class PageCodecTest {
+	// Block size of the pages
+	private static final int BLK_SZ = 16 * 1024;
+	// Block and links of the pages
+	private static final long BLK = 3L << 32 | 7, NEXT = 3L << 32 | 8, PREV = 2L << 32 | 1;
+	// Format 1 encodings and the slotted format
+	private static final int[] FORMATS = { 0, PREFIXED, COMPRESSED, PREFIXED | COMPRESSED, SLOTTED };
+	// Random with a fixed seed, failures can be reproduced
+	private static final Random rand = new Random(20);
+
+	// Byte array comparator
+	private static Comparator<byte[]> myComp = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] left, byte[] right) {
+			for (int i = 0, j = 0; i < left.length && j < right.length; i++, j++) {
+				int a = (left[i] & 0xff);
+				int b = (right[j] & 0xff);
+				if (a != b) {
+					return a - b;
+				}
+			}
+			return left.length - right.length;
+		}
+	};
+
+	/**
+	 * Compressed data decompresses to the original one, with offsets on both
+	 * sides. A buffer too small is refused
+	 * @throws Exception
+	 */
+	public static void lzRoundTrip() throws Exception {
+		System.out.print("\nCompressing and decompressing.....");
+		LZCodec codec = new LZCodec();
+		List<byte[]> inputs = new ArrayList<>();
+		inputs.add(new byte[0]);
+		inputs.add(new byte[] { 42 });
+		inputs.add(new byte[64 * 1024]);
+		inputs.add(random(4096));
+		inputs.add("abababababababababababababababababababab".getBytes());
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 2000; i++)
+			text.append("tenant-").append(i % 13).append("/entity-").append(i).append(';');
+		inputs.add(text.toString().getBytes());
+		// matches just within and just beyond the longest back reference
+		byte[] far = random(70000);
+		System.arraycopy(far, 0, far, 65535, 300);
+		System.arraycopy(far, 1000, far, 67000, 300);
+		inputs.add(far);
+		for (byte[] src : inputs) {
+			for (int off : new int[] { 0, 5 }) {
+				byte[] in = new byte[off + src.length];
+				System.arraycopy(src, 0, in, off, src.length);
+				byte[] out = new byte[off + src.length + src.length / 100 + 16];
+				int cLen = codec.compress(in, off, src.length, out, off, out.length);
+				if (cLen < 0)
+					throw new RuntimeException("Compression failed for " + src.length + " bytes!");
+				byte[] raw = new byte[src.length];
+				LZCodec.decompress(out, off, cLen, raw);
+				if (!Arrays.equals(raw, src))
+					throw new RuntimeException("Decompressed data is not matching for " + src.length + " bytes!");
+				// a reusable buffer longer than the data
+				byte[] big = new byte[src.length + 10];
+				LZCodec.decompress(out, off, cLen, big, src.length);
+				if (!Arrays.equals(Arrays.copyOf(big, src.length), src))
+					throw new RuntimeException("Decompressed data is not matching in a longer buffer!");
+			}
+		}
+		byte[] noise = random(4096);
+		if (codec.compress(noise, 0, noise.length, new byte[4096], 0, 4096) >= 0)
+			throw new RuntimeException("Random data is compressed in a buffer of its size!");
+		System.out.print("OK");
+	}
+
+	/**
+	 * A leaf is encoded in every format and decoded with the same entries and
+	 * links, with or without values, encoding the decoded leaf gives the same
+	 * page. Every key is found in place, others are not
+	 * @throws Exception
+	 */
+	public static void pageRoundTrip() throws Exception {
+		System.out.print("\nEncoding and decoding leaf pages.....");
+		for (int n : new int[] { 0, 1, 15, 16, 17, 120 }) {
+			KVEntryImp[] entries = entries(n);
+			NodeEntry nEntry = NodeEntry.loadSorted(plainPage(entries), BLK);
+			for (int format : FORMATS) {
+				ByteBuffer page = encode(nEntry, format);
+				check(entries, page, format);
+				byte[] again = encode(NodeEntry.loadSorted(page.duplicate(), BLK), format).array();
+				if (!Arrays.equals(page.array(), again))
+					throw new RuntimeException("Page is not the same once decoded and encoded again, format " + format + "!");
+			}
+		}
+		System.out.print("OK");
+	}
+
+	/**
+	 * Entries appended to a page, to the unsorted tail of format 1 or to the
+	 * slot directory, replace older versions of their key and are decoded
+	 * and searched with the others
+	 * @throws Exception
+	 */
+	public static void pageAppends() throws Exception {
+		System.out.print("\nAppending to leaf pages.....");
+		KVEntryImp[] entries = entries(60);
+		NodeEntry nEntry = NodeEntry.loadSorted(plainPage(entries), BLK);
+		LeafSearch search = new LeafSearch(myComp);
+		for (int format : FORMATS) {
+			ByteBuffer page = encode(nEntry, format);
+			List<KVEntryImp> expected = new ArrayList<>(Arrays.asList(entries));
+			// a newer version, a new key between two and a tombstone
+			KVEntryImp[] adds = { entry(entries[20].key, "newer".getBytes(), 99),
+					entry(Arrays.copyOf(entries[30].key, entries[30].key.length + 1), "between".getBytes(), 98),
+					entry(entries[40].key, null, 97) };
+			for (KVEntryImp add : adds) {
+				if (format == SLOTTED) {
+					if (!NodeEntry.putSlot(page, search.slot(page, add.key), add))
+						throw new RuntimeException("Slotted page is full!");
+				} else {
+					int size = page.getInt(0);
+					page.position(size);
+					add.serialize(page);
+					page.putInt(0, page.position());
+					page.clear();
+				}
+				int i = 0;
+				while (i < expected.size() && myComp.compare(expected.get(i).key, add.key) < 0)
+					i++;
+				if (i < expected.size() && myComp.compare(expected.get(i).key, add.key) == 0)
+					expected.set(i, add);
+				else
+					expected.add(i, add);
+			}
+			for (KVEntryImp e : expected)
+				found(search, page, e, format);
+			// format 1 keeps appends apart until the leaf is rewritten
+			List<KVEntryImp> decoded = new ArrayList<>(Arrays.asList(NodeEntry.loadSorted(page.duplicate(), BLK).entries));
+			if (format != SLOTTED) {
+				for (KVEntryImp add : NodeEntry.loadUnsorted(page.duplicate(), null).entries) {
+					int i = 0;
+					while (i < decoded.size() && myComp.compare(decoded.get(i).key, add.key) < 0)
+						i++;
+					if (i < decoded.size() && myComp.compare(decoded.get(i).key, add.key) == 0)
+						decoded.set(i, add);
+					else
+						decoded.add(i, add);
+				}
+			}
+			same(expected.toArray(new KVEntryImp[0]), decoded.toArray(new KVEntryImp[0]), false, format);
+		}
+		System.out.print("OK");
+	}
+
+	// Decoded entries, links and in place search of a page match the entries
+	private static void check(KVEntryImp[] entries, ByteBuffer page, int format) {
+		NodeEntry nEntry = NodeEntry.loadSorted(page.duplicate(), BLK);
+		same(entries, nEntry.entries, false, format);
+		if (nEntry.nextBlk() != NEXT || nEntry.prevBlk() != PREV)
+			throw new RuntimeException("Page links are not matching, format " + format + "!");
+		same(entries, NodeEntry.loadSorted(page.duplicate(), BLK, true).entries, true, format);
+		LeafSearch search = new LeafSearch(myComp);
+		for (KVEntryImp e : entries) {
+			found(search, page, e, format);
+			// a longer key sorts right after it
+			if (search.search(page, Arrays.copyOf(e.key, e.key.length + 1)) != null)
+				throw new RuntimeException("Missing key is found, format " + format + "!");
+		}
+		if (entries.length > 0) {
+			byte[] last = entries[entries.length - 1].key;
+			if (search.search(page, Arrays.copyOf(last, last.length + 1)) != null || search.next() != NEXT)
+				throw new RuntimeException("Key beyond the page does not lead to the next one, format " + format + "!");
+		}
+	}
+
+	// A key is found in place with its entry
+	private static void found(LeafSearch search, ByteBuffer page, KVEntryImp e, int format) {
+		KVEntryImp f = search.search(page, e.key);
+		if (f == null)
+			throw new RuntimeException("Key is not found, format " + format + "!");
+		same(new KVEntryImp[] { e }, new KVEntryImp[] { f }, false, format);
+	}
+
+	// Entries are the same, values excepted if keys only
+	private static void same(KVEntryImp[] expected, KVEntryImp[] actual, boolean keysOnly, int format) {
+		if (expected.length != actual.length)
+			throw new RuntimeException(actual.length + " entries instead of " + expected.length + ", format " + format + "!");
+		for (int i = 0; i < expected.length; i++) {
+			KVEntryImp e = expected[i], a = actual[i];
+			if (!Arrays.equals(e.key, a.key) || e.ts != a.ts || e.size != a.size || e.dMarker != a.dMarker)
+				throw new RuntimeException("Entry " + i + " is not matching, format " + format + "!");
+			boolean value = keysOnly ? a.value == null
+					: e.value instanceof byte[] ? a.value instanceof byte[] && Arrays.equals((byte[]) e.value, (byte[]) a.value)
+					: e.value == null ? a.value == null : e.value.equals(a.value);
+			if (!value)
+				throw new RuntimeException("Value of entry " + i + " is not matching, format " + format + "!");
+		}
+	}
+
+	// Page image of a leaf in a format
+	private static ByteBuffer encode(NodeEntry nEntry, int format) {
+		ByteBuffer buf = ByteBuffer.allocate(BLK_SZ);
+		if (format == SLOTTED) {
+			nEntry.serializeSlotted(buf);
+			return buf;
+		}
+		if (format == 0) {
+			nEntry.serialize(buf);
+			buf.clear();
+			return buf;
+		}
+		ByteBuffer raw = (format & PREFIXED) != 0 ? nEntry.prefixed() : nEntry.plain();
+		int rawLen = raw.limit();
+		if ((format & COMPRESSED) != 0) {
+			int off = INIT_SIZE + 4;
+			int cLen = new LZCodec().compress(raw.array(), 0, rawLen, buf.array(), off, BLK_SZ);
+			if (cLen < 0)
+				throw new RuntimeException("Leaf is not compressed!");
+			nEntry.serializeEncoded(buf, format, off + cLen, rawLen);
+		} else {
+			System.arraycopy(raw.array(), 0, buf.array(), INIT_SIZE, rawLen);
+			nEntry.serializeEncoded(buf, format, INIT_SIZE + rawLen, rawLen);
+		}
+		buf.clear();
+		return buf;
+	}
+
+	// Plain page image of entries in key order
+	private static ByteBuffer plainPage(KVEntryImp[] entries) {
+		ByteBuffer buf = ByteBuffer.allocate(BLK_SZ);
+		int size = INIT_SIZE;
+		for (KVEntryImp e : entries)
+			size += e.sSize();
+		buf.putInt(size).putInt(size).putLong(NEXT).putLong(PREV);
+		for (KVEntryImp e : entries)
+			e.serialize(buf);
+		buf.clear();
+		return buf;
+	}
+
+	// Entries in key order with shared key prefixes, values of every kind and tombstones
+	private static KVEntryImp[] entries(int n) {
+		KVEntryImp[] entries = new KVEntryImp[n];
+		for (int i = 0; i < n; i++) {
+			byte[] key = String.format("tenant-%d/entity-%05d", i / 25, i).getBytes();
+			Object value;
+			if (i % 11 == 3)
+				value = null;
+			else if (i % 13 == 5)
+				value = 9L << 32 | i;
+			else if (i % 17 == 7)
+				value = 1L << 63 | 2L << 40 | i * 100L;
+			else if (i % 2 == 0) {
+				value = new byte[1 + i % 60];
+				Arrays.fill((byte[]) value, (byte) i);
+			} else
+				value = random(1 + i % 40);
+			entries[i] = entry(key, value, i);
+		}
+		return entries;
+	}
+
+	// Entry of a key, a tombstone if the value is null
+	private static KVEntryImp entry(byte[] key, Object value, int i) {
+		int size = key.length + (value instanceof byte[] ? ((byte[]) value).length : value != null ? 100000 : 0);
+		return new KVEntryImp(key, value, value == null, size, 1000L * i + 7);
+	}
+
+	private static byte[] random(int n) {
+		byte[] b = new byte[n];
+		rand.nextBytes(b);
+		return b;
+	}
+}
@@ -1,5 +1,6 @@
 package org.pp.storagengine.api.imp;
 
+import java.io.IOException;
 import java.io.RandomAccessFile;
 
 import org.pp.storagengine.api.CacheEntry;
@@ -9,13 +10,19 @@ class RandFileCacheEntry implements CacheEntry {
      * Random access file
      */
 	private RandomAccessFile rf;
+	/** Length and number of writes, set by the writer */
+	private volatile long length, writes;
+	/** Length and number of writes at the last sync */
+	private long sLength, sWrites;
 	
 	/**
 	 * only constructor
 	 * @param rf
+	 * @throws IOException
 	 */
-	RandFileCacheEntry (RandomAccessFile rf) {
+	RandFileCacheEntry (RandomAccessFile rf) throws IOException {
 		this.rf = rf;
+		this.length = this.sLength = rf.length();
 	}
 
 	@Override
@@ -27,5 +34,39 @@ class RandFileCacheEntry implements CacheEntry {
 	public RandomAccessFile getRf() {
 		return rf;
 	}
+
+	/**
+	 * Bytes were written up to end, caller must hold the write lock
+	 * @param end
+	 */
+	void written(long end) {
+		if (end > length)
+			length = end;
+		writes++;
+	}
+
+	/**
+	 * True if written since the last sync
+	 * @return
+	 */
+	synchronized boolean dirty() {
+		return writes != sWrites;
+	}
+
+	/**
+	 * Force the file, its metadata only if it has grown since the last time.
+	 * Can be called while the writer keeps writing, what it writes from now
+	 * on waits for the next sync
+	 * @return true if metadata was forced as well
+	 * @throws IOException
+	 */
+	synchronized boolean sync() throws IOException {
+		long w = writes, len = length;
+		boolean meta = len > sLength;
+		rf.getChannel().force(meta);
+		sWrites = w;
+		sLength = len;
+		return meta;
+	}
 	
 }
@@ -0,0 +1,71 @@
+package org.pp.storagengine.api.imp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Epochs of running readers. Gets, iterators and LOB readers enter with
+ * the current epoch and leave it when done, every checkpoint starts a new
+ * one. Space released during an epoch is reused only once every reader of
+ * that epoch or an older one left, a reader entered later can't reach it
+ * anymore.
+ * @author prasantsmac
+ *
+ */
+class ReaderEpochs {
+	/** Current epoch */
+	private final AtomicLong epoch = new AtomicLong(1);
+	/** Number of running readers by epoch */
+	private final ConcurrentMap<Long, Integer> readers = new ConcurrentHashMap<>();
+
+	/**
+	 * A reader starts
+	 * @return its epoch, to leave with
+	 */
+	long enter() {
+		for (;;) {
+			long e = epoch.get();
+			readers.merge(e, 1, Integer::sum);
+			// a checkpoint in between might not have seen it
+			if (epoch.get() == e)
+				return e;
+			exit(e);
+		}
+	}
+
+	/**
+	 * Another reader starts on behalf of a running one
+	 * @param e - epoch of the running reader
+	 */
+	void join(long e) {
+		readers.merge(e, 1, Integer::sum);
+	}
+
+	/**
+	 * A reader is done
+	 * @param e - epoch it entered with
+	 */
+	void exit(long e) {
+		readers.computeIfPresent(e, (k, v) -> v == 1 ? null : v - 1);
+	}
+
+	/**
+	 * Start a new epoch
+	 * @return the epoch ended
+	 */
+	long advance() {
+		return epoch.getAndIncrement();
+	}
+
+	/**
+	 * Epoch of the oldest running reader
+	 * @return the current epoch if none is running
+	 */
+	long oldest() {
+		long min = epoch.get();
+		for (long e : readers.keySet())
+			min = Math.min(min, e);
+		return min;
+	}
+}
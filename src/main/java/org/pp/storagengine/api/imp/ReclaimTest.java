@@ -0,0 +1,317 @@
+package org.pp.storagengine.api.imp;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+import org.pp.storagengine.api.KVEngine;
+import org.pp.storagengine.api.KVEntry;
+import org.pp.storagengine.api.KVIterator;
+import org.pp.storagengine.api.StatisticsMXBean;
+
+/**
+ * Released space is reused only once no reader can reach it anymore. A
+ * reader keeps what it loaded while values are replaced, checkpoints pass
+ * and new values are written
+ * @author prasantsmac
+ *
+ */
+public class ReclaimTest {
+	// Database root directory
+	private static String ROOT_DIR = null;
+	// Value size, stored in LOB blocks or the value log
+	private static final int VAL_SZ = 20 * 1024;
+
+	// Byte array comparator
+	private static Comparator<byte[]> myComp = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] left, byte[] right) {
+			for (int i = 0, j = 0; i < left.length && j < right.length; i++, j++) {
+				int a = (left[i] & 0xff);
+				int b = (right[j] & 0xff);
+				if (a != b) {
+					return a - b;
+				}
+			}
+			return left.length - right.length;
+		}
+	};
+
+	/**
+	 * Setup test
+	 * @throws Exception
+	 */
+	public static void setUp() throws Exception {
+		ROOT_DIR = System.getProperty("user.dir") + File.separator + "DBTestReclaim";
+		delDir(ROOT_DIR);
+	}
+
+	/**
+	 * Destroy database
+	 * @throws Exception
+	 */
+	public static void destroy() throws Exception {
+		delDir(ROOT_DIR);
+	}
+
+	/**
+	 * LOB blocks of replaced values are not reused under an open iterator
+	 * @throws Exception
+	 */
+	public static void lobBlocks() throws Exception {
+		System.out.print("\nReusing LOB blocks under an open iterator.....");
+		underIterator(new Properties());
+		System.out.print("OK");
+	}
+
+	/**
+	 * A collected value log segment is not deleted under an open iterator
+	 * @throws Exception
+	 */
+	public static void vlogSegments() throws Exception {
+		System.out.print("\nDeleting a value log segment under an open iterator.....");
+		delDir(ROOT_DIR);
+		Properties props = new Properties();
+		props.setProperty("vlogThreshold", "1KB");
+		props.setProperty("vlogSegmentSize", "1MB");
+		KVEngine db = new KVEngineImp(ROOT_DIR, props, myComp);
+		try {
+			// keys 0..9 and the first filler keys in segment 0
+			for (int i = 0; i < 10; i++)
+				db.put(key(i), value(i, 0));
+			for (int i = 500; i < 555; i++)
+				db.put(key(i), value(i, 0));
+			File seg = new File(ROOT_DIR, "vl0.vlog");
+			KVIterator itr = db.iterator();
+			try {
+				check(itr, 0, 0);
+				// nothing in segment 0 is live anymore
+				for (int i = 0; i < 10; i++)
+					db.put(key(i), value(i, 1));
+				for (int i = 500; i < 555; i++)
+					db.delete(key(i));
+				long time = System.currentTimeMillis();
+				while (db.getStatistics().getNumOfVlogCollected() == 0) {
+					if (System.currentTimeMillis() - time > 30000)
+						throw new RuntimeException("Value log segment is not collected!");
+					Thread.sleep(100);
+				}
+				for (int i = 0; i < 3; i++)
+					db.sync();
+				if (!seg.exists())
+					throw new RuntimeException("Value log segment is deleted under an iterator!");
+				for (int i = 1; i < 10; i++)
+					check(itr, i, 0);
+			} finally {
+				itr.close();
+			}
+			for (int i = 0; i < 3; i++)
+				db.sync();
+			if (seg.exists())
+				throw new RuntimeException("Value log segment is not deleted!");
+			for (int i = 0; i < 10; i++)
+				if (!Arrays.equals(db.get(key(i)).getValue(), value(i, 1)))
+					throw new RuntimeException("Value is not matching!");
+		} finally {
+			db.close();
+		}
+		System.out.print("OK");
+	}
+
+	/**
+	 * Leaves merged under an iterator are freed once it is closed, even if
+	 * a newer iterator is open by then
+	 * @throws Exception
+	 */
+	public static void retiredLeaves() throws Exception {
+		System.out.print("\nFreeing merged leaves under overlapping iterators.....");
+		delDir(ROOT_DIR);
+		Properties props = new Properties();
+		props.setProperty("compactRate", "10000");
+		// read ahead tasks hold the epoch of their iterator too
+		props.setProperty("readAhead", "16");
+		KVEngine db = new KVEngineImp(ROOT_DIR, props, myComp);
+		try {
+			byte[] val = new byte[100];
+			for (int i = 0; i < 4000; i++)
+				db.put(key(i), val);
+			KVIterator older = db.iterator();
+			older.hasNext();
+			for (int i = 0; i < 4000; i++)
+				if (i % 10 != 0)
+					db.delete(key(i));
+			// let the compactor merge the sparse leaves
+			StatisticsMXBean stat = db.getStatistics();
+			long time = System.currentTimeMillis(), merged = -1;
+			while (merged != stat.getNumOfMergedLeaves()) {
+				if (System.currentTimeMillis() - time > 30000)
+					throw new RuntimeException("Leaves are not merged!");
+				merged = stat.getNumOfMergedLeaves();
+				Thread.sleep(1500);
+			}
+			if (merged == 0)
+				throw new RuntimeException("Leaves are not merged!");
+			db.sync();
+			// an iterator is open all along
+			KVIterator newer = db.iterator();
+			try {
+				older.close();
+				long free = stat.getNumOfFreeBlocks();
+				for (int i = 0; i < 3; i++)
+					db.sync();
+				if (stat.getNumOfFreeBlocks() <= free)
+					throw new RuntimeException("Merged leaves are not freed while an iterator is open!");
+				for (int i = 0; i < 4000; i += 10) {
+					if (!newer.hasNext() || !Arrays.equals(newer.next().getKey(), key(i)))
+						throw new RuntimeException("Iterator is not matching for key " + i + "!");
+				}
+				if (newer.hasNext())
+					throw new RuntimeException("Iterator returned a deleted key!");
+			} finally {
+				older.close();
+				newer.close();
+			}
+		} finally {
+			db.close();
+		}
+		System.out.print("OK");
+	}
+
+	/**
+	 * Leaves emptied by the compactor are skipped by iterators in both
+	 * directions, from the ends or from a key
+	 * @throws Exception
+	 */
+	public static void emptyLeaves() throws Exception {
+		System.out.print("\nIterating over leaves emptied by the compactor.....");
+		delDir(ROOT_DIR);
+		Properties props = new Properties();
+		props.setProperty("compactRate", "10000");
+		KVEngine db = new KVEngineImp(ROOT_DIR, props, myComp);
+		try {
+			byte[] val = new byte[100];
+			for (int i = 0; i < 4000; i++)
+				db.put(key(i), val);
+			// the first and last leaves lose all their keys
+			for (int i = 0; i < 1000; i++)
+				db.delete(key(i));
+			for (int i = 3000; i < 4000; i++)
+				db.delete(key(i));
+			StatisticsMXBean stat = db.getStatistics();
+			long time = System.currentTimeMillis(), compacted = -1;
+			while (compacted != stat.getNumOfPurgedTombstones() + stat.getNumOfMergedLeaves()) {
+				if (System.currentTimeMillis() - time > 30000)
+					throw new RuntimeException("Leaves are not compacted!");
+				compacted = stat.getNumOfPurgedTombstones() + stat.getNumOfMergedLeaves();
+				Thread.sleep(1500);
+			}
+			range(db.iterator(), 1000, 3000, false);
+			range(db.iterator(true), 1000, 3000, true);
+			range(db.iterator(key(500)), 1000, 3000, false);
+			range(db.iterator(key(3500), true), 1000, 3000, true);
+			if (!Arrays.equals(db.firstEntry().getKey(), key(1000)) || !Arrays.equals(db.lastEntry().getKey(), key(2999)))
+				throw new RuntimeException("First or last key is not matching!");
+		} finally {
+			db.close();
+		}
+		System.out.print("OK");
+	}
+
+	// An iterator returns the keys of a range and nothing else
+	private static void range(KVIterator itr, int from, int to, boolean rev) throws Exception {
+		try {
+			for (int n = 0; n < to - from; n++) {
+				int i = rev ? to - 1 - n : from + n;
+				if (!itr.hasNext() || !Arrays.equals(itr.next().getKey(), key(i)))
+					throw new RuntimeException("Iterator is not matching for key " + i + "!");
+			}
+			if (itr.hasNext())
+				throw new RuntimeException("Iterator returned a deleted key!");
+		} finally {
+			itr.close();
+		}
+	}
+
+	/**
+	 * Values of keys 0..9 are replaced while an iterator is open, several
+	 * checkpoints pass and new keys are written. The iterator returns the
+	 * old values, once closed the space is reused
+	 * @param props
+	 * @throws Exception
+	 */
+	private static void underIterator(Properties props) throws Exception {
+		delDir(ROOT_DIR);
+		KVEngine db = new KVEngineImp(ROOT_DIR, props, myComp);
+		try {
+			for (int i = 0; i < 10; i++)
+				db.put(key(i), value(i, 0));
+			KVIterator itr = db.iterator();
+			try {
+				check(itr, 0, 0);
+				for (int i = 0; i < 10; i++)
+					db.put(key(i), value(i, 1));
+				for (int i = 0; i < 3; i++)
+					db.sync();
+				for (int i = 100; i < 110; i++)
+					db.put(key(i), value(i, 0));
+				db.sync();
+				for (int i = 1; i < 10; i++)
+					check(itr, i, 0);
+			} finally {
+				itr.close();
+			}
+			for (int i = 0; i < 10; i++)
+				if (!Arrays.equals(db.get(key(i)).getValue(), value(i, 1)))
+					throw new RuntimeException("Value is not matching!");
+			// nobody reads the old values anymore
+			long reused = db.getStatistics().getNumOfReusedBlocks();
+			for (int i = 0; i < 3; i++)
+				db.sync();
+			for (int i = 200; i < 210; i++)
+				db.put(key(i), value(i, 0));
+			if (db.getStatistics().getNumOfReusedBlocks() == reused)
+				throw new RuntimeException("Released space is not reused!");
+			for (int i = 100; i < 110; i++)
+				if (!Arrays.equals(db.get(key(i)).getValue(), value(i, 0)))
+					throw new RuntimeException("Value is not matching!");
+		} finally {
+			db.close();
+		}
+	}
+
+	// Next entry of an iterator is the key with a value of a version
+	private static void check(KVIterator itr, int i, int version) throws Exception {
+		if (!itr.hasNext())
+			throw new RuntimeException("Iterator ended before key " + i + "!");
+		KVEntry entry = itr.next();
+		if (!Arrays.equals(entry.getKey(), key(i)))
+			throw new RuntimeException("Iterator returned " + new String(entry.getKey()) + " for key " + i + "!");
+		if (!Arrays.equals(entry.getValue(), value(i, version)))
+			throw new RuntimeException("Iterator value is not matching for key " + i + "!");
+	}
+
+	// Key of a number
+	private static byte[] key(int i) {
+		return String.format("key%06d", i).getBytes();
+	}
+
+	// Value of a key and version
+	private static byte[] value(int i, int version) {
+		byte[] val = new byte[VAL_SZ];
+		Arrays.fill(val, (byte) (i * 31 + version));
+		return val;
+	}
+
+	// Delete directory
+	private static void delDir(String dir) throws Exception {
+		File rootDir = new File(dir);
+		if (!rootDir.exists())
+			return;
+		// First delete all files in a directory
+		for (File f : rootDir.listFiles())
+			f.delete();
+		// ... Then delete root folder
+		rootDir.delete();
+	}
+}
@@ -0,0 +1,604 @@
+package org.pp.storagengine.api.imp;
+
+import static org.pp.storagengine.api.imp.AbstractFileHandler.dfPostfix;
+import static org.pp.storagengine.api.imp.AbstractFileHandler.dfPrefix;
+import static org.pp.storagengine.api.imp.Util.MB;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.pp.storagengine.api.KVEngine;
+import org.pp.storagengine.api.KVEntry;
+import org.pp.storagengine.api.KVIterator;
+import org.pp.storagengine.api.StatisticsMXBean;
+import org.pp.storagengine.api.WriteBatch;
+import org.pp.storagengine.api.imp.KVEngineImp.KVEntryImp;
+
+/**
+ * Reopen tests, a database is closed or crashed and opened again. A crash
+ * is a copy of the database directory taken while the engine is open, the
+ * lock file included
+ * @author prasantsmac
+ *
+ */
+public class RecoveryTest {
+	// Database root directory
+	private static String ROOT_DIR = null;
+	// Directory of the crashed copy
+	private static String CRASH_DIR = null;
+	// Database written before tree log segments, a test resource
+	private static final String LEGACY_DB = "/legacydb";
+	// Keys in the legacy database
+	private static final int LEGACY_KEYS = 3000;
+
+	// Byte array comparator
+	private static Comparator<byte[]> myComp = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] left, byte[] right) {
+			for (int i = 0, j = 0; i < left.length && j < right.length; i++, j++) {
+				int a = (left[i] & 0xff);
+				int b = (right[j] & 0xff);
+				if (a != b) {
+					return a - b;
+				}
+			}
+			return left.length - right.length;
+		}
+	};
+
+	/**
+	 * Setup test
+	 * @throws Exception
+	 */
+	public static void setUp() throws Exception {
+		ROOT_DIR = System.getProperty("user.dir") + File.separator + "DBTestRecovery";
+		CRASH_DIR = ROOT_DIR + "Crash";
+		delDir(ROOT_DIR);
+		delDir(CRASH_DIR);
+	}
+
+	/**
+	 * Destroy databases
+	 * @throws Exception
+	 */
+	public static void destroy() throws Exception {
+		delDir(ROOT_DIR);
+		delDir(CRASH_DIR);
+	}
+
+	/**
+	 * Open a database written before tree log segments, a single tree log
+	 * without checksums. It is upgraded to segments and a snapshot
+	 * @throws Exception
+	 */
+	public static void legacyOpen() throws Exception {
+		System.out.print("\nOpening a database written before tree log segments.....");
+		delDir(ROOT_DIR);
+		File src = new File(RecoveryTest.class.getResource(LEGACY_DB).toURI());
+		copyDir(src, new File(ROOT_DIR));
+		// what the old engine wrote, every 7th key deleted
+		NavigableMap<byte[], byte[]> map = new TreeMap<>(myComp);
+		for (int i = 0; i < LEGACY_KEYS; i++)
+			if (i % 7 != 0)
+				map.put(key(i), ("value-" + i).getBytes());
+		byte[] lob = new byte[10000];
+		Arrays.fill(lob, (byte) 'x');
+		map.put("lob".getBytes(), lob);
+
+		KVEngine db = new KVEngineImp(ROOT_DIR, new Properties(), myComp);
+		try {
+			verify(db, map);
+			if (new File(ROOT_DIR, ".tlog").exists() || !new File(ROOT_DIR, "tl0.tlog").exists())
+				throw new RuntimeException("Tree log is not upgraded!");
+			fill(db, map, LEGACY_KEYS, 2 * LEGACY_KEYS);
+		} finally {
+			db.close();
+		}
+		// reopen from the snapshot written by the upgrade
+		db = new KVEngineImp(ROOT_DIR, new Properties(), myComp);
+		try {
+			verify(db, map);
+		} finally {
+			db.close();
+		}
+		System.out.print("OK");
+	}
+
+	/**
+	 * Reopen from a branch snapshot taken while running, crash after more
+	 * leaves were logged since and then with a torn tree log tail
+	 * @throws Exception
+	 */
+	public static void snapshotReopen() throws Exception {
+		System.out.print("\nReopening from a branch snapshot and the tree log tail.....");
+		delDir(ROOT_DIR);
+		delDir(CRASH_DIR);
+		Properties props = new Properties();
+		props.setProperty("snapshotInterval", "1");
+		NavigableMap<byte[], byte[]> map = new TreeMap<>(myComp);
+		KVEngine db = new KVEngineImp(ROOT_DIR, props, myComp);
+		try {
+			fill(db, map, 0, 5000);
+			// a checkpoint past the interval takes the snapshot
+			Thread.sleep(1100);
+			db.sync();
+			if (!new File(ROOT_DIR, ".bsn").exists())
+				throw new RuntimeException("Branch snapshot is not taken!");
+			// leaves split after the snapshot are in the tree log only
+			fill(db, map, 5000, 10000);
+			db.sync();
+			crash(ROOT_DIR, CRASH_DIR);
+		} finally {
+			db.close();
+		}
+		// replay the tail of the crashed copy
+		db = new KVEngineImp(CRASH_DIR, new Properties(), myComp);
+		try {
+			verify(db, map);
+		} finally {
+			db.close();
+		}
+		// crash again and tear the tree log, the replay stops there
+		db = new KVEngineImp(ROOT_DIR, new Properties(), myComp);
+		try {
+			fill(db, map, 10000, 12000);
+			db.sync();
+			delDir(CRASH_DIR);
+			crash(ROOT_DIR, CRASH_DIR);
+		} finally {
+			db.close();
+		}
+		tearTreeLog(CRASH_DIR);
+		db = new KVEngineImp(CRASH_DIR, new Properties(), myComp);
+		try {
+			verify(db, map);
+			fill(db, map, 12000, 13000);
+		} finally {
+			db.close();
+		}
+		db = new KVEngineImp(CRASH_DIR, new Properties(), myComp);
+		try {
+			verify(db, map);
+		} finally {
+			db.close();
+		}
+		System.out.print("OK");
+	}
+
+	/**
+	 * A write batch is logged even with the write ahead log disabled. The
+	 * crash loses the leaves written by the batch but not its log record,
+	 * the whole batch is found after reopening
+	 * @throws Exception
+	 */
+	public static void batchReplay() throws Exception {
+		System.out.print("\nReplaying a write batch without write ahead log.....");
+		delDir(ROOT_DIR);
+		delDir(CRASH_DIR);
+		NavigableMap<byte[], byte[]> map = new TreeMap<>(myComp);
+		// no background checkpoint releases the log before it is copied
+		Properties props = new Properties();
+		props.setProperty("syncPolicy", "never");
+		KVEngine db = new KVEngineImp(ROOT_DIR, props, myComp);
+		try {
+			fill(db, map, 0, 1000);
+			db.sync();
+			// leaves as they are before the batch
+			crash(ROOT_DIR, CRASH_DIR);
+			WriteBatch batch = db.newWriteBatch();
+			for (int i = 0; i < 100; i++) {
+				batch.delete(key(i));
+				map.remove(key(i));
+			}
+			for (int i = 100; i < 2000; i++) {
+				byte[] val = ("batch-" + i).getBytes();
+				batch.put(key(i), val);
+				map.put(key(i), val);
+			}
+			db.write(batch);
+			// only the log made it to disk
+			copyLog(ROOT_DIR, CRASH_DIR);
+		} finally {
+			db.close();
+		}
+		db = new KVEngineImp(CRASH_DIR, new Properties(), myComp);
+		try {
+			verify(db, map);
+		} finally {
+			db.close();
+		}
+		System.out.print("OK");
+	}
+
+	/**
+	 * Writes made durable by the write ahead log are replayed after a crash
+	 * losing every leaf written since the last sync
+	 * @throws Exception
+	 */
+	public static void walReplay() throws Exception {
+		System.out.print("\nReplaying the write ahead log over lost leaves.....");
+		lostLeaves(walProps());
+		System.out.print("OK");
+	}
+
+	/**
+	 * Writes buffered in the memory table are replayed after a crash with
+	 * the write ahead log. Without it they are found after a sync or a clean
+	 * close
+	 * @throws Exception
+	 */
+	public static void memTableReplay() throws Exception {
+		System.out.print("\nReopening with writes buffered in the memory table.....");
+		Properties props = walProps();
+		props.setProperty("memTableSize", "64KB");
+		lostLeaves(props);
+		props = new Properties();
+		props.setProperty("memTableSize", "64KB");
+		crashOpen(props, false);
+		System.out.print("OK");
+	}
+
+	/**
+	 * Compressed and prefix encoded leaves are read back after a crash and
+	 * take the writes replayed from the write ahead log
+	 * @throws Exception
+	 */
+	public static void encodedLeaves() throws Exception {
+		System.out.print("\nReopening compressed and prefix encoded leaves.....");
+		Properties props = walProps();
+		props.setProperty("compressLeaf", "true");
+		props.setProperty("prefixKeys", "true");
+		if (lostLeaves(props).getNumOfCompressedLeaf() == 0)
+			throw new RuntimeException("Leaves are not compressed!");
+		props = new Properties();
+		props.setProperty("prefixKeys", "true");
+		crashOpen(props, false);
+		System.out.print("OK");
+	}
+
+	/**
+	 * Slotted leaves are read back after a crash and take the writes
+	 * replayed from the write ahead log
+	 * @throws Exception
+	 */
+	public static void slottedLeaves() throws Exception {
+		System.out.print("\nReopening slotted leaves.....");
+		Properties props = walProps();
+		props.setProperty("pageFormat", "2");
+		lostLeaves(props);
+		props = new Properties();
+		props.setProperty("pageFormat", "2");
+		crashOpen(props, false);
+		System.out.print("OK");
+	}
+
+	/**
+	 * Leaves merged by the compactor and moved by the defragmenter are
+	 * found after a crash, both keep running on the reopened database
+	 * @throws Exception
+	 */
+	public static void compactedLeaves() throws Exception {
+		System.out.print("\nReopening leaves merged and moved in the background.....");
+		Properties props = new Properties();
+		props.setProperty("compactRate", "10000");
+		props.setProperty("defragRate", "10000");
+		StatisticsMXBean stat = crashOpen(props, true);
+		if (stat.getNumOfMergedLeaves() == 0 || stat.getNumOfRelocatedLeaves() == 0)
+			throw new RuntimeException("Leaves are not merged or moved!");
+		System.out.print("OK");
+	}
+
+	/**
+	 * Data files are mapped in regions. Leaves and large values on both sides
+	 * of a region boundary and in the region being written are read, scanned
+	 * and found again after a crash
+	 * @throws Exception
+	 */
+	public static void mappedReads() throws Exception {
+		System.out.print("\nReading data files mapped in regions.....");
+		delDir(ROOT_DIR);
+		delDir(CRASH_DIR);
+		Properties props = new Properties();
+		props.setProperty("mmapDataFiles", "true");
+		NavigableMap<byte[], byte[]> map = new TreeMap<>(myComp);
+		KVEngine db = new KVEngineImp(ROOT_DIR, props, myComp);
+		try {
+			// more than two 8MB regions of leaves and LOBs
+			for (int i = 0; i < 20000; i++) {
+				byte[] val = new byte[i % 100 == 0 ? 100 * 1024 : 1000];
+				Arrays.fill(val, (byte) i);
+				val[0] = (byte) (i >> 8);
+				db.put(key(i), val);
+				map.put(key(i), val);
+			}
+			verify(db, map);
+			if (db.getStatistics().getNumOfMappedFiles() < 2)
+				throw new RuntimeException("Data file regions are not mapped!");
+			churn(db, map, 0, 20000, 1);
+			verify(db, map);
+			db.sync();
+			crash(ROOT_DIR, CRASH_DIR);
+		} finally {
+			db.close();
+		}
+		reopen(ROOT_DIR, map);
+		reopen(CRASH_DIR, map);
+		System.out.print("OK");
+	}
+
+	/**
+	 * Data files are preallocated at full size. Keys fill more than one data
+	 * file, the file after the one being written is ready at full size and a
+	 * crash finds every key although the length of a data file no longer
+	 * tells its last block
+	 * @throws Exception
+	 */
+	public static void preallocatedFiles() throws Exception {
+		System.out.print("\nReopening preallocated data files.....");
+		delDir(ROOT_DIR);
+		delDir(CRASH_DIR);
+		Properties props = new Properties();
+		props.setProperty("preallocateFiles", "true");
+		props.setProperty("dataFileSize", "1MB");
+		NavigableMap<byte[], byte[]> map = new TreeMap<>(myComp);
+		KVEngine db = new KVEngineImp(ROOT_DIR, props, myComp);
+		try {
+			StatisticsMXBean stat = db.getStatistics();
+			// about three data files of leaves
+			for (int i = 0; i < 3000; i++) {
+				byte[] val = new byte[1000];
+				Arrays.fill(val, (byte) i);
+				db.put(key(i), val);
+				map.put(key(i), val);
+			}
+			if (stat.getNumOfDataFiles() < 2)
+				throw new RuntimeException("Keys fit in one data file!");
+			File next = new File(ROOT_DIR + dfPrefix + stat.getNumOfDataFiles() + dfPostfix);
+			long time = System.currentTimeMillis();
+			while (next.length() != MB) {
+				if (System.currentTimeMillis() - time > 30000)
+					throw new RuntimeException("Next data file is not preallocated! " + next.length());
+				Thread.sleep(100);
+			}
+			for (int i = 0; i < stat.getNumOfDataFiles(); i++) {
+				File f = new File(ROOT_DIR + dfPrefix + i + dfPostfix);
+				if (f.length() != MB)
+					throw new RuntimeException("Data file is not full size! " + f.getName());
+			}
+			if (stat.getNumOfPreallocatedFiles() == 0)
+				throw new RuntimeException("Data files are not preallocated!");
+			churn(db, map, 0, 3000, 1);
+			db.sync();
+			crash(ROOT_DIR, CRASH_DIR);
+		} finally {
+			db.close();
+		}
+		reopen(ROOT_DIR, map);
+		reopen(CRASH_DIR, map);
+		System.out.print("OK");
+	}
+
+	// Write ahead log without background checkpoints, only explicit syncs release it
+	private static Properties walProps() {
+		Properties props = new Properties();
+		props.setProperty("walEnabled", "true");
+		props.setProperty("syncPolicy", "never");
+		return props;
+	}
+
+	/**
+	 * Keys are put, updated and deleted, synced and the database copied.
+	 * More writes follow and only the write ahead log is copied, as a crash
+	 * losing the leaves written since the sync. The copy and the database
+	 * closed cleanly reopen with every write
+	 * @param props - with the write ahead log, no background checkpoint
+	 * @return statistics of the crashed engine
+	 * @throws Exception
+	 */
+	private static StatisticsMXBean lostLeaves(Properties props) throws Exception {
+		delDir(ROOT_DIR);
+		delDir(CRASH_DIR);
+		NavigableMap<byte[], byte[]> map = new TreeMap<>(myComp);
+		StatisticsMXBean stat = null;
+		KVEngine db = new KVEngineImp(ROOT_DIR, props, myComp);
+		try {
+			stat = db.getStatistics();
+			scatter(db, map, 0, 4000);
+			churn(db, map, 0, 4000, 1);
+			db.sync();
+			crash(ROOT_DIR, CRASH_DIR);
+			churn(db, map, 0, 4000, 2);
+			scatter(db, map, 4000, 6000);
+			copyLog(ROOT_DIR, CRASH_DIR);
+		} finally {
+			db.close();
+		}
+		reopen(ROOT_DIR, map);
+		reopen(CRASH_DIR, map);
+		return stat;
+	}
+
+	/**
+	 * Keys are put, updated and deleted, the database is synced and copied
+	 * while open. The copy and the database closed cleanly reopen with every
+	 * write. A sparse database loses most keys and waits for the background
+	 * threads to settle before the copy
+	 * @param props
+	 * @param sparse
+	 * @return statistics of the crashed engine
+	 * @throws Exception
+	 */
+	private static StatisticsMXBean crashOpen(Properties props, boolean sparse) throws Exception {
+		delDir(ROOT_DIR);
+		delDir(CRASH_DIR);
+		NavigableMap<byte[], byte[]> map = new TreeMap<>(myComp);
+		StatisticsMXBean stat = null;
+		KVEngine db = new KVEngineImp(ROOT_DIR, props, myComp);
+		try {
+			stat = db.getStatistics();
+			scatter(db, map, 0, 6000);
+			churn(db, map, 0, 6000, 1);
+			if (sparse) {
+				for (int i = 0; i < 6000; i++) {
+					if (i % 5 != 0 && map.remove(key(i)) != null)
+						db.delete(key(i));
+				}
+				settle(stat);
+			}
+			db.sync();
+			crash(ROOT_DIR, CRASH_DIR);
+		} finally {
+			db.close();
+		}
+		reopen(ROOT_DIR, map);
+		reopen(CRASH_DIR, map);
+		return stat;
+	}
+
+	// Reopen a database, verify it, write more and verify once more after a clean close
+	private static void reopen(String dir, NavigableMap<byte[], byte[]> expected) throws Exception {
+		NavigableMap<byte[], byte[]> map = new TreeMap<>(expected);
+		KVEngine db = new KVEngineImp(dir, new Properties(), myComp);
+		try {
+			verify(db, map);
+			churn(db, map, 0, 6000, 3);
+			scatter(db, map, 6000, 7000);
+		} finally {
+			db.close();
+		}
+		db = new KVEngineImp(dir, new Properties(), myComp);
+		try {
+			verify(db, map);
+		} finally {
+			db.close();
+		}
+	}
+
+	// Put keys of a range spread over the leaves, every 7th key at a time
+	private static void scatter(KVEngine db, NavigableMap<byte[], byte[]> map, int from, int to) throws Exception {
+		for (int j = 0; j < 7; j++)
+			fill(db, map, from + j, to, 7);
+	}
+
+	// Update every 3rd key and delete every 5th one of a range, in a round
+	private static void churn(KVEngine db, NavigableMap<byte[], byte[]> map, int from, int to, int round) throws Exception {
+		for (int i = from; i < to; i++) {
+			if ((i + round) % 5 == 0) {
+				db.delete(key(i));
+				map.remove(key(i));
+			} else if ((i + round) % 3 == 0) {
+				byte[] val = ("update-" + round + "-" + i).getBytes();
+				db.put(key(i), val);
+				map.put(key(i), val);
+			}
+		}
+	}
+
+	// Wait until the compactor and the defragmenter stop changing leaves
+	private static void settle(StatisticsMXBean stat) throws Exception {
+		long time = System.currentTimeMillis(), changes = -1;
+		while (changes != stat.getNumOfMergedLeaves() + stat.getNumOfRelocatedLeaves() + stat.getNumOfPurgedTombstones()) {
+			if (System.currentTimeMillis() - time > 60000)
+				throw new RuntimeException("Background threads are not settling!");
+			changes = stat.getNumOfMergedLeaves() + stat.getNumOfRelocatedLeaves() + stat.getNumOfPurgedTombstones();
+			Thread.sleep(2500);
+		}
+	}
+
+	// Key of a number
+	private static byte[] key(int i) {
+		return String.format("key%06d", i).getBytes();
+	}
+
+	// Put keys in a range
+	private static void fill(KVEngine db, NavigableMap<byte[], byte[]> map, int from, int to) throws Exception {
+		fill(db, map, from, to, 1);
+	}
+
+	// Put keys in a range, a step apart
+	private static void fill(KVEngine db, NavigableMap<byte[], byte[]> map, int from, int to, int step) throws Exception {
+		for (int i = from; i < to; i += step) {
+			byte[] val = ("value-" + i + "-" + System.nanoTime()).getBytes();
+			db.put(key(i), val);
+			map.put(key(i), val);
+		}
+	}
+
+	// Every entry is found and the iterator returns them in order
+	private static void verify(KVEngine db, NavigableMap<byte[], byte[]> map) throws Exception {
+		for (Entry<byte[], byte[]> e : map.entrySet()) {
+			KVEntry kv = db.get(e.getKey());
+			if (kv == null)
+				throw new RuntimeException("Key is missing! " + new String(e.getKey()));
+			if (!Arrays.equals(kv.getValue(), e.getValue()))
+				throw new RuntimeException("Value is not matching! " + new String(e.getKey()));
+		}
+		int count = 0;
+		KVIterator itr = db.iterator();
+		try {
+			for (Entry<byte[], byte[]> e : map.entrySet()) {
+				if (!itr.hasNext() || !Arrays.equals(itr.next().getKey(), e.getKey()))
+					throw new RuntimeException("Iterator is not matching!");
+				count++;
+			}
+			if (itr.hasNext())
+				throw new RuntimeException("Iterator returned more keys than " + count + "!");
+		} finally {
+			itr.close();
+		}
+	}
+
+	// Copy the directory of an open database, as a crash leaves it
+	private static void crash(String src, String dst) throws Exception {
+		copyDir(new File(src), new File(dst));
+		if (!new File(dst, ".lock").exists())
+			throw new RuntimeException("Lock file is missing!");
+	}
+
+	// Append a record pointing past the data files and a torn one to the last tree log segment
+	private static void tearTreeLog(String dir) throws Exception {
+		int last = -1;
+		for (File f : new File(dir).listFiles())
+			if (f.getName().startsWith("tl") && f.getName().endsWith(".tlog"))
+				last = Math.max(last, Integer.parseInt(f.getName().substring(2, f.getName().length() - 5)));
+		byte[] rec = TreeLog.record(new KVEntryImp("zzz".getBytes(), Long.MAX_VALUE >>> 1, -1));
+		try (RandomAccessFile rf = new RandomAccessFile(new File(dir, "tl" + last + ".tlog"), "rw")) {
+			rf.seek(rf.length());
+			rf.write(rec);
+			rf.write(rec, 0, rec.length / 2);
+		}
+	}
+
+	// Copy the write ahead log of an open database over a crashed copy
+	private static void copyLog(String src, String dst) throws Exception {
+		for (File f : new File(src).listFiles())
+			if (f.getName().startsWith(".wal"))
+				Files.copy(f.toPath(), new File(dst, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void copyDir(File src, File dst) throws Exception {
+		dst.mkdirs();
+		for (File f : src.listFiles())
+			Files.copy(f.toPath(), new File(dst, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	// Delete directory
+	private static void delDir(String dir) throws Exception {
+		File rootDir = new File(dir);
+		if (!rootDir.exists())
+			return;
+		// First delete all files in a directory
+		for (File f : rootDir.listFiles())
+			f.delete();
+		// ... Then delete root folder
+		rootDir.delete();
+	}
+}
@@ -3,6 +3,7 @@ package org.pp.storagengine.api.imp;
 import java.lang.management.ManagementFactory;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -22,6 +23,31 @@ class Statistics implements StatisticsMXBean {
 	volatile long 	lastSyncTime 		= 0;
 	volatile long 	maxSyncTime 		= 0;
 	volatile long	numOfSync 			= 0;
+	volatile long	numOfCacheHit 		= 0;
+	volatile long	numOfCacheMiss 		= 0;
+	volatile int	numOfReadHandles 	= 0;
+	volatile int	numOfWriteHandles 	= 0;
+	volatile int	numOfMappedFiles 	= 0;
+	volatile long	numOfWalAppend 		= 0;
+	volatile long	numOfWalSync 		= 0;
+	volatile long	memTableBytes 		= 0;
+	volatile long	numOfMemTableFlush 	= 0;
+	volatile long	numOfCompressedLeaf = 0;
+	volatile long	numOfFreeBlocks = 0;
+	volatile long	numOfReusedBlocks = 0;
+	volatile int	numOfVlogSegments = 0;
+	volatile long	vlogBytes = 0;
+	volatile long	numOfVlogCollected = 0;
+	volatile long	vlogRelocatedBytes = 0;
+	volatile long	numOfPurgedTombstones = 0;
+	volatile long	numOfMergedLeaves = 0;
+	volatile long	numOfRelocatedLeaves = 0;
+	volatile long	numOfSnapshots = 0;
+	volatile long	numOfPreallocatedFiles = 0;
+	volatile long	numOfDataOnlySync = 0;
+	// counted by the read ahead threads
+	final AtomicLong	numOfReadAhead = new AtomicLong();
+	volatile long	numOfReadAheadHit = 0;
 			
 				
 	@Override
@@ -73,6 +99,117 @@ class Statistics implements StatisticsMXBean {
 	
 	@Override
 	public long getMaxSyncTime() { return maxSyncTime;  }
+
+	@Override
+	public long getNumOfCacheHit() { return numOfCacheHit; }
+
+	@Override
+	public long getNumOfCacheMiss() { return numOfCacheMiss; }
+
+	@Override
+	public long getPageCacheSize() { return ctx.getPageCacheSize(); }
+
+	@Override
+	public int getNumOfReadHandles() { return numOfReadHandles; }
+
+	@Override
+	public int getNumOfWriteHandles() { return numOfWriteHandles; }
+
+	@Override
+	public int getNumOfMappedFiles() { return numOfMappedFiles; }
+
+	@Override
+	public boolean isMmapDataFiles() { return ctx.isMmapDataFiles(); }
+
+	@Override
+	public boolean isWalEnabled() { return ctx.isWalEnabled(); }
+
+	@Override
+	public long getNumOfWalAppend() { return numOfWalAppend; }
+
+	@Override
+	public long getNumOfWalSync() { return numOfWalSync; }
+
+	@Override
+	public long getMemTableSize() { return ctx.getMemTableSize(); }
+
+	@Override
+	public long getMemTableBytes() { return memTableBytes; }
+
+	@Override
+	public long getNumOfMemTableFlush() { return numOfMemTableFlush; }
+
+	@Override
+	public boolean isCompressLeaf() { return ctx.isCompressLeaf(); }
+
+	@Override
+	public long getNumOfCompressedLeaf() { return numOfCompressedLeaf; }
+
+	@Override
+	public int getPageFormat() { return ctx.getPageFormat(); }
+
+	@Override
+	public long getNumOfFreeBlocks() { return numOfFreeBlocks; }
+
+	@Override
+	public long getNumOfReusedBlocks() { return numOfReusedBlocks; }
+
+	@Override
+	public int getVlogThreshold() { return ctx.getVlogThreshold(); }
+
+	@Override
+	public int getNumOfVlogSegments() { return numOfVlogSegments; }
+
+	@Override
+	public long getVlogBytes() { return vlogBytes; }
+
+	@Override
+	public long getNumOfVlogCollected() { return numOfVlogCollected; }
+
+	@Override
+	public long getVlogRelocatedBytes() { return vlogRelocatedBytes; }
+
+	@Override
+	public int getCompactRate() { return ctx.getCompactRate(); }
+
+	@Override
+	public long getNumOfPurgedTombstones() { return numOfPurgedTombstones; }
+
+	@Override
+	public long getNumOfMergedLeaves() { return numOfMergedLeaves; }
+
+	@Override
+	public int getDefragRate() { return ctx.getDefragRate(); }
+
+	@Override
+	public long getNumOfRelocatedLeaves() { return numOfRelocatedLeaves; }
+
+	@Override
+	public int getSnapshotInterval() { return ctx.getSnapshotInterval(); }
+
+	@Override
+	public long getNumOfSnapshots() { return numOfSnapshots; }
+
+	@Override
+	public boolean isPreallocateFiles() { return ctx.isPreallocateFiles(); }
+
+	@Override
+	public long getNumOfPreallocatedFiles() { return numOfPreallocatedFiles; }
+
+	@Override
+	public String getSyncPolicy() { return ctx.getSyncPolicy(); }
+
+	@Override
+	public long getNumOfDataOnlySync() { return numOfDataOnlySync; }
+
+	@Override
+	public int getReadAhead() { return ctx.getReadAhead(); }
+
+	@Override
+	public long getNumOfReadAhead() { return numOfReadAhead.get(); }
+
+	@Override
+	public long getNumOfReadAheadHit() { return numOfReadAheadHit; }
 		
 	private ObjectName objectName = null;	
 	
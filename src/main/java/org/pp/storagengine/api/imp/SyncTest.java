@@ -0,0 +1,259 @@
+package org.pp.storagengine.api.imp;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+import org.pp.storagengine.api.KVEngine;
+import org.pp.storagengine.api.KVEntry;
+import org.pp.storagengine.api.StatisticsMXBean;
+
+/**
+ * Sync policies. Writes sync the data files after every operation, every
+ * interval or every number of bytes, the counters tell how often, and a
+ * copy taken while the engine is open finds what was synced
+ * @author prasantsmac
+ *
+ */
+public class SyncTest {
+	// Database root directory
+	private static String ROOT_DIR = null;
+	// Directory of the crashed copy
+	private static String CRASH_DIR = null;
+
+	// Byte array comparator
+	private static Comparator<byte[]> myComp = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] left, byte[] right) {
+			for (int i = 0, j = 0; i < left.length && j < right.length; i++, j++) {
+				int a = (left[i] & 0xff);
+				int b = (right[j] & 0xff);
+				if (a != b) {
+					return a - b;
+				}
+			}
+			return left.length - right.length;
+		}
+	};
+
+	/**
+	 * Setup test
+	 * @throws Exception
+	 */
+	public static void setUp() throws Exception {
+		ROOT_DIR = System.getProperty("user.dir") + File.separator + "DBTestSync";
+		CRASH_DIR = ROOT_DIR + "Crash";
+		delDir(ROOT_DIR);
+		delDir(CRASH_DIR);
+	}
+
+	/**
+	 * Destroy databases
+	 * @throws Exception
+	 */
+	public static void destroy() throws Exception {
+		delDir(ROOT_DIR);
+		delDir(CRASH_DIR);
+	}
+
+	/**
+	 * Every put is synced before it returns, a copy taken without an
+	 * explicit sync finds every key
+	 * @throws Exception
+	 */
+	public static void alwaysPolicy() throws Exception {
+		System.out.print("\nSyncing after every operation.....");
+		Properties props = new Properties();
+		props.setProperty("syncPolicy", "always");
+		KVEngine db = open(props);
+		try {
+			StatisticsMXBean stat = db.getStatistics();
+			for (int i = 0; i < 500; i++) {
+				long syncs = stat.getNumOfSync();
+				db.put(key(i), value(i, 0));
+				if (stat.getNumOfSync() != syncs + 1)
+					throw new RuntimeException("Put is not synced! " + i);
+			}
+			crash(ROOT_DIR, CRASH_DIR);
+		} finally {
+			db.close();
+		}
+		check(CRASH_DIR, 500, 0);
+		System.out.print("OK");
+	}
+
+	/**
+	 * A few puts, far below the blocks threshold, are synced within the
+	 * interval. An idle engine is not synced, and a copy taken once the
+	 * syncs stopped finds every key
+	 * @throws Exception
+	 */
+	public static void intervalPolicy() throws Exception {
+		System.out.print("\nSyncing every interval.....");
+		Properties props = new Properties();
+		props.setProperty("syncPolicy", "interval");
+		props.setProperty("syncInterval", "100");
+		KVEngine db = open(props);
+		try {
+			StatisticsMXBean stat = db.getStatistics();
+			long syncs = stat.getNumOfSync();
+			for (int i = 0; i < 5; i++)
+				db.put(key(i), value(i, 0));
+			// a put missed by the first sync is synced a few intervals later
+			waitSync(stat, syncs + 1);
+			Thread.sleep(500);
+			syncs = stat.getNumOfSync();
+			Thread.sleep(500);
+			if (stat.getNumOfSync() != syncs)
+				throw new RuntimeException("Idle engine is synced!");
+			crash(ROOT_DIR, CRASH_DIR);
+		} finally {
+			db.close();
+		}
+		check(CRASH_DIR, 5, 0);
+		System.out.print("OK");
+	}
+
+	/**
+	 * Puts below syncBytes are not synced, more than that are synced in the
+	 * background
+	 * @throws Exception
+	 */
+	public static void bytesPolicy() throws Exception {
+		System.out.print("\nSyncing every number of bytes.....");
+		Properties props = new Properties();
+		props.setProperty("syncPolicy", "bytes");
+		props.setProperty("syncBytes", "1MB");
+		KVEngine db = open(props);
+		try {
+			StatisticsMXBean stat = db.getStatistics();
+			long syncs = stat.getNumOfSync();
+			// a leaf each, less than 1MB of blocks
+			for (int i = 0; i < 100; i++)
+				db.put(key(i), value(i, 0));
+			Thread.sleep(1000);
+			if (stat.getNumOfSync() != syncs)
+				throw new RuntimeException("Synced before 1MB is written!");
+			for (int i = 100; i < 1000; i++)
+				db.put(key(i), value(i, 0));
+			waitSync(stat, syncs + 1);
+		} finally {
+			db.close();
+		}
+		check(ROOT_DIR, 1000, 0);
+		System.out.print("OK");
+	}
+
+	/**
+	 * Preallocated data files never grow, every data file is synced without
+	 * its metadata. Data files grown since their last sync are synced with it
+	 * @throws Exception
+	 */
+	public static void dataOnlySync() throws Exception {
+		System.out.print("\nSyncing data files without metadata.....");
+		Properties props = new Properties();
+		props.setProperty("syncPolicy", "always");
+		props.setProperty("preallocateFiles", "true");
+		props.setProperty("dataFileSize", "2MB");
+		KVEngine db = open(props);
+		try {
+			StatisticsMXBean stat = db.getStatistics();
+			long syncs = stat.getNumOfSync(), dataOnly = stat.getNumOfDataOnlySync();
+			for (int i = 0; i < 100; i++)
+				db.put(key(i), value(i, 0));
+			if (stat.getNumOfDataOnlySync() - dataOnly != stat.getNumOfSync() - syncs)
+				throw new RuntimeException("Preallocated data file is synced with metadata!");
+		} finally {
+			db.close();
+		}
+		props.setProperty("preallocateFiles", "false");
+		db = open(props);
+		try {
+			StatisticsMXBean stat = db.getStatistics();
+			long dataOnly = stat.getNumOfDataOnlySync();
+			// new keys on the right edge, every leaf is appended
+			for (int i = 0; i < 100; i++)
+				db.put(key(i), value(i, 0));
+			if (stat.getNumOfDataOnlySync() == stat.getNumOfSync())
+				throw new RuntimeException("Grown data file is synced without metadata!");
+			// updates rewrite the leaf in a block released before
+			for (int i = 0; i < 100; i++)
+				db.put(key(99), value(99, i + 1));
+			if (stat.getNumOfDataOnlySync() == dataOnly)
+				throw new RuntimeException("Data file is not synced without metadata!");
+		} finally {
+			db.close();
+		}
+		System.out.print("OK");
+	}
+
+	// Open a new database
+	private static KVEngine open(Properties props) throws Exception {
+		delDir(ROOT_DIR);
+		delDir(CRASH_DIR);
+		return new KVEngineImp(ROOT_DIR, props, myComp);
+	}
+
+	// Wait until the number of syncs reaches a count
+	private static void waitSync(StatisticsMXBean stat, long count) throws Exception {
+		long time = System.currentTimeMillis();
+		while (stat.getNumOfSync() < count) {
+			if (System.currentTimeMillis() - time > 30000)
+				throw new RuntimeException("Writes are not synced! " + stat.getNumOfSync());
+			Thread.sleep(50);
+		}
+	}
+
+	// Reopen a database and find keys 0..n of a version
+	private static void check(String dir, int n, int version) throws Exception {
+		KVEngine db = new KVEngineImp(dir, new Properties(), myComp);
+		try {
+			for (int i = 0; i < n; i++) {
+				KVEntry kv = db.get(key(i));
+				if (kv == null)
+					throw new RuntimeException("Key is missing! " + i);
+				if (!Arrays.equals(kv.getValue(), value(i, version)))
+					throw new RuntimeException("Value is not matching! " + i);
+			}
+		} finally {
+			db.close();
+		}
+	}
+
+	// Key of a number
+	private static byte[] key(int i) {
+		return String.format("key%06d", i).getBytes();
+	}
+
+	// Value of a key and version
+	private static byte[] value(int i, int version) {
+		byte[] val = new byte[1000];
+		Arrays.fill(val, (byte) (i * 31 + version));
+		return val;
+	}
+
+	// Copy the directory of an open database, as a crash leaves it
+	private static void crash(String src, String dst) throws Exception {
+		File dir = new File(dst);
+		dir.mkdirs();
+		for (File f : new File(src).listFiles())
+			Files.copy(f.toPath(), new File(dir, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		if (!new File(dir, ".lock").exists())
+			throw new RuntimeException("Lock file is missing!");
+	}
+
+	// Delete directory
+	private static void delDir(String dir) throws Exception {
+		File rootDir = new File(dir);
+		if (!rootDir.exists())
+			return;
+		// First delete all files in a directory
+		for (File f : rootDir.listFiles())
+			f.delete();
+		// ... Then delete root folder
+		rootDir.delete();
+	}
+}
@@ -16,6 +16,8 @@ import org.pp.storagengine.api.Validator;
 class SysContext {
 	/** File name where system parameters will be saved */
 	private static final String sInfoFile = File.separator + ".info";
+	/** Latest leaf page format this version can read */
+	static final int PAGE_FORMAT = 2;
 	/** Root directory path and name */
 	private String ROOT_DIR = "";
 	/** Data page size (Should be aligned with FS disk block size) */
@@ -32,6 +34,67 @@ class SysContext {
 	/** Sync after specified number of block update */
 	@Validator(powof2 = true, max = 512)
 	private int maxBlkSync = 128;	
+	/**
+	 * When writes sync the data files: blocks every maxBlkSync blocks, always after
+	 * every operation, interval every syncInterval ms, bytes every syncBytes bytes,
+	 * never on close and explicit sync only
+	 */
+	@Validator(regex = "blocks|always|interval|bytes|never")
+	private String syncPolicy = "blocks";
+	/** Milliseconds between two syncs with the interval policy */
+	@Validator(min = 1)
+	private int syncInterval = 1000;
+	/** Bytes written between two syncs with the bytes policy */
+	@Validator(min = 4 * KB)
+	private long syncBytes = 4 * MB;
+	/** Leaf page cache size in bytes, 0 to disable, default 32MB */
+	@Validator()
+	private long pageCacheSize = 32 * MB;
+	/** Map data files in memory instead of reading them, page cache is not used */
+	@Validator()
+	private boolean mmapDataFiles = false;
+	/** Log every put/delete and make it durable before return */
+	@Validator()
+	private boolean walEnabled = false;
+	/** Write buffer size in bytes, 0 to disable */
+	@Validator()
+	private long memTableSize = 0;
+	/** Compress the sorted region of leaf pages */
+	@Validator()
+	private boolean compressLeaf = false;
+	/** Store keys of the sorted region of leaf pages with shared prefix encoding */
+	@Validator()
+	private boolean prefixKeys = false;
+	/** Leaf page format, 1 sorted run + unsorted tail, 2 slotted. Databases without it are 1 */
+	@Validator(min = 1, max = PAGE_FORMAT)
+	private int pageFormat = 1;
+	/** Values of that many bytes or more go to the value log, 0 to disable */
+	@Validator()
+	private int vlogThreshold = 0;
+	/** Value log segment size, default 64MB */
+	@Validator(min = MB, powof2 = true)
+	private int vlogSegmentSize = 64 * MB;
+	/** Value log segments with less live bytes than that percentage are collected */
+	@Validator(min = 1, max = 100)
+	private int vlogGcRatio = 50;
+	/** Leaves per second the background compactor looks at, 0 to disable */
+	@Validator()
+	private int compactRate = 0;
+	/** Leaves per second the background defragmenter looks at, 0 to disable */
+	@Validator()
+	private int defragRate = 0;
+	/** Seconds between two branch snapshots taken by checkpoints, 0 to take one on close only */
+	@Validator()
+	private int snapshotInterval = 300;
+	/** Write the next data file at full size in the background, fixed at creation */
+	@Validator()
+	private boolean preallocateFiles = false;
+	/** Most leaves a sequential iterator reads ahead of itself, 0 disabled by default */
+	@Validator(max = 1024)
+	private int readAhead = 0;
+	/** Threads reading ahead for iterators */
+	@Validator(min = 1, max = 64)
+	private int readAheadThreads = 2;
 	
 	int getBlockSize() { return dataPageSize; }
 	int getMFileSize() { return dataFileSize; }
@@ -39,6 +102,26 @@ class SysContext {
 	String getRootDir() { return ROOT_DIR; }
     int getMaxLobSize() { return maxLobSize; }	
 	int getMaxBlkSync() { return maxBlkSync; }
+	String getSyncPolicy() { return syncPolicy; }
+	int getSyncInterval() { return syncInterval; }
+	long getSyncBytes() { return syncBytes; }
+	long getPageCacheSize() { return pageCacheSize; }
+	boolean isMmapDataFiles() { return mmapDataFiles; }
+	boolean isWalEnabled() { return walEnabled; }
+	long getMemTableSize() { return memTableSize; }
+	boolean isCompressLeaf() { return compressLeaf; }
+	boolean isPrefixKeys() { return prefixKeys; }
+	int getPageFormat() { return pageFormat; }
+	boolean isSlotted() { return pageFormat >= 2; }
+	int getVlogThreshold() { return vlogThreshold; }
+	int getVlogSegmentSize() { return vlogSegmentSize; }
+	int getVlogGcRatio() { return vlogGcRatio; }
+	int getCompactRate() { return compactRate; }
+	int getDefragRate() { return defragRate; }
+	int getSnapshotInterval() { return snapshotInterval; }
+	boolean isPreallocateFiles() { return preallocateFiles; }
+	int getReadAhead() { return readAhead; }
+	int getReadAheadThreads() { return readAheadThreads; }
 	
 	SysContext(String root,Properties options) throws Exception { 
 		if (root == null || "".equals(root.trim()))
@@ -50,8 +133,12 @@ class SysContext {
 		this.ROOT_DIR = root; 
 		// context load or save
 		if (!loadConfigs()) { validateProps(this,options); saveConfigs(); }
+		// written by a newer version
+		if (pageFormat > PAGE_FORMAT)
+			throw new RuntimeException("Unsupported page format " + pageFormat);
 		// Maximum block per file
 		mBlockFile = dataFileSize / dataPageSize;
+		syncPolicy = syncPolicy.toLowerCase();
 		// if max block not provided by user				
 	}	
 	// Save context information
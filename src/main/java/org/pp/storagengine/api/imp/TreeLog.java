@@ -0,0 +1,349 @@
+package org.pp.storagengine.api.imp;
+
+import static org.pp.storagengine.api.imp.KVLog.println;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.pp.storagengine.api.imp.KVEngineImp.KVEntryImp;
+
+/**
+ * Tree log, branch entries of new or moved leaves and removal records of
+ * merged ones, in segments. Every record carries a checksum. A new segment
+ * is started when a branch snapshot is taken, the snapshot names it and the
+ * segments before it are deleted, so opening replays only what was logged
+ * since the last snapshot. The replay stops at the first torn or invalid
+ * record and the segment is truncated there, a crash costs a check of the
+ * tail only. Written by the writer only. A background sync holds back the
+ * records appended while it forces the log, so that it never makes a
+ * record durable before the blocks it points to.
+ *
+ * Record format: [crc32(4)][serialised entry]
+ * @author prasantsmac
+ *
+ */
+class TreeLog {
+	/** Segment file prefix and postfix */
+	private static final String tlPrefix = File.separator + "tl";
+	private static final String tlPostfix = ".tlog";
+	/** Single tree log of databases created before segments */
+	private static final String legacyFile = File.separator + ".tlog";
+	/** Record header size */
+	static final int REC_HDR_SZ = 4;
+	/** Replay chunk size */
+	private static final int CHUNK = 1024 * 1024;
+	/** System context */
+	private final SysContext ctx;
+	/** Active segment */
+	private FileChannel fc;
+	private int seg = 0;
+	private long end = 0;
+	/** Segments rolled but not released yet */
+	private final List<FileChannel> sealed = new ArrayList<>();
+	/** Records held back during a background sync, null if none */
+	private ByteArrayOutputStream held;
+
+	TreeLog(SysContext ctx) {
+		this.ctx = ctx;
+	}
+
+	/**
+	 * Oldest segment
+	 * @param ctx
+	 * @return -1 if there is none
+	 */
+	static int first(SysContext ctx) {
+		List<Integer> segs = segments(ctx);
+		return segs.isEmpty() ? -1 : segs.get(0);
+	}
+
+	/**
+	 * Check for the tree log of a database created before segments
+	 * @param ctx
+	 * @return
+	 */
+	static boolean legacy(SysContext ctx) {
+		return new File(ctx.getRootDir() + legacyFile).exists();
+	}
+
+	/**
+	 * Replay the tree log of a database created before segments, its
+	 * records carry no checksum. The replay stops at a torn record or when
+	 * the visitor refuses one. Segments left by an interrupted upgrade are
+	 * deleted and appends go to a new segment 0, the caller saves a
+	 * snapshot naming it and then drops the old log
+	 * @param visitor
+	 * @throws Exception
+	 */
+	void upgrade(Visitor visitor) throws Exception {
+		for (int s : segments(ctx))
+			file(s).delete();
+		File f = new File(ctx.getRootDir() + legacyFile);
+		try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			long valid = read(ch, visitor, 0);
+			if (valid < ch.size())
+				println("Tree log " + f.getName() + " ignored after " + valid + " of " + ch.size());
+		}
+		open(0);
+	}
+
+	/**
+	 * Delete the tree log of before segments, the upgrade is complete
+	 */
+	void dropLegacy() {
+		new File(ctx.getRootDir() + legacyFile).delete();
+	}
+
+	/**
+	 * Start the first segment of a new database
+	 * @throws Exception
+	 */
+	void create() throws Exception {
+		open(0);
+	}
+
+	/**
+	 * Replay the segments from a given one on, older ones are deleted. The
+	 * replay stops at the first invalid record or when the visitor refuses
+	 * a record, the segment is truncated there and later ones are deleted.
+	 * Appends go to the end of the last segment
+	 * @param from - first segment, as named by the snapshot
+	 * @param visitor
+	 * @throws Exception
+	 */
+	void replay(int from, Visitor visitor) throws Exception {
+		int last = from;
+		boolean stop = false;
+		for (int s : segments(ctx)) {
+			File f = file(s);
+			if (s < from || stop) {
+				f.delete();
+				continue;
+			}
+			last = s;
+			try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				long valid = read(ch, visitor, REC_HDR_SZ);
+				if (valid < ch.size()) {
+					println("Tree log " + f.getName() + " truncated at " + valid + " of " + ch.size());
+					ch.truncate(valid);
+					ch.force(true);
+					stop = true;
+				}
+			}
+		}
+		open(last);
+	}
+
+	/**
+	 * Record bytes of an entry
+	 * @param entry
+	 * @return
+	 */
+	static byte[] record(KVEntryImp entry) {
+		int len = REC_HDR_SZ + entry.sSize();
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		buf.position(REC_HDR_SZ);
+		entry.serialize(buf);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), REC_HDR_SZ, len - REC_HDR_SZ);
+		buf.putInt(0, (int) crc.getValue());
+		return buf.array();
+	}
+
+	/**
+	 * Append a record of an entry
+	 * @param entry
+	 * @throws Exception
+	 */
+	void append(KVEntryImp entry) throws Exception {
+		write(record(entry));
+	}
+
+	/**
+	 * Append records
+	 * @param records
+	 * @throws Exception
+	 */
+	void write(byte[] records) throws Exception {
+		if (held != null) {
+			held.write(records);
+			return;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(records);
+		while (buf.hasRemaining())
+			end += fc.write(buf, end);
+	}
+
+	/**
+	 * Bytes logged since the last roll
+	 * @return
+	 */
+	long size() {
+		return end + (held != null ? held.size() : 0);
+	}
+
+	/**
+	 * Hold back records appended from now on, a sync starts. Records held
+	 * by a previous one are written first
+	 * @throws Exception
+	 */
+	void hold() throws Exception {
+		resume();
+		held = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * Write the records held back, the sync is over
+	 * @throws Exception
+	 */
+	void resume() throws Exception {
+		ByteArrayOutputStream h = held;
+		held = null;
+		if (h != null && h.size() > 0)
+			write(h.toByteArray());
+	}
+
+	/**
+	 * Force the active segment and the ones rolled before. Can be called
+	 * without the write lock
+	 * @throws Exception
+	 */
+	void sync() throws Exception {
+		List<FileChannel> chans;
+		synchronized (this) {
+			chans = new ArrayList<>(sealed);
+			chans.add(fc);
+		}
+		for (FileChannel ch : chans)
+			ch.force(false);
+	}
+
+	/**
+	 * Seal the active segment and start a new one, sync() forces the
+	 * sealed one
+	 * @return new segment
+	 * @throws Exception
+	 */
+	synchronized int roll() throws Exception {
+		resume();
+		sealed.add(fc);
+		open(seg + 1);
+		return seg;
+	}
+
+	/**
+	 * A snapshot names the segment, delete the ones before it
+	 * @param from
+	 * @throws Exception
+	 */
+	synchronized void release(int from) throws Exception {
+		for (FileChannel ch : sealed)
+			ch.close();
+		sealed.clear();
+		for (int s : segments(ctx))
+			if (s < from)
+				file(s).delete();
+	}
+
+	/**
+	 * Sync and close the active segment
+	 * @throws Exception
+	 */
+	synchronized void close() throws Exception {
+		resume();
+		sync();
+		for (FileChannel ch : sealed)
+			ch.close();
+		fc.close();
+	}
+
+	/**
+	 * Read the valid records of a segment
+	 * @param ch
+	 * @param visitor
+	 * @param hdr - record header size, 0 if records carry no checksum
+	 * @return length of the valid part
+	 * @throws Exception
+	 */
+	private static long read(FileChannel ch, Visitor visitor, int hdr) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK);
+		CRC32 crc = new CRC32();
+		long pos = 0, valid = 0;
+		buf.limit(0);
+		for (;;) {
+			// a whole header and record in the buffer, or the next chunk
+			if (buf.remaining() < hdr + 4 || buf.remaining() < hdr + buf.getInt(buf.position() + hdr)) {
+				buf.compact();
+				while (buf.hasRemaining()) {
+					int n = ch.read(buf, pos);
+					if (n < 0)
+						break;
+					pos += n;
+				}
+				buf.flip();
+			}
+			if (buf.remaining() < hdr + 4)
+				return valid;
+			int p = buf.position(), len = buf.getInt(p + hdr);
+			if (len < KVEntryImp.KV_META_SZ || len > CHUNK - hdr || buf.remaining() < hdr + len)
+				return valid;
+			if (hdr > 0) {
+				crc.reset();
+				crc.update(buf.array(), p + hdr, len);
+				if ((int) crc.getValue() != buf.getInt(p))
+					return valid;
+			}
+			ByteBuffer rec = ByteBuffer.wrap(buf.array(), p + hdr, len).slice();
+			if (!visitor.visit(KVEntryImp.dSerialize(rec)))
+				return valid;
+			buf.position(p + hdr + len);
+			valid += hdr + len;
+		}
+	}
+
+	private void open(int s) throws Exception {
+		seg = s;
+		fc = FileChannel.open(file(s).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		end = fc.size();
+	}
+
+	private File file(int s) {
+		return new File(ctx.getRootDir() + tlPrefix + s + tlPostfix);
+	}
+
+	/**
+	 * Segment numbers in ascending order
+	 * @param ctx
+	 * @return
+	 */
+	private static List<Integer> segments(SysContext ctx) {
+		List<Integer> segs = new ArrayList<>();
+		for (File f : new File(ctx.getRootDir()).listFiles()) {
+			String name = f.getName();
+			if (name.startsWith(tlPrefix.substring(1)) && name.endsWith(tlPostfix))
+				segs.add(Integer.parseInt(name.substring(tlPrefix.length() - 1, name.length() - tlPostfix.length())));
+		}
+		Collections.sort(segs);
+		return segs;
+	}
+
+	/**
+	 * Record visitor of a replay
+	 */
+	interface Visitor {
+		/**
+		 * @param entry - branch entry, a removal if deleted
+		 * @return false if the record is invalid, the replay stops there
+		 * @throws Exception
+		 */
+		boolean visit(KVEntryImp entry) throws Exception;
+	}
+}
@@ -0,0 +1,361 @@
+package org.pp.storagengine.api.imp;
+
+import static org.pp.storagengine.api.imp.Util.atoRename;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import org.pp.storagengine.api.imp.KVEngineImp.KVEntryImp;
+
+/**
+ * Append only value log. Large values are appended to the active segment
+ * and the leaves keep a reference (negative, LOB references never are).
+ * Dead bytes are counted per segment as values are replaced or deleted, a
+ * collector moves the live values of a sparse segment to the active one and
+ * retires it. A retired segment is deleted two checkpoints later, like
+ * released blocks, once the readers which might hold a reference into it
+ * are done. Dead bytes are saved on close only, after a crash they
+ * are unknown and measured again by the collector.
+ *
+ * Record format: [crc32(4)][serialised entry]
+ * Reference: [1][segment(23)][offset(40)]
+ * @author prasantsmac
+ *
+ */
+class ValueLog {
+	/** Segment file prefix and postfix */
+	private static final String vlPrefix = File.separator + "vl";
+	private static final String vlPostfix = ".vlog";
+	/** Dead bytes file name */
+	private static final String deadFile = File.separator + ".vlg";
+	/** Record header size */
+	static final int REC_HDR_SZ = 4;
+	/** Reference flag and layout */
+	private static final long VLOG_REF = 1L << 63;
+	private static final int OFF_BITS = 40;
+	private static final long OFF_MASK = (1L << OFF_BITS) - 1;
+	/** System context */
+	private final SysContext ctx;
+	/** Statistics */
+	private final Statistics stat;
+	/** Segment channels */
+	private final ConcurrentMap<Integer, FileChannel> segs = new ConcurrentHashMap<>();
+	/** Dead bytes by segment, -1 if unknown */
+	private final ConcurrentMap<Integer, Long> dead = new ConcurrentHashMap<>();
+	/** Active segment and its end */
+	private volatile int active = 0;
+	private long end = 0;
+	/** Retired since last checkpoint */
+	private List<Integer> retired = new ArrayList<>();
+	/** Retired before last checkpoint, [segment, epoch] */
+	private List<long[]> retiring = new ArrayList<>();
+
+	/**
+	 * Open or create the log
+	 * @param ctx
+	 * @param stat
+	 * @param clean - false after a crash
+	 * @throws Exception
+	 */
+	ValueLog(SysContext ctx, Statistics stat, boolean clean) throws Exception {
+		this.ctx = ctx;
+		this.stat = stat;
+		int last = -1;
+		for (File f : new File(ctx.getRootDir()).listFiles()) {
+			String name = f.getName();
+			if (!name.startsWith(vlPrefix.substring(1)) || !name.endsWith(vlPostfix))
+				continue;
+			int seg = Integer.parseInt(name.substring(vlPrefix.length() - 1, name.length() - vlPostfix.length()));
+			open(seg);
+			dead.put(seg, -1L);
+			last = Math.max(last, seg);
+		}
+		File df = new File(ctx.getRootDir() + deadFile);
+		if (clean && df.exists())
+			load(df);
+		// a torn tail is never appended to
+		if (last < 0 || !clean) {
+			active = last + 1;
+			open(active);
+			dead.put(active, 0L);
+		} else {
+			active = last;
+			end = segs.get(last).size();
+		}
+		stat.numOfVlogSegments = segs.size();
+	}
+
+	/**
+	 * True if a leaf value is a value log reference
+	 * @param value
+	 * @return
+	 */
+	static boolean isRef(Object value) {
+		return value instanceof Long && (long) value < 0;
+	}
+
+	/**
+	 * Append an entry with its value, the caller must hold the write lock
+	 * @param entry
+	 * @return reference
+	 * @throws Exception
+	 */
+	long append(KVEntryImp entry) throws Exception {
+		int len = REC_HDR_SZ + entry.sSize();
+		if (end > 0 && end + len > ctx.getVlogSegmentSize())
+			roll();
+		ByteBuffer buf = ByteBuffer.allocate(len);
+		buf.position(REC_HDR_SZ);
+		entry.serialize(buf);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), REC_HDR_SZ, len - REC_HDR_SZ);
+		buf.putInt(0, (int) crc.getValue());
+		buf.flip();
+		FileChannel fc = segs.get(active);
+		long pos = end;
+		while (buf.hasRemaining())
+			pos += fc.write(buf, pos);
+		long ref = VLOG_REF | (long) active << OFF_BITS | end;
+		end = pos;
+		stat.vlogBytes += len;
+		return ref;
+	}
+
+	/**
+	 * Read the entry of a reference
+	 * @param ref
+	 * @param size - serialised entry size
+	 * @return
+	 * @throws Exception
+	 */
+	KVEntryImp read(long ref, int size) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		read(ref, 0, buf);
+		buf.flip();
+		return KVEntryImp.dSerialize(buf);
+	}
+
+	/**
+	 * Read a range of the serialised entry of a reference
+	 * @param ref
+	 * @param pos - position within the entry
+	 * @param dst
+	 * @throws Exception
+	 */
+	void read(long ref, long pos, ByteBuffer dst) throws Exception {
+		FileChannel fc = segs.get(seg(ref));
+		if (fc == null)
+			throw new IllegalStateException("Value log segment " + seg(ref) + " of reference "
+					+ Long.toHexString(ref) + " is deleted, read after it was retired");
+		pos += (ref & OFF_MASK) + REC_HDR_SZ - dst.position();
+		while (dst.hasRemaining())
+			if (fc.read(dst, pos + dst.position()) < 0)
+				break;
+	}
+
+	/**
+	 * The entry of a reference was replaced or deleted
+	 * @param ref
+	 * @param size - serialised entry size
+	 */
+	void discard(long ref, int size) {
+		dead.computeIfPresent(seg(ref), (k, v) -> v < 0 ? v : v + REC_HDR_SZ + size);
+	}
+
+	/**
+	 * Find a sealed segment worth collecting
+	 * @param ratio - live percentage below which a segment is collected
+	 * @return segment, -1 if none
+	 * @throws Exception
+	 */
+	int candidate(int ratio) throws Exception {
+		for (Map.Entry<Integer, Long> e : dead.entrySet()) {
+			int seg = e.getKey();
+			if (seg == active)
+				continue;
+			long total = segs.get(seg).size(), d = e.getValue();
+			// unknown ones are measured first
+			if (d < 0 || (total - Math.min(d, total)) * 100 < total * ratio || total == 0)
+				return seg;
+		}
+		return -1;
+	}
+
+	/**
+	 * Read all complete records of a segment, stop at the first torn one
+	 * @param seg
+	 * @param visitor
+	 * @return bytes of the segment
+	 * @throws Exception
+	 */
+	long scan(int seg, Visitor visitor) throws Exception {
+		FileChannel fc = segs.get(seg);
+		long size = fc.size(), pos = 0;
+		ByteBuffer hdr = ByteBuffer.allocate(REC_HDR_SZ + 4);
+		CRC32 crc = new CRC32();
+		while (pos + hdr.capacity() <= size) {
+			hdr.clear();
+			read(fc, hdr, pos);
+			int len = hdr.getInt(REC_HDR_SZ);
+			if (len < KVEntryImp.KV_META_SZ || pos + REC_HDR_SZ + len > size)
+				break;
+			ByteBuffer rec = ByteBuffer.allocate(len);
+			read(fc, rec, pos + REC_HDR_SZ);
+			crc.reset();
+			crc.update(rec.array());
+			if ((int) crc.getValue() != hdr.getInt(0))
+				break;
+			if (!visitor.visit(VLOG_REF | (long) seg << OFF_BITS | pos, KVEntryImp.dSerialize(rec)))
+				break;
+			pos += REC_HDR_SZ + len;
+		}
+		return size;
+	}
+
+	/**
+	 * Set the measured dead bytes of a segment
+	 * @param seg
+	 * @param bytes
+	 */
+	void setDead(int seg, long bytes) {
+		dead.replace(seg, bytes);
+	}
+
+	/**
+	 * Live values of a segment were moved, delete it once nobody can read it
+	 * @param seg
+	 */
+	void retire(int seg) {
+		dead.remove(seg);
+		retired.add(seg);
+	}
+
+	/**
+	 * Force the active segment
+	 * @throws Exception
+	 */
+	void sync() throws Exception {
+		segs.get(active).force(false);
+	}
+
+	/**
+	 * Leaves are synced, delete segments retired two checkpoints ago unless
+	 * a reader of their epoch or an older one is still running
+	 * @param epoch - epoch ended by this checkpoint
+	 * @param oldest - epoch of the oldest running reader
+	 * @throws Exception
+	 */
+	void checkpoint(long epoch, long oldest) throws Exception {
+		List<long[]> held = new ArrayList<>();
+		for (long[] seg : retiring) {
+			if (seg[1] >= oldest)
+				held.add(seg);
+			else
+				delete((int) seg[0]);
+		}
+		for (int seg : retired)
+			held.add(new long[] { seg, epoch });
+		retiring = held;
+		retired = new ArrayList<>();
+	}
+
+	/**
+	 * Delete retired segments, save dead bytes and close the segments
+	 * @throws Exception
+	 */
+	void close() throws Exception {
+		checkpoint(0, Long.MAX_VALUE);
+		checkpoint(0, Long.MAX_VALUE);
+		sync();
+		File tmp = new File(ctx.getRootDir() + deadFile + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			for (Map.Entry<Integer, Long> e : dead.entrySet()) {
+				out.writeInt(e.getKey());
+				out.writeLong(e.getValue());
+			}
+		}
+		atoRename(tmp.getAbsolutePath(), ctx.getRootDir() + deadFile);
+		for (FileChannel fc : segs.values())
+			fc.close();
+		segs.clear();
+	}
+
+	/**
+	 * Seal the active segment and start a new one
+	 * @throws Exception
+	 */
+	private void roll() throws Exception {
+		segs.get(active).force(false);
+		open(active + 1);
+		dead.put(active + 1, 0L);
+		active++;
+		end = 0;
+		stat.numOfVlogSegments = segs.size();
+	}
+
+	private void open(int seg) throws Exception {
+		File f = new File(ctx.getRootDir() + vlPrefix + seg + vlPostfix);
+		segs.put(seg, FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE));
+	}
+
+	private void delete(int seg) throws Exception {
+		FileChannel fc = segs.remove(seg);
+		if (fc != null)
+			fc.close();
+		new File(ctx.getRootDir() + vlPrefix + seg + vlPostfix).delete();
+		stat.numOfVlogSegments = segs.size();
+	}
+
+	private void load(File df) throws Exception {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(df)))) {
+			while (in.available() > 0) {
+				int seg = in.readInt();
+				long d = in.readLong();
+				// dead bytes of a segment which is gone are meaningless
+				dead.replace(seg, d);
+			}
+		}
+	}
+
+	private static int seg(long ref) {
+		return (int) ((ref & ~VLOG_REF) >>> OFF_BITS);
+	}
+
+	private static void read(FileChannel fc, ByteBuffer buf, long pos) throws Exception {
+		while (buf.hasRemaining()) {
+			int n = fc.read(buf, pos);
+			if (n < 0)
+				break;
+			pos += n;
+		}
+		buf.flip();
+	}
+
+	/**
+	 * Record visitor of a segment scan
+	 */
+	interface Visitor {
+		/**
+		 * @param ref - reference of the record
+		 * @param entry - entry with its value
+		 * @return false to stop the scan
+		 * @throws Exception
+		 */
+		boolean visit(long ref, KVEntryImp entry) throws Exception;
+	}
+}
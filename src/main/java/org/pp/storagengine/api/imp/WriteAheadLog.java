@@ -0,0 +1,300 @@
+package org.pp.storagengine.api.imp;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.pp.storagengine.api.imp.KVEngineImp.KVEntryImp;
+
+/**
+ * Sequential write ahead log. Every put/delete is appended as one record
+ * before the tree is updated. Concurrent writers are made durable by a
+ * single force (group commit). If disabled, write batches are logged all
+ * the same so that a crash never leaves part of one. The log is written in segments, a
+ * checkpoint seals the active one and deletes the sealed ones once the
+ * data files and the tree log are synced, so that records appended while
+ * the sync runs are kept.
+ *
+ * Record format: [len(4)][crc32(4)][count(4)][entry....]
+ * @author prasantsmac
+ *
+ */
+class WriteAheadLog {
+	/** Log file name, segments have their number appended */
+	private static final String walFile = File.separator + ".wal";
+	/** Record header size */
+	private static final int REC_HDR_SZ = 8;
+	/** System context */
+	private final SysContext ctx;
+	/** Active segment, its number and the sequence it starts at */
+	private FileChannel fc;
+	private int seg;
+	private long start;
+	/** Sealed segments, not needed once the sequence they end at is synced */
+	private final List<Segment> sealed = new ArrayList<>();
+	/** Statistics */
+	private final Statistics stat;
+	/** Logical bytes appended so far, never reset */
+	private volatile long appended = 0;
+	/** Logical bytes known to be durable */
+	private long durable = 0;
+	/** Indicate a writer is forcing the log */
+	private boolean forcing = false;
+
+	/**
+	 * Open the log, replay() starts a new segment
+	 * @param ctx
+	 * @param stat
+	 * @throws Exception
+	 */
+	WriteAheadLog(SysContext ctx, Statistics stat) throws Exception {
+		this.ctx = ctx;
+		this.stat = stat;
+	}
+
+	/**
+	 * Read all complete records of all segments, a torn or corrupted tail
+	 * ends the log. The segments stay until the first checkpoint
+	 * @return entries in log order
+	 * @throws Exception
+	 */
+	List<KVEntryImp> replay() throws Exception {
+		List<KVEntryImp> entries = new LinkedList<>();
+		boolean torn = false;
+		int last = -1;
+		for (Map.Entry<Integer, File> e : segments().entrySet()) {
+			last = e.getKey();
+			FileChannel ch = FileChannel.open(e.getValue().toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (torn)
+				ch.truncate(0);
+			else
+				torn = replay(ch, entries);
+			sealed.add(new Segment(last, ch, 0));
+		}
+		open(last + 1);
+		return entries;
+	}
+
+	/**
+	 * Append a record, the caller must hold the write lock. The record is not
+	 * durable until commit() returns
+	 * @param entries
+	 * @return sequence to pass to commit()
+	 * @throws Exception
+	 */
+	long append(KVEntryImp... entries) throws Exception {
+		int len = 4;
+		for (KVEntryImp entry : entries)
+			len += entry.sSize();
+		ByteBuffer buf = ByteBuffer.allocate(REC_HDR_SZ + len);
+		buf.position(REC_HDR_SZ);
+		buf.putInt(entries.length);
+		for (KVEntryImp entry : entries)
+			entry.serialize(buf);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), REC_HDR_SZ, len);
+		buf.putInt(0, len).putInt(4, (int) crc.getValue());
+		buf.flip();
+		while (buf.hasRemaining())
+			fc.write(buf);
+		stat.numOfWalAppend++;
+		return appended += buf.limit();
+	}
+
+	/**
+	 * Wait until the given sequence is durable. One writer forces the log on
+	 * behalf of every record appended so far, the others just wait for it.
+	 * Called without holding the write lock, but for a write batch that
+	 * must be durable before the tree is touched.
+	 * @param seq
+	 * @throws Exception
+	 */
+	void commit(long seq) throws Exception {
+		long target = appended;
+		List<FileChannel> chans = new ArrayList<>();
+		synchronized (this) {
+			while (durable < seq && forcing)
+				wait();
+			if (durable >= seq)
+				return;
+			forcing = true;
+			// a record might still be in a sealed segment
+			for (Segment s : sealed)
+				chans.add(s.fc);
+			chans.add(fc);
+		}
+		boolean done = false;
+		try {
+			for (FileChannel ch : chans) {
+				try {
+					ch.force(false);
+				} catch (ClosedChannelException e) {
+					// released, synced by a checkpoint
+				}
+			}
+			stat.numOfWalSync++;
+			done = true;
+		} finally {
+			synchronized (this) {
+				if (done && target > durable)
+					durable = target;
+				forcing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Make everything appended so far durable
+	 * @throws Exception
+	 */
+	void commit() throws Exception {
+		commit(appended);
+	}
+
+	/**
+	 * A checkpoint starts, seal the active segment unless it is empty. Caller
+	 * must hold the write lock.
+	 * @return sequence to pass to release() once data files are synced
+	 * @throws Exception
+	 */
+	long seal() throws Exception {
+		long end = appended;
+		if (end > start) {
+			synchronized (this) {
+				sealed.add(new Segment(seg, fc, end));
+				open(seg + 1);
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Data files and tree log are synced up to the sequence, the segments
+	 * sealed before are not needed anymore
+	 * @param end - sequence returned by seal()
+	 * @throws Exception
+	 */
+	synchronized void release(long end) throws Exception {
+		for (Iterator<Segment> it = sealed.iterator(); it.hasNext();) {
+			Segment s = it.next();
+			if (s.end > end)
+				continue;
+			s.fc.close();
+			file(s.no).delete();
+			it.remove();
+		}
+		if (end > durable)
+			durable = end;
+		notifyAll();
+	}
+
+	/**
+	 * Close the log
+	 * @throws Exception
+	 */
+	synchronized void close() throws Exception {
+		for (Segment s : sealed)
+			s.fc.close();
+		fc.close();
+	}
+
+	/**
+	 * Read the complete records of a segment
+	 * @param ch
+	 * @param entries
+	 * @return true if the segment has a torn tail, it is cut
+	 * @throws Exception
+	 */
+	private boolean replay(FileChannel ch, List<KVEntryImp> entries) throws Exception {
+		long size = ch.size(), pos = 0;
+		ByteBuffer hdr = ByteBuffer.allocate(REC_HDR_SZ);
+		CRC32 crc = new CRC32();
+		while (pos + REC_HDR_SZ <= size) {
+			hdr.clear();
+			read(ch, hdr, pos);
+			int len = hdr.getInt(0);
+			// torn record
+			if (len <= 4 || pos + REC_HDR_SZ + len > size)
+				break;
+			ByteBuffer rec = ByteBuffer.allocate(len);
+			read(ch, rec, pos + REC_HDR_SZ);
+			crc.reset();
+			crc.update(rec.array());
+			if ((int) crc.getValue() != hdr.getInt(4))
+				break;
+			// all entries of a record are applied or none
+			int count = rec.getInt();
+			for (int i = 0; i < count; i++)
+				entries.add(KVEntryImp.dSerialize(rec));
+			pos += REC_HDR_SZ + len;
+		}
+		// drop the garbage tail
+		if (pos == size)
+			return false;
+		ch.truncate(pos);
+		return true;
+	}
+
+	private void open(int no) throws Exception {
+		seg = no;
+		start = appended;
+		fc = FileChannel.open(file(no).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	private File file(int no) {
+		return new File(ctx.getRootDir() + walFile + no);
+	}
+
+	/**
+	 * Segments by number
+	 * @return
+	 */
+	private TreeMap<Integer, File> segments() {
+		TreeMap<Integer, File> segs = new TreeMap<>();
+		for (File f : new File(ctx.getRootDir()).listFiles()) {
+			String name = f.getName();
+			if (name.startsWith(walFile.substring(1)) && name.substring(walFile.length() - 1).matches("\\d+"))
+				segs.put(Integer.parseInt(name.substring(walFile.length() - 1)), f);
+		}
+		return segs;
+	}
+
+	private static void read(FileChannel ch, ByteBuffer buf, long pos) throws Exception {
+		while (buf.hasRemaining()) {
+			int n = ch.read(buf, pos);
+			if (n < 0)
+				break;
+			pos += n;
+		}
+		buf.flip();
+	}
+
+	/**
+	 * Sealed segment
+	 */
+	private static final class Segment {
+		/** Segment number */
+		private final int no;
+		/** Segment channel */
+		private final FileChannel fc;
+		/** Sequence the segment ends at */
+		private final long end;
+
+		private Segment(int no, FileChannel fc, long end) {
+			this.no = no;
+			this.fc = fc;
+			this.end = end;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package org.pp.storagengine.api.imp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pp.storagengine.api.WriteBatch;
+import org.pp.storagengine.api.imp.KVEngineImp.KVEntryImp;
+
+/**
+ * Write batch implementation, entries are validated when added
+ * @author prasantsmac
+ *
+ */
+class WriteBatchImp implements WriteBatch {
+	/** Operations in insertion order */
+	private final List<KVEntryImp> entries = new ArrayList<>();
+
+	@Override
+	public WriteBatch put(byte[] key, byte[] value) {
+		entries.add(new KVEntryImp(key, value, false));
+		return this;
+	}
+
+	@Override
+	public WriteBatch delete(byte[] key) {
+		entries.add(new KVEntryImp(key, null, true));
+		return this;
+	}
+
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public void clear() {
+		entries.clear();
+	}
+
+	/** Operations in insertion order */
+	List<KVEntryImp> entries() {
+		return entries;
+	}
+}
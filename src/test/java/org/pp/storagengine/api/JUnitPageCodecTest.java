@@ -0,0 +1,23 @@
+package org.pp.storagengine.api;
+
+import org.junit.Test;
+import org.pp.storagengine.api.imp.PageCodecTest;
+
+public class JUnitPageCodecTest {
+
+	@Test() // Page codec round trips
+	public void lzRoundTrip() throws Exception {
+		PageCodecTest.lzRoundTrip();
+	}
+
+	@Test() // Leaf page formats round trips
+	public void pageRoundTrip() throws Exception {
+		PageCodecTest.pageRoundTrip();
+	}
+
+	@Test() // Appends to leaf pages
+	public void pageAppends() throws Exception {
+		PageCodecTest.pageAppends();
+	}
+
+}
@@ -0,0 +1,40 @@
+package org.pp.storagengine.api;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pp.storagengine.api.imp.ReclaimTest;
+
+public class JUnitReclaimTest {
+
+	@BeforeClass // setup test
+	public static void setUp() throws Exception {
+		ReclaimTest.setUp();
+	}
+
+	@AfterClass // destroy database
+	public static void destroy() throws Exception {
+		ReclaimTest.destroy();
+	}
+
+	@Test() // LOB blocks under an open iterator
+	public void lobBlocks() throws Exception {
+		ReclaimTest.lobBlocks();
+	}
+
+	@Test() // Value log segments under an open iterator
+	public void vlogSegments() throws Exception {
+		ReclaimTest.vlogSegments();
+	}
+
+	@Test() // Merged leaves under overlapping iterators
+	public void retiredLeaves() throws Exception {
+		ReclaimTest.retiredLeaves();
+	}
+
+	@Test() // Leaves emptied by the compactor
+	public void emptyLeaves() throws Exception {
+		ReclaimTest.emptyLeaves();
+	}
+
+}
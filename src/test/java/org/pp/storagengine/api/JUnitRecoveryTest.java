@@ -0,0 +1,70 @@
+package org.pp.storagengine.api;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pp.storagengine.api.imp.RecoveryTest;
+
+public class JUnitRecoveryTest {
+
+	@BeforeClass // setup test
+	public static void setUp() throws Exception {
+		RecoveryTest.setUp();
+	}
+
+	@AfterClass // destroy databases
+	public static void destroy() throws Exception {
+		RecoveryTest.destroy();
+	}
+
+	@Test() // Database written before tree log segments
+	public void legacyOpen() throws Exception {
+		RecoveryTest.legacyOpen();
+	}
+
+	@Test() // Branch snapshot and tree log tail after a crash
+	public void snapshotReopen() throws Exception {
+		RecoveryTest.snapshotReopen();
+	}
+
+	@Test() // Write batch without write ahead log
+	public void batchReplay() throws Exception {
+		RecoveryTest.batchReplay();
+	}
+
+	@Test() // Write ahead log over leaves lost by a crash
+	public void walReplay() throws Exception {
+		RecoveryTest.walReplay();
+	}
+
+	@Test() // Memory table after a crash or close
+	public void memTableReplay() throws Exception {
+		RecoveryTest.memTableReplay();
+	}
+
+	@Test() // Compressed and prefix encoded leaves after a crash
+	public void encodedLeaves() throws Exception {
+		RecoveryTest.encodedLeaves();
+	}
+
+	@Test() // Slotted leaves after a crash
+	public void slottedLeaves() throws Exception {
+		RecoveryTest.slottedLeaves();
+	}
+
+	@Test() // Leaves merged and moved in the background after a crash
+	public void compactedLeaves() throws Exception {
+		RecoveryTest.compactedLeaves();
+	}
+
+	@Test() // Data files mapped in regions
+	public void mappedReads() throws Exception {
+		RecoveryTest.mappedReads();
+	}
+
+	@Test() // Preallocated data files after a crash
+	public void preallocatedFiles() throws Exception {
+		RecoveryTest.preallocatedFiles();
+	}
+
+}
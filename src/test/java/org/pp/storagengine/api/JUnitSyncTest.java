@@ -0,0 +1,40 @@
+package org.pp.storagengine.api;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pp.storagengine.api.imp.SyncTest;
+
+public class JUnitSyncTest {
+
+	@BeforeClass // setup test
+	public static void setUp() throws Exception {
+		SyncTest.setUp();
+	}
+
+	@AfterClass // destroy databases
+	public static void destroy() throws Exception {
+		SyncTest.destroy();
+	}
+
+	@Test() // Sync after every operation and a crash
+	public void alwaysPolicy() throws Exception {
+		SyncTest.alwaysPolicy();
+	}
+
+	@Test() // Sync every interval and a crash
+	public void intervalPolicy() throws Exception {
+		SyncTest.intervalPolicy();
+	}
+
+	@Test() // Sync every number of bytes
+	public void bytesPolicy() throws Exception {
+		SyncTest.bytesPolicy();
+	}
+
+	@Test() // Data files synced without metadata
+	public void dataOnlySync() throws Exception {
+		SyncTest.dataOnlySync();
+	}
+
+}